@@ -1,32 +1,34 @@
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
 
 public class Blob {
-    protected String hash, content;
-    protected Path objectsPath, hashPath, projectDirectory;
-
-    protected MessageDigest md;
+    protected String hash;
+    protected Path objectsPath, projectDirectory, sourcePath;
+    protected ObjectStore store;
 
     /**
      * Creates a new blob
-     * 
+     *
      * @param path Path to source file
      * @throws Exception
      */
     public Blob(String path, String projectDirectory) throws Exception {
         this.projectDirectory = Paths.get(projectDirectory);
         this.objectsPath = Paths.get(projectDirectory).resolve("objects/");
+        this.sourcePath = this.projectDirectory.resolve(path);
+        this.store = ObjectStores.forDirectory(objectsPath);
 
-        // Initialize the MessageDigest for hashing
-        md = MessageDigest.getInstance("SHA-1");
-
-        content = Utils.readFile(this.projectDirectory.resolve(path).toString());
+        // The file is only streamed when the blob is written, so make sure it exists now
+        if (!Files.isRegularFile(sourcePath)) {
+            throw new NoSuchFileException(sourcePath.toString());
+        }
     }
 
     /**
      * Creates a new blob
-     * 
+     *
      * @param path Path to source file
      * @throws Exception
      */
@@ -34,13 +36,15 @@ public class Blob {
         this(path, "");
     }
 
+    /**
+     * Streams the source file into the object store. The file is never loaded
+     * into memory, so this works for files of any size, and it is only stored if
+     * no object with the same contents exists yet.
+     *
+     * @throws Exception
+     */
     public void writeToObjects() throws Exception {
-        if (content == null || content.length() == 0) {
-            return;
-        }
-
-        this.hash = Utils.hashAndWriteFile(objectsPath.toString(), content, Consts.COMPRESS_FILES);
-        this.hashPath = this.objectsPath.resolve(hash);
+        this.hash = store.put("blob", sourcePath);
     }
 
     public String getHash() {
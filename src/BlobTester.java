@@ -1,6 +1,10 @@
 
 import static org.junit.Assert.*;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.DisplayName;
@@ -9,6 +13,8 @@ import org.junit.jupiter.api.Test;
 public class BlobTester {
     @BeforeAll
     static void setupBeforeClass() throws Exception {
+        // Queued object writes must land before their folder is deleted
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
 
         Git git = new Git();
@@ -17,11 +23,17 @@ public class BlobTester {
         Utils.writeFile("testerFile.txt", "hello world");
         Blob blob = new Blob("testerFile.txt");
         blob.writeToObjects();
+
+        // Objects are written in the background until they are synced
+        ObjectStores.forDirectory("objects").sync();
     }
 
     @AfterAll
     static void tearDownAfterClass() throws Exception {
         Utils.deleteFile("testerFile.txt");
+        Utils.deleteFile("binaryFile");
+        Utils.deleteFile("binaryFileCopy");
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
     }
 
@@ -29,16 +41,49 @@ public class BlobTester {
     @DisplayName("Verify Blob file has been created")
     void testBlobCreated() throws Exception {
         // Confirm the Blob creates a file in the correct location with the correct hash
-        assertTrue(Utils.exists("objects/d816fef546b01829364d78c90a6d49f3ea9eb356"));
+        assertTrue(Utils.exists("objects/95/d09f2b10159347eece71399a7e2e907ea3df4f"));
     }
 
     @Test
     @DisplayName("Verify Blob has correct contents")
     void testBlobContents() throws Exception {
         String originalFileContent = Utils.readFile("testerFile.txt");
-        String blobFileContent = Utils.unzipFile("objects/d816fef546b01829364d78c90a6d49f3ea9eb356");
+        String blobFileContent = Utils.unzipFile("objects/95d09f2b10159347eece71399a7e2e907ea3df4f");
 
         // Confirm the Blob's contents match the original file's contents
         assertEquals(originalFileContent, blobFileContent);
     }
+
+    @Test
+    @DisplayName("Verify binary files survive a round trip through the objects folder")
+    void testBinaryBlob() throws Exception {
+        byte[] bytes = new byte[100000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        Files.write(Paths.get("binaryFile"), bytes);
+
+        Blob blob = new Blob("binaryFile");
+        blob.writeToObjects();
+
+        Utils.unzipToFile("objects/" + blob.getHash(), "binaryFileCopy");
+
+        // Confirm every byte is unchanged after being streamed in and out
+        assertArrayEquals(bytes, Files.readAllBytes(Paths.get("binaryFileCopy")));
+    }
+
+    @Test
+    @DisplayName("Verify existing objects are not written again")
+    void testExistingBlobSkipped() throws Exception {
+        FileTime oldTime = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(Paths.get("objects/95/d09f2b10159347eece71399a7e2e907ea3df4f"), oldTime);
+
+        Blob blob = new Blob("testerFile.txt");
+        blob.writeToObjects();
+
+        // Confirm the hash is of the raw contents and the object file was left alone
+        assertEquals(Utils.hashObject("blob", "hello world"), blob.getHash());
+        assertEquals(oldTime,
+                Files.getLastModifiedTime(Paths.get("objects/95/d09f2b10159347eece71399a7e2e907ea3df4f")));
+    }
 }
@@ -0,0 +1,204 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Links commits to their children, so history can be followed forwards as
+ * well as backwards without ever changing a commit object.
+ *
+ * The file is append only, with one "parent child" line per commit that has a
+ * parent. Each link is added with a single append, so committing costs the
+ * same however long the history is, and readers never see a half written
+ * link: only complete lines are read, and lines are read once, picking up
+ * from where the last read stopped.
+ *
+ * Links are appended oldest first, and only once every older commit in the
+ * history is linked, so a commit which has a link always has its whole
+ * history linked. Links are checked against HEAD before they are read, which
+ * puts back a link lost when a writer stopped between moving HEAD and
+ * appending it.
+ */
+public class ChildIndex {
+    // Loaded indexes, so every part of the program shares one copy of each
+    private static final Map<Path, ChildIndex> indexes = new ConcurrentHashMap<Path, ChildIndex>();
+
+    protected Path indexPath;
+
+    private HashMap<String, List<String>> children = new HashMap<String, List<String>>();
+
+    // Commits which are linked to their parent
+    private HashSet<String> linked = new HashSet<String>();
+
+    // Identifies the file being read and how much of it has been read into children
+    private Object readKey;
+    private long readLength;
+
+    public ChildIndex(Path indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * Returns the shared child index for a file.
+     *
+     * @param indexPath
+     * @return
+     */
+    public static ChildIndex forPath(Path indexPath) {
+        return indexes.computeIfAbsent(indexPath.toAbsolutePath().normalize(), path -> new ChildIndex(path));
+    }
+
+    /**
+     * Drops the shared child index for a file, so its links no longer take up
+     * memory. Anyone still holding it can keep using it.
+     *
+     * @param indexPath
+     */
+    public static void forget(Path indexPath) {
+        indexes.remove(indexPath.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Links every commit in the history of HEAD to its parent. History is
+     * followed back from HEAD until a commit which is already linked, so after
+     * a commit only that commit is read, and the missing links are appended
+     * together. Repositories whose commits were made before the file existed
+     * have it built from the whole history.
+     *
+     * @param head Newest commit, or an empty string for none
+     * @throws Exception
+     */
+    public synchronized void update(String head) throws Exception {
+        if (!Files.exists(indexPath)) {
+            rebuild(head);
+            return;
+        }
+        catchUp();
+
+        ObjectStore store = ObjectStores.forDirectory(indexPath.resolveSibling("objects/"));
+        ArrayList<String> lines = new ArrayList<String>();
+        String commitHash = head;
+        while (!commitHash.equals("") && !linked.contains(commitHash)) {
+            String parent = Commit.getParent(commitHash, store);
+            if (!parent.equals("")) {
+                lines.add(parent + " " + commitHash + "\n");
+            }
+            commitHash = parent;
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        // Parents are found newest first, but links are kept oldest first
+        StringBuilder builder = new StringBuilder();
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            builder.append(lines.get(i));
+        }
+        Files.write(indexPath, builder.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns the children of a commit, oldest first.
+     *
+     * @param commitHash
+     * @return
+     * @throws Exception
+     */
+    public synchronized List<String> getChildren(String commitHash) throws Exception {
+        catchUp();
+        return Collections.unmodifiableList(
+                new ArrayList<String>(children.getOrDefault(commitHash, Collections.emptyList())));
+    }
+
+    /**
+     * Rewrites the file from the history of a commit.
+     *
+     * @param head Newest commit, or an empty string for none
+     * @throws Exception
+     */
+    public synchronized void rebuild(String head) throws Exception {
+        // Looked up each time, since the store for a folder can be replaced
+        ObjectStore store = ObjectStores.forDirectory(indexPath.resolveSibling("objects/"));
+
+        ArrayList<String> lines = new ArrayList<String>();
+        String commitHash = head;
+        while (!commitHash.equals("")) {
+            String parent = Commit.getParent(commitHash, store);
+            if (!parent.equals("")) {
+                lines.add(parent + " " + commitHash + "\n");
+            }
+            commitHash = parent;
+        }
+
+        // Parents are found newest first, but links are kept oldest first
+        StringBuilder builder = new StringBuilder();
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            builder.append(lines.get(i));
+        }
+
+        try (LockFile lock = LockFile.acquire(indexPath)) {
+            lock.commit(builder.toString());
+        }
+
+        children.clear();
+        linked.clear();
+        readKey = null;
+        readLength = 0;
+    }
+
+    // Reads the links added since the last read
+    private void catchUp() throws Exception {
+        if (!Files.exists(indexPath)) {
+            children.clear();
+            linked.clear();
+            readKey = null;
+            readLength = 0;
+            return;
+        }
+
+        Object key = Files.readAttributes(indexPath, BasicFileAttributes.class).fileKey();
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (!Objects.equals(key, readKey) || channel.size() < readLength) {
+                // The file was rebuilt by someone else, so it is read from the start
+                children.clear();
+                linked.clear();
+                readKey = key;
+                readLength = 0;
+            }
+
+            ByteArrayOutputStream added = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            channel.position(readLength);
+            while (channel.read(buffer) > 0) {
+                added.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+
+            String contents = added.toString(StandardCharsets.UTF_8);
+
+            // A line without its newline is still being written
+            int end = contents.lastIndexOf('\n') + 1;
+            for (String line : contents.substring(0, end).split("\n")) {
+                // Writers which find the same link missing at once both append it
+                String[] link = line.split(" ");
+                if (!line.equals("") && linked.add(link[1])) {
+                    children.computeIfAbsent(link[0], hash -> new ArrayList<String>()).add(link[1]);
+                }
+            }
+            readLength += contents.substring(0, end).getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+}
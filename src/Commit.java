@@ -1,96 +1,132 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Commit {
-    protected String author, summary, parent, treeSha, date, child, hash, parentTree;
+    // Commits to the same repository from one process are built one at a time, so
+    // only writers in other processes can move HEAD while a commit is being built
+    private static final Map<Path, ReentrantLock> building = new ConcurrentHashMap<Path, ReentrantLock>();
+
+    protected String author, summary, parent, treeSha, date, hash, parentTree;
     protected static DateTimeFormatter dtf = DateTimeFormatter.ofPattern("uuuu/MM/dd");
     protected Path objectsPath, headPath, indexPath, projectDirectory;
+    protected ObjectStore store;
+    protected Index index;
+    protected ChildIndex children;
+
+    // Objects the commit being built refers to which may not be on disk yet
+    private ArrayList<String> referenced = new ArrayList<String>();
 
     public Commit(String author, String summary, String projectDirectory) throws Exception {
         this.projectDirectory = Paths.get(projectDirectory);
         this.objectsPath = this.projectDirectory.resolve("objects/");
         this.headPath = this.projectDirectory.resolve("HEAD");
         this.indexPath = this.projectDirectory.resolve("index");
+        this.store = ObjectStores.forDirectory(objectsPath);
+        this.index = Index.forPath(indexPath);
+        this.children = ChildIndex.forPath(this.projectDirectory.resolve("children"));
 
-        if (!Utils.exists(headPath.toString())) {
-            Utils.createFile(headPath.toString());
-        }
-
-        if (!Utils.exists(indexPath.toString())) {
-            Utils.createFile(indexPath.toString());
-        }
+        index.init();
 
         this.author = author;
         this.summary = summary;
-        this.parent = Utils.readFile(headPath.toString());
-        this.parentTree = "";
-
-        child = "";
-
-        if (parent != "") {
-            String[] previousCommitLines = Utils.unzipFile(objectsPath.resolve(parent).toString()).split("\n");
-
-            // Gets tree location from first line
-            this.parentTree = previousCommitLines[0];
 
-            Utils.zipFile(objectsPath.resolve(parentTree).toString(), "");
+        ReentrantLock lock = building.computeIfAbsent(headPath.toAbsolutePath().normalize(),
+                path -> new ReentrantLock());
+        lock.lock();
+        try {
+            build();
+        } finally {
+            lock.unlock();
         }
 
-        treeSha = createTree();
-        date = getDate();
-
-        hash = writeToObjects();
-
-        Utils.writeFile(headPath.toString(), hash);
+        // If this is never reached, the link is put back the next time the links
+        // are read
+        children.update(hash);
     }
 
     public Commit(String author, String summary) throws Exception {
         this(author, summary, "");
     }
 
-    private String writeToObjects() throws Exception {
-        StringBuilder builder = new StringBuilder(
-                treeSha + "\n" + parent + "\n" + author + "\n" + date + "\n" + summary);
+    // Drops the lock commits to a repository are built under, once nothing is
+    // committing to it
+    static void forget(Path headPath) {
+        building.remove(headPath.toAbsolutePath().normalize());
+    }
 
-        // No reason to zip here because this hash is not of the entire file's contents.
-        String unzippedHash = Utils.hashString(builder.toString());
+    // Another process may commit while this commit is being built, in which case
+    // it is built again on top of theirs
+    private void build() throws Exception {
+        for (int attempt = 1;; attempt++) {
+            this.parent = readHead();
+            this.parentTree = "";
+            referenced.clear();
+
+            if (!parent.equals("")) {
+                // Gets tree location from first line
+                this.parentTree = getCommitTree(parent, projectDirectory.toString());
+            }
 
-        // Inserting the nextCommitHash after the second newline
-        builder.insert(builder.indexOf("\n", builder.indexOf("\n") + 1), child + "\n");
+            List<Index.Entry> entries = index.getStagedEntries();
+            treeSha = createTree(entries);
+            date = getDate();
 
-        // Zipping to the location determined by the unzippedHash
-        Utils.zipFile(this.objectsPath.resolve(unzippedHash).toString(), builder.toString());
+            hash = writeToObjects();
+            referenced.add(hash);
 
-        // Modifying previous commit to point to this one
-        if (parent != "") {
-            String parentPath = objectsPath.resolve(parent).toString();
+            // HEAD must never point at objects which are not on disk yet, including
+            // staged ones whose writes failed or were cut short by a crash
+            store.sync(referenced);
 
-            String[] previousCommitLines = Utils.unzipFile(parentPath).split("\n");
+            if (updateHead(parent, hash)) {
+                // Only the entries in this commit are unstaged, so files staged in the
+                // meantime are kept for the next one
+                index.markCommitted(entries);
+                break;
+            }
 
-            // Updates parent commit's child
-            previousCommitLines[2] = unzippedHash;
+            if (attempt == Consts.COMMIT_ATTEMPTS) {
+                throw new Exception("HEAD was moved by other writers " + attempt + " times while committing");
+            }
 
-            StringBuilder lastCommitBuilder = new StringBuilder();
+            // Backs off for a random time so writers racing each other spread out
+            Thread.sleep(ThreadLocalRandom.current().nextLong(1L << Math.min(attempt, 8)));
+        }
+    }
 
-            for (int i = 0; i < previousCommitLines.length; i++) {
-                lastCommitBuilder.append(previousCommitLines[i] + "\n");
-            }
+    // Commits are written once and never changed, so their contents always match
+    // their hash
+    private String writeToObjects() throws Exception {
+        String contents = treeSha + "\n" + parent + "\n" + author + "\n" + date + "\n" + summary;
+        return store.put("commit", contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Reads the commit HEAD points to, or an empty string if there are no commits
+    private String readHead() throws Exception {
+        return Utils.exists(headPath.toString()) ? Utils.readFile(headPath.toString()) : "";
+    }
 
-            if (lastCommitBuilder.length() > 0) {
-                lastCommitBuilder.deleteCharAt(lastCommitBuilder.length() - 1);
+    // Moves HEAD from the commit this one was built on to this commit, failing if
+    // another writer has moved it in the meantime
+    private boolean updateHead(String expected, String update) throws Exception {
+        try (LockFile lock = LockFile.acquire(headPath)) {
+            if (!readHead().equals(expected)) {
+                return false;
             }
 
-            Utils.deleteFile(parentPath);
-            Utils.zipFile(parentPath, lastCommitBuilder.toString());
+            lock.commit(update);
+            return true;
         }
-
-        return unzippedHash;
     }
 
     public static String getCommitTree(String commitHash) throws Exception {
@@ -98,7 +134,22 @@ public class Commit {
     }
 
     public static String getCommitTree(String commitHash, String projectDirectory) throws Exception {
-        return Utils.unzipFile(Paths.get(projectDirectory).resolve("objects/" + commitHash).toString()).split("\n")[0];
+        byte[] contents = ObjectStores.forDirectory(Paths.get(projectDirectory).resolve("objects/")).get(commitHash);
+        return new String(contents, StandardCharsets.UTF_8).split("\n")[0];
+    }
+
+    /**
+     * Returns the parent of a commit, or an empty string for the first commit.
+     * 
+     * @param commitHash
+     * @param store      Store holding the commit
+     * @return
+     * @throws Exception
+     */
+    public static String getParent(String commitHash, ObjectStore store) throws Exception {
+        // The parent is on the second line. Commits made before commits became
+        // immutable have their child on the third line, which is ignored
+        return new String(store.get(commitHash), StandardCharsets.UTF_8).split("\n", -1)[1];
     }
 
     public static String getDate() {
@@ -107,88 +158,133 @@ public class Commit {
     }
 
     public String createTree() throws Exception {
-        Tree tree = new Tree(projectDirectory.toString());
+        return createTree(index.getStagedEntries());
+    }
 
-        BufferedReader fileReader = new BufferedReader(new FileReader(indexPath.toString()));
-        String nextLine = fileReader.readLine();
+    // Builds a complete snapshot of the project: the parent's snapshot with the
+    // staged changes applied. Folders which did not change keep their tree hashes,
+    // so their trees are shared with the parent rather than written again
+    private String createTree(List<Index.Entry> entries) throws Exception {
+        TreeMap<String, String> files = new TreeMap<String, String>();
+        TreeMap<String, String> folders = new TreeMap<String, String>();
+        if (!parentTree.equals("")) {
+            readSnapshot(objectsPath, parentTree, files, folders);
+        }
 
-        ArrayList<String> deletedFileHashes = new ArrayList<String>();
-        ArrayList<String> editedFileHashes = new ArrayList<String>();
+        for (Index.Entry entry : entries) {
+            String path = entry.getPath();
+            if (!entry.isMarker()) {
+                referenced.add(entry.getHash());
+            }
 
-        // Reading the index file
-        while (nextLine != null) {
-            if (nextLine.substring(0, 9).equals("*deleted*")) {
-                deletedFileHashes.add(nextLine.substring(10));
-            } else if (nextLine.substring(0, 8).equals("*edited*")) {
-                editedFileHashes.add(nextLine.substring(9));
-            } else {
-                tree.add(nextLine);
+            if (entry.getType().equals(Index.Entry.DELETED)) {
+                if (files.remove(path) == null && folders.remove(path) == null) {
+                    setFolderFile(folders, path, null);
+                }
+            } else if (entry.getType().equals(Index.Entry.EDITED)) {
+                // Edited files are hashed as they are now
+                Blob blob = new Blob(path, projectDirectory.toString());
+                blob.writeToObjects();
+                referenced.add(blob.getHash());
+                if (!setFolderFile(folders, path, blob.getHash())) {
+                    files.put(path, blob.getHash());
+                }
+            } else if (entry.getType().equals("tree")) {
+                // The folder's new tree replaces anything staged inside it before
+                files.subMap(path + "/", path + "0").clear();
+                folders.subMap(path + "/", path + "0").clear();
+                folders.put(path, entry.getHash());
+            } else if (!setFolderFile(folders, path, entry.getHash())) {
+                files.put(path, entry.getHash());
             }
-            nextLine = fileReader.readLine();
         }
 
-        // Checking if any files were deleted or edited
-        if (deletedFileHashes.size() + editedFileHashes.size() > 0) {
-            // Start looking through previous trees for deleted/edited files
-            String previousTreeHash = this.parentTree;
-
-            while (previousTreeHash != "") {
-                // Unzip and parse the previous tree
-                String previousTreeString = Utils.unzipFile(objectsPath.resolve(previousTreeHash).toString());
-                Tree previousTree = Tree.parseTreeFile(previousTreeString);
-
-                HashMap<String, String> fileMap = previousTree.getFileMap();
-
-                // Iterate through all the files in the previous tree
-                for (HashMap.Entry<String, String> file : fileMap.entrySet()) {
-                    if (deletedFileHashes.contains(file.getKey())) {
-                        // If the file is one of the ones we are deleting, remove it from our list of
-                        // files to delete
-                        deletedFileHashes.remove(file.getKey());
-                    } else if (editedFileHashes.contains(file.getKey())) {
-                        // If the file is one of the ones we are editing, remove it from our list of
-                        // files to edit and compute the hash of the file's new contents before adding
-                        // it to our tree
-                        editedFileHashes.remove(file.getKey());
-
-                        Blob blob = new Blob(file.getKey(), projectDirectory.toString());
-                        blob.writeToObjects();
-
-                        tree.add("blob : " + blob.getHash() + " : " + file.getKey());
-                    } else {
-                        // Otherwise, directly link to the file in our tree (because this previous tree
-                        // is no longer being linked to)
-                        tree.add("blob : " + file.getValue() + " : " + file.getKey());
-                    }
-                }
+        Tree tree = new Tree(projectDirectory.toString());
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            tree.add("blob : " + file.getValue() + " : " + file.getKey());
+        }
+        for (Map.Entry<String, String> folder : folders.entrySet()) {
+            tree.add("tree : " + folder.getValue() + " : " + folder.getKey());
+        }
+
+        String treeHash = tree.writeToObjects();
+        referenced.add(treeHash);
+        return treeHash;
+    }
 
-                // If the earliest file we removed was removed in this tree, then we can safely
-                // add its parent tree (which we call the ancestor) to our commit
-                if (deletedFileHashes.size() == 0) {
-                    String ancestorTreeHash = previousTree.getPreviousTreeHash();
-                    if (ancestorTreeHash != "") {
-                        tree.add("tree : " + ancestorTreeHash);
-                    }
-
-                    // We can safely break from the loop now
-                    break;
-                } else {
-                    // Otherwise, continue looking back into the commit trees for files to delete
-                    previousTreeHash = previousTree.getPreviousTreeHash();
+    // Reads the files and folders of a commit tree. Trees written before commits
+    // held complete snapshots link to the previous commit's tree, so the chain is
+    // followed, keeping the newest version of each path
+    static void readSnapshot(Path objectsPath, String treeHash, Map<String, String> files,
+            Map<String, String> folders) throws Exception {
+        while (!treeHash.equals("")) {
+            Tree tree = Tree.readTree(objectsPath, treeHash);
+
+            for (Map.Entry<String, String> file : tree.getFileMap().entrySet()) {
+                files.putIfAbsent(file.getKey(), file.getValue());
+            }
+            for (Map.Entry<String, String> folder : tree.getTreeMap().entrySet()) {
+                if (!folder.getKey().equals("")) {
+                    folders.putIfAbsent(folder.getKey(), folder.getValue());
                 }
             }
-        } else {
-            if (parentTree != "") {
-                tree.add("tree : " + parentTree);
+
+            treeHash = tree.getPreviousTreeHash();
+        }
+    }
+
+    // Sets or removes a file inside one of the snapshot's folders, rewriting only
+    // the trees on the way to it. Returns false if no folder holds the path
+    private boolean setFolderFile(Map<String, String> folders, String path, String blobHash) throws Exception {
+        // Folders staged separately can be nested, in which case the innermost one
+        // holds the file
+        String holder = null;
+        for (String folder : folders.keySet()) {
+            if (path.startsWith(folder + "/") && (holder == null || folder.length() > holder.length())) {
+                holder = folder;
             }
         }
+        if (holder == null) {
+            return false;
+        }
+
+        String relativePath = path.substring(holder.length() + 1);
+        folders.put(holder, setTreeFile(folders.get(holder), relativePath, blobHash));
+        return true;
+    }
 
-        fileReader.close();
+    private String setTreeFile(String treeHash, String path, String blobHash) throws Exception {
+        Tree original = (treeHash == null) ? new Tree() : Tree.readTree(objectsPath, treeHash);
+        Tree tree = new Tree(projectDirectory.toString());
+
+        int slash = path.indexOf('/');
+        String name = (slash == -1) ? path : path.substring(0, slash);
+
+        for (Map.Entry<String, String> file : original.getFileMap().entrySet()) {
+            if (!file.getKey().equals(name)) {
+                tree.add("blob : " + file.getValue() + " : " + file.getKey());
+            }
+        }
+        for (Map.Entry<String, String> folder : original.getTreeMap().entrySet()) {
+            if (!folder.getKey().equals(name)) {
+                tree.add("tree : " + folder.getValue() + " : " + folder.getKey());
+            }
+        }
 
-        // Clears the index file
-        Utils.writeFile(indexPath.toString(), "");
+        if (slash == -1) {
+            if (blobHash != null) {
+                tree.add("blob : " + blobHash + " : " + name);
+            }
+        } else {
+            String subtree = original.getTreeHash(name);
+            if (subtree != null || blobHash != null) {
+                tree.add("tree : " + setTreeFile(subtree, path.substring(slash + 1), blobHash) + " : " + name);
+            }
+        }
 
-        return tree.writeToObjects();
+        String newHash = tree.writeToObjects();
+        referenced.add(newHash);
+        return newHash;
     }
 
     public String getHash() {
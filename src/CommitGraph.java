@@ -0,0 +1,414 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact copy of the history, so it can be walked without reading commit
+ * objects.
+ *
+ * The file starts with a "CGPH" signature and a version, followed by a fanout
+ * table of 256 counts (entry i is the number of commits whose first byte is at
+ * most i), then one fixed size record per commit sorted by commit ID, and
+ * ends with the SHA-1 of everything before it. Each record is the commit ID,
+ * its tree ID, the position of its parent's record (-1 for none) and its
+ * generation: 1 for a commit without a parent, and one more than its parent
+ * otherwise. A commit can only be an ancestor of commits with a higher
+ * generation, which lets walks stop early.
+ *
+ * The file is memory mapped, so lookups do not need any reads. Its checksum is
+ * checked once when it is opened.
+ */
+public class CommitGraph {
+    static final byte[] SIGNATURE = "CGPH".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+
+    static final int ID_LENGTH = 20;
+    static final int FANOUT_OFFSET = 8;
+    static final int RECORDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    static final int RECORD_LENGTH = 2 * ID_LENGTH + 8;
+    static final int CHECKSUM_LENGTH = 20;
+    static final int NO_PARENT = -1;
+
+    // Loaded graphs, so every part of the program shares one mapping of each file
+    private static final Map<Path, CommitGraph> graphs = new ConcurrentHashMap<Path, CommitGraph>();
+
+    protected Path graphPath;
+
+    private MappedByteBuffer graph;
+    private int commitCount;
+    private Object fileKey;
+    private long size, modifiedTime;
+
+    /**
+     * Opens a commit-graph file.
+     *
+     * @param graphPath
+     * @throws IOException If the file is not a valid commit-graph
+     */
+    public CommitGraph(Path graphPath) throws IOException {
+        this.graphPath = graphPath;
+
+        BasicFileAttributes attributes = Files.readAttributes(graphPath, BasicFileAttributes.class);
+        fileKey = attributes.fileKey();
+        size = attributes.size();
+        modifiedTime = attributes.lastModifiedTime().toMillis();
+
+        try (FileChannel channel = FileChannel.open(graphPath, StandardOpenOption.READ)) {
+            graph = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (graph.capacity() < RECORDS_OFFSET + CHECKSUM_LENGTH) {
+            throw new IOException("Invalid commit-graph " + graphPath);
+        }
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (graph.get(i) != SIGNATURE[i]) {
+                throw new IOException("Invalid commit-graph " + graphPath);
+            }
+        }
+        if (graph.getInt(SIGNATURE.length) != VERSION) {
+            throw new IOException("Unsupported commit-graph version in " + graphPath);
+        }
+
+        commitCount = graph.getInt(FANOUT_OFFSET + 255 * 4);
+        if (graph.capacity() != RECORDS_OFFSET + (long) commitCount * RECORD_LENGTH + CHECKSUM_LENGTH) {
+            throw new IOException("Truncated commit-graph " + graphPath);
+        }
+        if (!hasValidChecksum(graph)) {
+            throw new IOException("Corrupt commit-graph " + graphPath);
+        }
+    }
+
+    /**
+     * Returns the shared graph for a file, opened again if the file has been
+     * rewritten since it was last opened.
+     *
+     * @param graphPath
+     * @return The graph, or null if there is no file.
+     * @throws IOException
+     */
+    public static CommitGraph forPath(Path graphPath) throws IOException {
+        Path key = graphPath.toAbsolutePath().normalize();
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            graphs.remove(key);
+            return null;
+        }
+
+        CommitGraph graph = graphs.get(key);
+        if (graph == null || !Objects.equals(graph.fileKey, attributes.fileKey()) || graph.size != attributes.size()
+                || graph.modifiedTime != attributes.lastModifiedTime().toMillis()) {
+            graph = new CommitGraph(key);
+            graphs.put(key, graph);
+        }
+        return graph;
+    }
+
+    /**
+     * Drops the shared graph for a file. Anyone still holding it can keep using
+     * it.
+     *
+     * @param graphPath
+     */
+    public static void forget(Path graphPath) {
+        graphs.remove(graphPath.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Writes a commit-graph file holding the given commits. Every parent must
+     * be one of the commits.
+     *
+     * @param graphPath
+     * @param commits
+     * @throws Exception
+     */
+    public static void write(Path graphPath, Collection<Record> commits) throws Exception {
+        ArrayList<Record> records = new ArrayList<Record>(commits);
+        records.sort((first, second) -> first.commitId.compareTo(second.commitId));
+
+        HashMap<String, Integer> positions = new HashMap<String, Integer>();
+        for (int i = 0; i < records.size(); i++) {
+            positions.put(records.get(i).commitId, i);
+        }
+
+        int[] parents = new int[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            String parentId = records.get(i).parentId;
+            if (parentId.equals("")) {
+                parents[i] = NO_PARENT;
+            } else if (positions.containsKey(parentId)) {
+                parents[i] = positions.get(parentId);
+            } else {
+                throw new Exception("Parent " + parentId + " of " + records.get(i).commitId + " is not in the graph");
+            }
+        }
+
+        int[] generations = findGenerations(parents);
+
+        int[] fanout = new int[256];
+        for (Record record : records) {
+            fanout[Integer.parseInt(record.commitId.substring(0, 2), 16)]++;
+        }
+        for (int i = 1; i < 256; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                RECORDS_OFFSET + records.size() * RECORD_LENGTH + CHECKSUM_LENGTH);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.write(SIGNATURE);
+        output.writeInt(VERSION);
+        for (int count : fanout) {
+            output.writeInt(count);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            output.write(Utils.fromHex(records.get(i).commitId));
+            output.write(Utils.fromHex(records.get(i).treeId));
+            output.writeInt(parents[i]);
+            output.writeInt(generations[i]);
+        }
+        output.write(MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray()));
+
+        try (LockFile lock = LockFile.acquire(graphPath)) {
+            lock.commit(bytes.toByteArray());
+        }
+    }
+
+    // True if the SHA-1 at the end of a mapped file matches everything before it
+    static boolean hasValidChecksum(ByteBuffer file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        ByteBuffer contents = file.duplicate();
+        contents.position(0).limit(file.capacity() - CHECKSUM_LENGTH);
+        digest.update(contents);
+
+        byte[] checksum = new byte[CHECKSUM_LENGTH];
+        file.get(file.capacity() - CHECKSUM_LENGTH, checksum);
+        return MessageDigest.isEqual(digest.digest(), checksum);
+    }
+
+    // Works out generations without recursion, since histories can be far
+    // deeper than the stack
+    private static int[] findGenerations(int[] parents) {
+        int[] generations = new int[parents.length];
+        ArrayList<Integer> chain = new ArrayList<Integer>();
+
+        for (int i = 0; i < parents.length; i++) {
+            int position = i;
+            while (position != NO_PARENT && generations[position] == 0) {
+                chain.add(position);
+                position = parents[position];
+            }
+
+            int generation = (position == NO_PARENT) ? 0 : generations[position];
+            for (int j = chain.size() - 1; j >= 0; j--) {
+                generations[chain.get(j)] = ++generation;
+            }
+            chain.clear();
+        }
+
+        return generations;
+    }
+
+    /**
+     * Returns the position of a commit's record.
+     *
+     * @param hash
+     * @return Position, or -1 if the commit is not in the graph.
+     */
+    public int findPosition(String hash) {
+        byte[] id;
+        try {
+            id = Utils.fromHex(hash);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        if (id.length != ID_LENGTH) {
+            return -1;
+        }
+
+        int first = id[0] & 0xff;
+        int low = (first == 0) ? 0 : graph.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int high = graph.getInt(FANOUT_OFFSET + first * 4) - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareId(middle, id);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    public boolean contains(String hash) {
+        return findPosition(hash) >= 0;
+    }
+
+    public String getCommitId(int position) {
+        return readId(recordOffset(position));
+    }
+
+    public String getTreeId(int position) {
+        return readId(recordOffset(position) + ID_LENGTH);
+    }
+
+    // Position of the parent's record, or NO_PARENT
+    public int getParent(int position) {
+        return graph.getInt(recordOffset(position) + 2 * ID_LENGTH);
+    }
+
+    public int getGeneration(int position) {
+        return graph.getInt(recordOffset(position) + 2 * ID_LENGTH + 4);
+    }
+
+    public int getCommitCount() {
+        return commitCount;
+    }
+
+    // SHA-1 at the end of the file, which identifies this version of the graph
+    public byte[] getChecksum() {
+        byte[] checksum = new byte[CHECKSUM_LENGTH];
+        graph.get(graph.capacity() - CHECKSUM_LENGTH, checksum);
+        return checksum;
+    }
+
+    /**
+     * Follows parents from a commit until reaching one whose generation is no
+     * higher than the given one.
+     *
+     * @param position
+     * @param generation
+     * @return Position reached, or NO_PARENT if the history ran out first.
+     */
+    public int walkBack(int position, int generation) {
+        while (position != NO_PARENT && getGeneration(position) > generation) {
+            position = getParent(position);
+        }
+        return position;
+    }
+
+    /**
+     * Returns true if a commit is the other commit or one of its ancestors.
+     *
+     * @param ancestor
+     * @param descendant
+     * @return
+     */
+    public boolean isAncestor(int ancestor, int descendant) {
+        return walkBack(descendant, getGeneration(ancestor)) == ancestor;
+    }
+
+    /**
+     * Returns the newest commit which is an ancestor of both commits.
+     *
+     * @param first
+     * @param second
+     * @return Position of the merge base, or NO_PARENT if the commits share no
+     *         history.
+     */
+    public int getMergeBase(int first, int second) {
+        // Commits only have one parent, so once both sides are at the same
+        // generation they step back together
+        first = walkBack(first, getGeneration(second));
+        if (first == NO_PARENT) {
+            return NO_PARENT;
+        }
+        second = walkBack(second, getGeneration(first));
+
+        while (first != second && first != NO_PARENT && second != NO_PARENT) {
+            first = getParent(first);
+            second = getParent(second);
+        }
+        return (first == second) ? first : NO_PARENT;
+    }
+
+    /**
+     * Returns every record in the graph, so a new graph can be written from
+     * this one without reading any commit objects.
+     *
+     * @return
+     */
+    public List<Record> getRecords() {
+        ArrayList<Record> records = new ArrayList<Record>(commitCount);
+        for (int i = 0; i < commitCount; i++) {
+            int parent = getParent(i);
+            records.add(new Record(getCommitId(i), getTreeId(i), (parent == NO_PARENT) ? "" : getCommitId(parent)));
+        }
+        return records;
+    }
+
+    private int recordOffset(int position) {
+        if (position < 0 || position >= commitCount) {
+            throw new IndexOutOfBoundsException("No commit at position " + position);
+        }
+        return RECORDS_OFFSET + position * RECORD_LENGTH;
+    }
+
+    private String readId(int offset) {
+        byte[] id = new byte[ID_LENGTH];
+        graph.get(offset, id);
+        return Utils.toHex(id);
+    }
+
+    private int compareId(int position, byte[] id) {
+        int base = recordOffset(position);
+
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int difference = (graph.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * One commit to be written to a commit-graph.
+     */
+    public static class Record {
+        final String commitId, treeId, parentId;
+
+        /**
+         * @param commitId
+         * @param treeId
+         * @param parentId Parent commit, or an empty string for none
+         */
+        public Record(String commitId, String treeId, String parentId) {
+            this.commitId = commitId;
+            this.treeId = treeId;
+            this.parentId = parentId;
+        }
+    }
+}
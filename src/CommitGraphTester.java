@@ -0,0 +1,231 @@
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class CommitGraphTester {
+    @BeforeEach
+    void deleteEverything() throws Exception {
+        // Queued object writes must land before their folder is deleted
+        ObjectStores.forDirectory("project/objects").sync();
+        Utils.deleteDirectory("project");
+    }
+
+    @Test
+    @DisplayName("Verify history is walked from the commit-graph without reading commits")
+    void testGraphQueries() throws Exception {
+        InMemoryObjectStore store = new InMemoryObjectStore();
+        Git git = new Git("project", store);
+        try {
+            git.init();
+            ArrayList<Commit> commits = new ArrayList<Commit>();
+            for (int i = 1; i <= 3; i++) {
+                Utils.writeFile("project/file" + i, "file" + i);
+                git.addFile("file" + i);
+                commits.add(new Commit("Wyatt", "c" + i, "project"));
+            }
+            assertEquals(3, git.writeCommitGraph());
+
+            // Made after the graph was written, so it is only found by reading it
+            Utils.writeFile("project/file4", "file4");
+            git.addFile("file4");
+            commits.add(new Commit("Wyatt", "c4", "project"));
+
+            String c1 = commits.get(0).getHash(), c2 = commits.get(1).getHash(), c3 = commits.get(2).getHash(),
+                    c4 = commits.get(3).getHash();
+
+            // Confirm the commits in the graph are never read
+            store.remove(c1);
+            store.remove(c2);
+            store.remove(c3);
+
+            assertEquals(List.of(c4, c3, c2, c1), hashes(git.log(c4)));
+            assertEquals(commits.get(1).getTree(), git.getCommitTree(c2));
+
+            assertTrue(git.isAncestor(c1, c4));
+            assertTrue(git.isAncestor(c3, c3));
+            assertTrue(git.isAncestor(c3, c4));
+            assertFalse(git.isAncestor(c4, c2));
+            assertFalse(git.isAncestor(c3, c1));
+
+            assertEquals(c2, git.getMergeBase(c4, c2));
+            assertEquals(c2, git.getMergeBase(c2, c3));
+            assertEquals(c4, git.getMergeBase(c4, c4));
+
+            // Confirm only the new commit is read when the graph is written again
+            assertEquals(4, git.writeCommitGraph());
+            assertTrue(CommitGraph.forPath(Paths.get("project/commit-graph")).contains(c4));
+        } finally {
+            ObjectStores.unregister(Paths.get("project/objects"));
+        }
+    }
+
+    @Test
+    @DisplayName("Verify ancestry and merge bases are found quickly in long histories")
+    void testLargeGraph() throws Exception {
+        int count = 100000;
+        ArrayList<String> ids = new ArrayList<String>(count);
+        ArrayList<CommitGraph.Record> records = new ArrayList<CommitGraph.Record>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(Utils.hashString("commit " + i));
+            records.add(new CommitGraph.Record(ids.get(i), Utils.hashString("tree " + i),
+                    (i == 0) ? "" : ids.get(i - 1)));
+        }
+
+        Path graphPath = Paths.get("project/commit-graph");
+        CommitGraph.write(graphPath, records);
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+
+        assertEquals(count, graph.getCommitCount());
+        int first = graph.findPosition(ids.get(0));
+        int middle = graph.findPosition(ids.get(count / 2));
+        int last = graph.findPosition(ids.get(count - 1));
+
+        assertEquals(1, graph.getGeneration(first));
+        assertEquals(count, graph.getGeneration(last));
+        assertEquals(Utils.hashString("tree " + (count / 2)), graph.getTreeId(middle));
+        assertEquals(ids.get(count / 2 - 1), graph.getCommitId(graph.getParent(middle)));
+        assertEquals(-1, graph.findPosition(Utils.hashString("missing")));
+
+        assertTrue(graph.isAncestor(first, last));
+        assertFalse(graph.isAncestor(last, first));
+        assertEquals(middle, graph.getMergeBase(middle, last));
+    }
+
+    @Test
+    @DisplayName("Verify damaged commit-graph files are rejected")
+    void testInvalidGraph() throws Exception {
+        Path graphPath = Paths.get("project/commit-graph");
+        CommitGraph.write(graphPath, List.of(new CommitGraph.Record(Utils.hashString("c1"),
+                Utils.hashString("t1"), "")));
+        assertEquals(1, CommitGraph.forPath(graphPath).getCommitCount());
+
+        Utils.writeFile("project/commit-graph", "not a commit-graph file at all");
+        assertThrows(Exception.class, () -> CommitGraph.forPath(graphPath));
+
+        // Confirm a single flipped bit is caught by the checksum
+        CommitGraph.write(graphPath, List.of(new CommitGraph.Record(Utils.hashString("c1"),
+                Utils.hashString("t1"), "")));
+        byte[] contents = Files.readAllBytes(graphPath);
+        contents[CommitGraph.RECORDS_OFFSET + 2 * CommitGraph.ID_LENGTH + 7] ^= 1;
+        Files.write(graphPath, contents);
+        assertThrows(Exception.class, () -> CommitGraph.forPath(graphPath));
+
+        // Confirm parents outside the graph are refused when writing
+        assertThrows(Exception.class, () -> CommitGraph.write(graphPath,
+                List.of(new CommitGraph.Record(Utils.hashString("c2"), Utils.hashString("t2"), Utils.hashString("c1")))));
+    }
+
+    @Test
+    @DisplayName("Verify path history skips commits ruled out by their changed path filters")
+    void testPathHistory() throws Exception {
+        InMemoryObjectStore store = new InMemoryObjectStore();
+        Git git = new Git("project", store);
+        try {
+            git.init();
+            Utils.writeFile("project/file1", "file1");
+            Utils.writeFile("project/folder/a", "a");
+            git.addFile("file1");
+            git.addDirectory("folder");
+            String c1 = new Commit("Wyatt", "c1", "project").getHash();
+
+            Utils.writeFile("project/file2", "file2");
+            git.addFile("file2");
+            Commit c2 = new Commit("Wyatt", "c2", "project");
+
+            Utils.writeFile("project/folder/a", "changed");
+            git.addDirectory("folder");
+            String c3 = new Commit("Wyatt", "c3", "project").getHash();
+
+            Utils.writeFile("project/file1", "changed");
+            git.addFile("file1");
+            String c4 = new Commit("Wyatt", "c4", "project").getHash();
+
+            assertEquals(List.of(c4, c1), hashes(git.history("file1")));
+
+            assertEquals(4, git.writePathFilters());
+            // Confirm filters are only built for new commits
+            assertEquals(0, git.writePathFilters());
+
+            CommitGraph graph = CommitGraph.forPath(Paths.get("project/commit-graph"));
+            PathFilters filters = PathFilters.forPath(Paths.get("project/changed-paths"));
+            assertTrue(filters.isFor(graph));
+            assertTrue(filters.mightContain(graph.findPosition(c3), "folder/a"));
+            assertTrue(filters.mightContain(graph.findPosition(c3), "folder"));
+            assertFalse(filters.mightContain(graph.findPosition(c2.getHash()), "file1"));
+
+            // Confirm c2 and c3 are passed over, since comparing c3 with its parent
+            // would read c2's tree
+            byte[] c2Tree = store.get(c2.getTree());
+            store.remove(c2.getTree());
+            ObjectCache.getShared().clear();
+            assertEquals(List.of(c4, c1), hashes(git.history("file1")));
+            store.write(c2.getTree(), c2Tree);
+
+            assertEquals(List.of(c2.getHash()), hashes(git.history("file2")));
+            assertEquals(List.of(c3, c1), hashes(git.history("folder/a")));
+            assertEquals(List.of(c3, c1), hashes(git.history("folder/")));
+            assertEquals(List.of(), hashes(git.history("missing")));
+        } finally {
+            ObjectStores.unregister(Paths.get("project/objects"));
+        }
+    }
+
+    @Test
+    @DisplayName("Verify changed path filters keep to their false positive rate")
+    void testPathFilterRate() throws Exception {
+        PathFilters.Settings settings = PathFilters.Settings.forRate(0.01, 2000);
+        ArrayList<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            paths.add("folder/file" + i);
+        }
+
+        String commit = Utils.hashString("c1");
+        Path graphPath = Paths.get("project/commit-graph");
+        CommitGraph.write(graphPath, List.of(new CommitGraph.Record(commit, Utils.hashString("t1"), "")));
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+
+        Path filtersPath = Paths.get("project/changed-paths");
+        PathFilters.write(filtersPath, graph, settings, List.of(PathFilters.build(paths, settings)));
+        PathFilters filters = PathFilters.forPath(filtersPath);
+
+        for (String path : paths) {
+            assertTrue(filters.mightContain(0, path));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filters.mightContain(0, "other/file" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 200);
+
+        // Confirm lower rates make larger filters, and large commits are always read
+        PathFilters.Settings strict = PathFilters.Settings.forRate(0.001, 2000);
+        assertTrue(PathFilters.build(paths, strict).length > PathFilters.build(paths, settings).length);
+        PathFilters.Settings small = PathFilters.Settings.forRate(0.01, 10);
+        PathFilters.write(filtersPath, graph, small, List.of(PathFilters.build(paths, small)));
+        assertTrue(PathFilters.forPath(filtersPath).mightContain(0, "other/file0"));
+
+        // Confirm a damaged filter is caught by the checksum
+        PathFilters.forget(filtersPath);
+        byte[] contents = Files.readAllBytes(filtersPath);
+        contents[contents.length - PathFilters.CHECKSUM_LENGTH - 1] ^= 1;
+        Files.write(filtersPath, contents);
+        assertThrows(Exception.class, () -> PathFilters.forPath(filtersPath));
+
+        assertThrows(Exception.class, () -> PathFilters.Settings.forRate(1.5, 10));
+    }
+
+    private static List<String> hashes(Stream<CommitView> commits) {
+        return commits.map(CommitView::getHash).toList();
+    }
+}
@@ -1,6 +1,8 @@
 import static org.junit.Assert.*;
 
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
@@ -10,6 +12,8 @@ import org.junit.jupiter.api.DisplayName;
 public class CommitTester {
     @BeforeAll
     static void setupBeforeClass() throws Exception {
+        // Queued object writes must land before their folder is deleted
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Git git = new Git();
         git.init();
@@ -17,9 +21,11 @@ public class CommitTester {
 
     @BeforeEach
     void deleteFolders() throws Exception {
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Utils.deleteFile("index");
         Utils.deleteFile("HEAD");
+        ObjectStores.forDirectory("project/objects").sync();
         Utils.deleteDirectory("project");
     }
 
@@ -39,10 +45,10 @@ public class CommitTester {
         String treeHash = commit.createTree();
 
         // Confirm the empty tree has the correct hash
-        assertEquals(treeHash, "70246bde7d6bb9bdadc1a69206354b0e54afc709");
+        assertEquals(treeHash, "4b825dc642cb6eb9a060e54bf8d69288fbee4904");
 
         // Confirm the tree object file was created
-        assertTrue(Utils.exists("objects/70246bde7d6bb9bdadc1a69206354b0e54afc709"));
+        assertTrue(Utils.exists("objects/4b/825dc642cb6eb9a060e54bf8d69288fbee4904"));
     }
 
     @Test
@@ -51,23 +57,18 @@ public class CommitTester {
         new Commit("Buddy the Wolverine",
                 "Did incredible things.", "");
 
-        String commitString = "70246bde7d6bb9bdadc1a69206354b0e54afc709\n" +
+        String commitString = "4b825dc642cb6eb9a060e54bf8d69288fbee4904\n" +
                 "\n" +
                 "Buddy the Wolverine\n" +
                 Commit.getDate() + "\n" +
                 "Did incredible things.";
-        String commitStringHash = Utils.hashString(commitString);
-        String finalString = "70246bde7d6bb9bdadc1a69206354b0e54afc709\n" +
-                "\n\n" +
-                "Buddy the Wolverine\n" +
-                Commit.getDate() + "\n" +
-                "Did incredible things.";
+        String commitStringHash = Utils.hashObject("commit", commitString);
 
         // Confirm the hash of the file created is correct
-        assertTrue(Utils.exists("objects/" + commitStringHash));
+        assertTrue(Utils.objectExists("objects", commitStringHash));
 
-        // Confirm the object file contents match what is expected
-        assertEquals(finalString,
+        // Confirm the object file contents are exactly what was hashed
+        assertEquals(commitString,
                 Utils.unzipFile("objects/" + commitStringHash));
     }
 
@@ -77,18 +78,19 @@ public class CommitTester {
         assertFalse(Utils.exists("HEAD"));
 
         new Commit("Wyatt Lake", "c1");
-        String commitString = "70246bde7d6bb9bdadc1a69206354b0e54afc709\n" +
+        String commitString = "4b825dc642cb6eb9a060e54bf8d69288fbee4904\n" +
                 "\n" +
                 "Wyatt Lake\n" +
                 Commit.getDate() + "\n" +
                 "c1";
-        String commitStringHash = Utils.hashString(commitString);
+        String commitStringHash = Utils.hashObject("commit", commitString);
 
         assertEquals(Utils.readFile("HEAD"), commitStringHash);
     }
 
     @Test
     public void test1Commit() throws Exception {
+        ObjectStores.forDirectory("project/objects").sync();
         Utils.deleteDirectory("project");
 
         Utils.writeFile("project/file1", "file1");
@@ -102,7 +104,7 @@ public class CommitTester {
         Commit commit = new Commit("Wyatt", "commit1", "project");
 
         // Checking that commit has the correct previous and next SHAs
-        assertTrue(validCommit(commit.getTree(), "", "", "Wyatt", "commit1"));
+        assertTrue(validCommit(commit.getTree(), "", "Wyatt", "commit1"));
 
         String treeContents = Utils.unzipFile("project/objects/" + commit.getTree());
 
@@ -131,18 +133,20 @@ public class CommitTester {
         Commit c2 = new Commit("Wyatt", "c2", "project");
 
         // Checking that commit has the correct previous and next SHAs
-        assertTrue(validCommit(c2.getTree(), c1.getHash(), "", "Wyatt", "c2"));
+        assertTrue(validCommit(c2.getTree(), c1.getHash(), "Wyatt", "c2"));
 
-        // Checking that the previous commit has been updated to point to the current
-        // commit
-        assertTrue(Utils.unzipFile("project/objects/" + c1.getHash())
-                .contains(c2.getHash()));
+        // Checking that the previous commit is linked to the current commit without
+        // being changed
+        assertEquals(List.of(c2.getHash()), git.getChildren(c1.getHash()));
+        assertFalse(Utils.unzipFile("project/objects/" + c1.getHash()).contains(c2.getHash()));
 
         String c2TreeContents = Utils.unzipFile("project/objects/" + c2.getTree());
 
-        // Checking that the tree file has the correct contents
-        assertTrue(c2TreeContents.contains("file3") && c2TreeContents.contains("folder1")
-                && c2TreeContents.contains("tree : 96aead6804e98650f524020af7eb6dda7b5e37e5"));
+        // Checking that the tree file is a complete snapshot without a link to the
+        // previous commit's tree
+        Tree c2Tree = Tree.parseTreeFile(c2TreeContents);
+        assertTrue(c2Tree.containsFile("file1") && c2Tree.containsFile("file2") && c2Tree.containsFile("file3")
+                && c2Tree.getTreeHash("folder1") != null && c2Tree.getPreviousTreeHash().equals(""));
     }
 
     @Test
@@ -173,18 +177,16 @@ public class CommitTester {
         Commit c3 = new Commit("Wyatt", "c3", "project");
 
         // Checking that commit has the correct previous and next SHAs
-        assertTrue(validCommit(c3.getTree(), c2.getHash(), "", "Wyatt", "c3"));
+        assertTrue(validCommit(c3.getTree(), c2.getHash(), "Wyatt", "c3"));
 
-        // Checking that the previous commit has been updated to point to the current
-        // commit
-        assertTrue(Utils.unzipFile("project/objects/" + c2.getHash())
-                .contains(c3.getHash()));
+        // Checking that the previous commit is linked to the current commit
+        assertEquals(List.of(c3.getHash()), git.getChildren(c2.getHash()));
 
         String c3TreeContents = Utils.unzipFile("project/objects/" + c3.getTree());
 
         // Checking that the tree file has the correct contents
-        assertTrue(c3TreeContents.contains("folder2")
-                && c3TreeContents.contains("tree : 333d75d4368ad760435262cb9800327415d7ac97"));
+        assertTrue(c3TreeContents.contains("folder2") && c3TreeContents.contains("folder1")
+                && c3TreeContents.contains("file1") && !c3TreeContents.contains("tree : " + c2.getTree()));
 
         Utils.writeFile("project/folder3/folder4/file7", "file7");
         Utils.writeFile("project/folder3/file8", "file8");
@@ -194,17 +196,21 @@ public class CommitTester {
         Commit c4 = new Commit("Wyatt", "c4", "project");
 
         // Checking that commit has the correct previous and next SHAs
-        assertTrue(validCommit(c4.getTree(), c3.getHash(), "", "Wyatt", "c4"));
+        assertTrue(validCommit(c4.getTree(), c3.getHash(), "Wyatt", "c4"));
 
-        // Checking that the previous commit has been updated to point to the current
-        // commit
-        assertTrue(Utils.unzipFile("project/objects/" + c3.getHash()).contains(c4.getHash()));
+        // Checking that the previous commit is linked to the current commit
+        assertEquals(List.of(c4.getHash()), git.getChildren(c3.getHash()));
+        assertEquals(List.of(), git.getChildren(c4.getHash()));
 
         String c4TreeContents = Utils.unzipFile("project/objects/" + c4.getTree());
 
-        // Checking that the tree file has the correct contents
-        assertTrue(c4TreeContents.contains("folder3")
-                && c4TreeContents.contains("tree : " + c3.getTree()));
+        // Checking that the tree file has the correct contents, sharing the unchanged
+        // folders with the previous snapshot
+        Tree c3Tree = Tree.parseTreeFile(c3TreeContents);
+        Tree c4Tree = Tree.parseTreeFile(c4TreeContents);
+        assertTrue(c4TreeContents.contains("folder3") && c4Tree.getPreviousTreeHash().equals(""));
+        assertEquals(c3Tree.getTreeHash("folder1"), c4Tree.getTreeHash("folder1"));
+        assertEquals(c3Tree.getTreeHash("folder2"), c4Tree.getTreeHash("folder2"));
     }
 
     @Test
@@ -225,8 +231,8 @@ public class CommitTester {
         assertTrue(c1Tree.containsFile("f1") && c1Tree.containsFile("f2"));
 
         // Making sure the commit tree files are hashed in the objects folder
-        assertTrue(Utils.exists("objects/" + Utils.getHashedZip("f1"))
-                && Utils.exists("objects/" + Utils.getHashedZip("f2")));
+        assertTrue(Utils.objectExists("objects", Utils.hashObject("blob", "f1"))
+                && Utils.objectExists("objects", Utils.hashObject("blob", "f2")));
 
         Utils.writeFile("f1", "f1_edited");
         Utils.writeFile("f3", "f3");
@@ -256,19 +262,18 @@ public class CommitTester {
 
         Tree c3Tree = Tree.parseTreeFile(Utils.unzipFile("objects/" + c3.getTree()));
 
-        // Making sure the commit tree contains new files and has its parent set to c2's
-        // tree
-        assertTrue(c3Tree.getPreviousTreeHash().equals(c2.getTree())
-                && c3Tree.containsFile("f4") && c3Tree.containsFile("f5"));
+        // Making sure the commit tree is a complete snapshot with the new files
+        assertTrue(c3Tree.getPreviousTreeHash().equals("") && c3Tree.containsFile("f1") && c3Tree.containsFile("f2")
+                && c3Tree.containsFile("f3") && c3Tree.containsFile("f4") && c3Tree.containsFile("f5"));
 
         git.deleteFile("f4");
 
         Commit c4 = new Commit("Wyatt", "c4");
         Tree c4Tree = Tree.parseTreeFile(Utils.unzipFile("objects/" + c4.getTree()));
 
-        // Ensuring c4's tree has ancestor c2 and also contains f3, f5 but not f4
-        assertTrue(c4Tree.getPreviousTreeHash().equals(c2.getTree())
-                && c4Tree.containsFile("f5") && !c4Tree.containsFile("f4"));
+        // Ensuring c4's tree contains f1, f2, f3, f5 but not f4
+        assertTrue(c4Tree.getPreviousTreeHash().equals("") && c4Tree.containsFile("f1") && c4Tree.containsFile("f2")
+                && c4Tree.containsFile("f3") && c4Tree.containsFile("f5") && !c4Tree.containsFile("f4"));
 
         Utils.writeFile("f2", "f2_edited");
 
@@ -278,7 +283,7 @@ public class CommitTester {
         Commit c5 = new Commit("Wyatt", "c5");
         Tree c5Tree = Tree.parseTreeFile(Utils.unzipFile("objects/" + c5.getTree()));
 
-        // Ensuring c5's tree has no ancestor and contains f2, f3, f5 but not f1, f4
+        // Ensuring c5's tree contains f2, f3, f5 but not f1, f4
         assertTrue(c5Tree.getPreviousTreeHash().equals("")
                 && c5Tree.containsFile("f2") && c5Tree.containsFile("f3") && c5Tree.containsFile("f5")
                 && !c5Tree.containsFile("f1")
@@ -290,17 +295,136 @@ public class CommitTester {
         assertEquals(Utils.unzipFile("objects/" + c5Tree.getFileHash("f5")), "f5");
     }
 
+    @Test
+    @DisplayName("Verify child links are rebuilt for repositories without them and repaired when lost")
+    public void testRebuildChildren() throws Exception {
+        Utils.writeFile("project/file1", "file1");
+        Utils.writeFile("project/file2", "file2");
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1");
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+        git.addFile("file2");
+        Commit c2 = new Commit("Wyatt", "c2", "project");
+
+        // Confirm the links are found again from the history of HEAD
+        Utils.deleteFile("project/children");
+        assertEquals(List.of(c2.getHash()), git.getChildren(c1.getHash()));
+        assertEquals(c1.getHash() + " " + c2.getHash() + "\n", Utils.readFile("project/children"));
+
+        // Confirm later commits are appended
+        Utils.writeFile("project/file3", "file3");
+        git.addFile("file3");
+        Commit c3 = new Commit("Wyatt", "c3", "project");
+        assertEquals(List.of(c3.getHash()), git.getChildren(c2.getHash()));
+
+        // Confirm a link lost between moving HEAD and appending it is put back,
+        // even once later commits have been linked
+        Utils.writeFile("project/children", c1.getHash() + " " + c2.getHash() + "\n");
+        Utils.writeFile("project/file4", "file4");
+        git.addFile("file4");
+        Commit c4 = new Commit("Wyatt", "c4", "project");
+        assertEquals(List.of(c3.getHash()), git.getChildren(c2.getHash()));
+        assertEquals(List.of(c4.getHash()), git.getChildren(c3.getHash()));
+        assertEquals(List.of(c2.getHash()), git.getChildren(c1.getHash()));
+    }
+
+    @Test
+    @DisplayName("Verify files inside committed folders can be changed and deleted")
+    public void testSnapshotFolders() throws Exception {
+        Utils.writeFile("project/file1", "file1");
+        Utils.writeFile("project/folder/a", "a");
+        Utils.writeFile("project/folder/sub/b", "b");
+        Utils.writeFile("project/other/c", "c");
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1");
+        git.addDirectory("folder");
+        git.addDirectory("other");
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        Utils.writeFile("project/file1", "file1 again");
+        Utils.writeFile("project/folder/sub/b", "b again");
+        git.addFile("file1");
+        git.editFile("folder/sub/b");
+        git.deleteFile("folder/a");
+        Utils.deleteFile("project/folder/a");
+        Commit c2 = new Commit("Wyatt", "c2", "project");
+
+        // Confirm only the changed folder was rewritten
+        Tree c1Tree = Tree.parseTreeFile(Utils.unzipFile("project/objects/" + c1.getTree()));
+        Tree c2Tree = Tree.parseTreeFile(Utils.unzipFile("project/objects/" + c2.getTree()));
+        assertEquals(c1Tree.getTreeHash("other"), c2Tree.getTreeHash("other"));
+        assertNotEquals(c1Tree.getTreeHash("folder"), c2Tree.getTreeHash("folder"));
+
+        // Confirm checkout gives the newest version of every file
+        git.checkout(c2.getHash());
+        assertEquals("file1 again", Utils.readFile("project/file1"));
+        assertEquals("b again", Utils.readFile("project/folder/sub/b"));
+        assertEquals("c", Utils.readFile("project/other/c"));
+        assertFalse(Utils.exists("project/folder/a"));
+
+        git.checkout(c1.getHash());
+        assertEquals("file1", Utils.readFile("project/file1"));
+        assertEquals("a", Utils.readFile("project/folder/a"));
+    }
+
+    @Test
+    @DisplayName("Verify the log is walked lazily and can be filtered and paged")
+    public void testLog() throws Exception {
+        Git git = new Git("project");
+        git.init();
+        String[] hashes = new String[5];
+        for (int i = 0; i < 5; i++) {
+            Utils.writeFile("project/file" + i, "file" + i);
+            git.addFile("file" + i);
+            hashes[4 - i] = new Commit((i % 2 == 0) ? "Wyatt" : "Alex", "c" + i, "project").getHash();
+        }
+
+        // Confirm commits are not read until their fields are asked for
+        List<CommitView> commits = git.log().limit(2).toList();
+        assertEquals(List.of(hashes[0], hashes[1]), commits.stream().map(CommitView::getHash).toList());
+        assertFalse(commits.get(0).isLoaded());
+        assertEquals("c4", commits.get(0).getSummary());
+        assertEquals("Wyatt", commits.get(0).getAuthor());
+        assertEquals(Commit.getDate(), commits.get(0).getDate());
+        assertEquals(hashes[1], commits.get(0).getParent());
+
+        assertEquals(List.of(hashes[2], hashes[4]), git.log(new LogQuery().author("Wyatt").skip(1))
+                .map(CommitView::getHash).toList());
+        assertEquals(List.of(hashes[3]), git.log(new LogQuery().start(hashes[2]).author("Alex"))
+                .map(CommitView::getHash).toList());
+
+        // Confirm dates filter the whole history
+        LocalDate today = LocalDate.now();
+        assertEquals(5, git.log(new LogQuery().since(today).until(today)).count());
+        assertEquals(0, git.log(new LogQuery().since(today.plusDays(1))).count());
+        assertEquals(0, git.log(new LogQuery().until(today.minusDays(1))).count());
+
+        // Confirm paging follows the cursor until the history runs out
+        LogPage first = git.logPage(new LogQuery(), null, 2);
+        assertEquals(List.of(hashes[0], hashes[1]), first.getCommits().stream().map(CommitView::getHash).toList());
+        LogPage second = git.logPage(new LogQuery(), first.getCursor(), 2);
+        assertEquals(List.of(hashes[2], hashes[3]), second.getCommits().stream().map(CommitView::getHash).toList());
+        LogPage third = git.logPage(new LogQuery(), second.getCursor(), 2);
+        assertEquals(List.of(hashes[4]), third.getCommits().stream().map(CommitView::getHash).toList());
+        assertFalse(third.hasNext());
+
+        LogPage authored = git.logPage(new LogQuery().author("Alex"), null, 1);
+        assertEquals(List.of(hashes[1]), authored.getCommits().stream().map(CommitView::getHash).toList());
+        assertEquals(List.of(hashes[3]), git.logPage(new LogQuery().author("Alex"), authored.getCursor(), 1)
+                .getCommits().stream().map(CommitView::getHash).toList());
+    }
+
     // Checks to see if a commit formatted correctly
-    private boolean validCommit(String tree, String previousCommit, String nextCommit, String author,
-            String summary) throws Exception {
+    private boolean validCommit(String tree, String previousCommit, String author, String summary)
+            throws Exception {
         String date = Commit.getDate();
-        String commitPartialString = tree + "\n" + previousCommit + "\n" + author + "\n" + date
-                + "\n" + summary;
-        String commitPartialHash = Utils.hashString(commitPartialString);
-        String commitFullString = tree + "\n" + previousCommit + "\n" + nextCommit + "\n" + author + "\n" + date
-                + "\n"
-                + summary;
-
-        return (Utils.unzipFile("project/objects/" + commitPartialHash).equals(commitFullString));
+        String commitString = tree + "\n" + previousCommit + "\n" + author + "\n" + date + "\n" + summary;
+        String commitHash = Utils.hashObject("commit", commitString);
+
+        return (Utils.unzipFile("project/objects/" + commitHash).equals(commitString));
     }
 }
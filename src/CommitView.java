@@ -0,0 +1,75 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A commit as seen while walking history. Only the hash is known up front:
+ * the parent and tree come from the commit-graph when the commit is in it,
+ * and the commit object is only read the first time the author, date or
+ * summary is asked for.
+ */
+public class CommitView {
+    private final Git git;
+    private final String hash;
+
+    // Author, date and summary, once read
+    private String[] fields;
+
+    CommitView(Git git, String hash) {
+        this.git = git;
+        this.hash = hash;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getParent() throws Exception {
+        return git.getParent(hash);
+    }
+
+    public String getTree() throws Exception {
+        return git.getCommitTree(hash);
+    }
+
+    public String getAuthor() throws Exception {
+        return getFields()[0];
+    }
+
+    // Date the commit was made, formatted like Commit.getDate
+    public String getDate() throws Exception {
+        return getFields()[1];
+    }
+
+    public String getSummary() throws Exception {
+        return getFields()[2];
+    }
+
+    public boolean isLoaded() {
+        return fields != null;
+    }
+
+    private String[] getFields() throws Exception {
+        if (fields == null) {
+            String contents = new String(git.store.get(hash), StandardCharsets.UTF_8);
+            String[] lines = contents.split("\n", 6);
+
+            // Commits made before commits became immutable have their child on the
+            // third line, which is empty or a hash
+            boolean hasChild = lines.length == 6 && (lines[2].equals("") || Utils.isHash(lines[2]));
+            int first = hasChild ? 3 : 2;
+
+            if (hasChild) {
+                fields = new String[] { lines[first], lines[first + 1], lines[first + 2] };
+            } else {
+                // The summary is last, so it keeps any newlines of its own
+                String[] rest = contents.split("\n", 5);
+                fields = new String[] { rest[2], rest[3], rest[4] };
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return hash;
+    }
+}
@@ -1,3 +1,73 @@
 public class Consts {
     public static final boolean COMPRESS_FILES = true;
+
+    // Number of two character folder levels loose objects are sharded into
+    public static final int OBJECT_FANOUT_DEPTH = 1;
+
+    // Longest chain of deltas an object in a pack can be rebuilt through
+    public static final int PACK_MAX_DELTA_DEPTH = 10;
+
+    // Objects larger than this (in bytes) are always packed whole
+    public static final long PACK_DELTA_MAX_SIZE = 64L * 1024 * 1024;
+
+    // Bytes of rebuilt delta bases kept in memory while reading packs
+    public static final long DELTA_BASE_CACHE_SIZE = 32L * 1024 * 1024;
+
+    // Bytes of inflated objects and parsed trees shared through ObjectCache
+    public static final long OBJECT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    // Threads writing queued loose objects, shared by every repository
+    public static final int OBJECT_WRITER_THREADS = 4;
+
+    // Objects which can be queued before callers write their own objects
+    public static final int OBJECT_WRITE_QUEUE_SIZE = 1024;
+
+    // Bytes of queued objects held in memory before callers write their own
+    // objects
+    public static final long OBJECT_WRITE_QUEUE_BYTES = 64L * 1024 * 1024;
+
+    // Files larger than this (in bytes) are written on the caller's thread
+    // instead of being read into memory and queued
+    public static final long WRITE_BEHIND_MAX_SIZE = 1024 * 1024;
+
+    // How long (in milliseconds) to wait for another writer to release HEAD or
+    // the index
+    public static final long LOCK_TIMEOUT_MILLIS = 10000;
+
+    // A lock file which no longer names a running process is taken over once it
+    // has not been touched for this many milliseconds
+    public static final long LOCK_STALE_MILLIS = 60000;
+
+    // Number of locks paths in the index are spread over
+    public static final int INDEX_LOCK_STRIPES = 64;
+
+    // Times a commit is rebuilt when other processes keep moving HEAD
+    public static final int COMMIT_ATTEMPTS = 10;
+
+    // Files modified less than this many milliseconds before they were added
+    // are hashed again next time, since a later change could keep the same
+    // timestamp
+    public static final long RACY_TIMESTAMP_MILLIS = 2000;
+
+    // Threads hashing files when many files are staged at once
+    public static final int STAGING_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Threads writing files when a commit is checked out
+    public static final int CHECKOUT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // How long the index watcher waits for changes to stop before updating the
+    // index
+    public static final long WATCH_DEBOUNCE_MILLIS = 50;
+
+    // Chance a changed path filter says a commit might have changed a path it
+    // did not
+    public static final double PATH_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    // Most changed paths a commit's filter holds, beyond which the commit is
+    // always read by history
+    public static final int PATH_FILTER_MAX_PATHS = 512;
+
+    // Most line changes a diff searches through before reporting the rest of a
+    // changed region as one replacement
+    public static final int LINE_DIFF_MAX_COST = 10000;
 }
@@ -0,0 +1,175 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Creates and applies binary deltas between two versions of an object.
+ *
+ * A delta starts with the lengths of the base and the result, followed by a
+ * list of instructions. An insert instruction adds new bytes to the result and
+ * a copy instruction copies a range of the base into the result.
+ */
+public class Delta {
+    static final int INSERT = 0;
+    static final int COPY = 1;
+
+    // Length of the blocks of the base which are indexed when looking for matches
+    static final int BLOCK_SIZE = 16;
+
+    /**
+     * Creates a delta which turns base into target.
+     *
+     * @param base
+     * @param target
+     * @return
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writeVarint(output, base.length);
+        writeVarint(output, target.length);
+
+        // Index the start of every block in the base by the hash of its contents
+        HashMap<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int i = 0; i + BLOCK_SIZE <= base.length; i += BLOCK_SIZE) {
+            blocks.putIfAbsent(hashBlock(base, i), i);
+        }
+
+        int insertStart = 0;
+        int position = 0;
+
+        while (position + BLOCK_SIZE <= target.length) {
+            Integer match = blocks.get(hashBlock(target, position));
+
+            if (match == null || !blockEquals(base, match, target, position)) {
+                position++;
+                continue;
+            }
+
+            int baseStart = match;
+            int targetStart = position;
+
+            // Extend the match backwards over bytes which would otherwise be inserted
+            while (baseStart > 0 && targetStart > insertStart && base[baseStart - 1] == target[targetStart - 1]) {
+                baseStart--;
+                targetStart--;
+            }
+
+            // Extend the match forwards as far as possible
+            int length = position - targetStart + BLOCK_SIZE;
+            while (baseStart + length < base.length && targetStart + length < target.length
+                    && base[baseStart + length] == target[targetStart + length]) {
+                length++;
+            }
+
+            writeInsert(output, target, insertStart, targetStart - insertStart);
+
+            output.write(COPY);
+            writeVarint(output, baseStart);
+            writeVarint(output, length);
+
+            position = targetStart + length;
+            insertStart = position;
+        }
+
+        writeInsert(output, target, insertStart, target.length - insertStart);
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Applies a delta to a base, returning the target it was created from.
+     *
+     * @param base
+     * @param delta
+     * @return
+     * @throws IOException
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        ByteArrayInputStream input = new ByteArrayInputStream(delta);
+
+        if (readVarint(input) != base.length) {
+            throw new IOException("Delta does not match the length of its base");
+        }
+
+        byte[] result = new byte[(int) readVarint(input)];
+        int position = 0;
+
+        int instruction;
+        while ((instruction = input.read()) >= 0) {
+            if (instruction == INSERT) {
+                int length = (int) readVarint(input);
+                if (input.read(result, position, length) != length) {
+                    throw new EOFException("Delta ended in the middle of an insert");
+                }
+                position += length;
+            } else if (instruction == COPY) {
+                int offset = (int) readVarint(input);
+                int length = (int) readVarint(input);
+                System.arraycopy(base, offset, result, position, length);
+                position += length;
+            } else {
+                throw new IOException("Invalid delta instruction " + instruction);
+            }
+        }
+
+        if (position != result.length) {
+            throw new IOException("Delta result has the wrong length");
+        }
+
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream output, byte[] target, int start, int length) {
+        if (length > 0) {
+            output.write(INSERT);
+            writeVarint(output, length);
+            output.write(target, start, length);
+        }
+    }
+
+    private static int hashBlock(byte[] bytes, int start) {
+        int hash = 0;
+        for (int i = start; i < start + BLOCK_SIZE; i++) {
+            hash = hash * 31 + bytes[i];
+        }
+        return hash;
+    }
+
+    private static boolean blockEquals(byte[] base, int baseStart, byte[] target, int targetStart) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (base[baseStart + i] != target[targetStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes 7 bits at a time, with the high bit set on every byte except the last
+    private static void writeVarint(ByteArrayOutputStream output, long value) {
+        while (value >= 0x80) {
+            output.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long readVarint(ByteArrayInputStream input) throws IOException {
+        long value = 0;
+        int shift = 0;
+
+        while (true) {
+            int next = input.read();
+            if (next < 0) {
+                throw new EOFException("Delta ended in the middle of a number");
+            }
+
+            value |= (long) (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
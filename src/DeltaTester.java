@@ -0,0 +1,47 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class DeltaTester {
+    @Test
+    @DisplayName("Verify deltas rebuild the target exactly")
+    void testRoundTrip() throws Exception {
+        Random random = new Random(42);
+        byte[] base = new byte[50000];
+        random.nextBytes(base);
+
+        // Change a few bytes in the middle and append some new ones
+        byte[] target = new byte[base.length + 100];
+        System.arraycopy(base, 0, target, 0, base.length);
+        target[1000] ^= 1;
+        target[25000] ^= 1;
+        for (int i = base.length; i < target.length; i++) {
+            target[i] = (byte) i;
+        }
+
+        byte[] delta = Delta.create(base, target);
+
+        // Confirm the delta rebuilds the target and is much smaller than it
+        assertArrayEquals(target, Delta.apply(base, delta));
+        assertTrue(delta.length < target.length / 10);
+    }
+
+    @Test
+    @DisplayName("Verify deltas work with empty and unrelated contents")
+    void testEdgeCases() throws Exception {
+        byte[] empty = new byte[0];
+        byte[] text = "some text which has nothing in common with the base".getBytes();
+
+        assertArrayEquals(text, Delta.apply(empty, Delta.create(empty, text)));
+        assertArrayEquals(empty, Delta.apply(text, Delta.create(text, empty)));
+        assertArrayEquals(text, Delta.apply("unrelated".getBytes(), Delta.create("unrelated".getBytes(), text)));
+
+        // Confirm a delta cannot be applied to the wrong base
+        assertThrows(Exception.class, () -> {
+            Delta.apply(empty, Delta.create(text, text));
+        });
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.List;
+
+/**
+ * One file which differs between two trees, found by Git.diff.
+ */
+public class DiffEntry {
+    public enum Change {
+        ADDED, MODIFIED, DELETED
+    }
+
+    private final String path;
+    private final Change change;
+    private final String oldHash, newHash;
+    private final ObjectStore store;
+
+    DiffEntry(String path, String oldHash, String newHash, ObjectStore store) {
+        this.path = path;
+        this.oldHash = oldHash;
+        this.newHash = newHash;
+        this.store = store;
+        this.change = (oldHash == null) ? Change.ADDED : (newHash == null) ? Change.DELETED : Change.MODIFIED;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Change getChange() {
+        return change;
+    }
+
+    // Blob before, or null if the file was added
+    public String getOldHash() {
+        return oldHash;
+    }
+
+    // Blob after, or null if the file was deleted
+    public String getNewHash() {
+        return newHash;
+    }
+
+    /**
+     * Compares the file's lines. Blobs are only read when this is called.
+     *
+     * @return Changed regions, in order.
+     * @throws Exception
+     */
+    public List<LineDiff.Edit> getEdits() throws Exception {
+        return LineDiff.compare(store, oldHash, newHash);
+    }
+
+    // In the style of git diff --name-status
+    @Override
+    public String toString() {
+        return change.name().charAt(0) + "\t" + path;
+    }
+}
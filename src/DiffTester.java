@@ -0,0 +1,160 @@
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class DiffTester {
+    @BeforeEach
+    void deleteEverything() throws Exception {
+        // Queued object writes must land before their folder is deleted
+        ObjectStores.forDirectory("project/objects").sync();
+        Utils.deleteDirectory("project");
+    }
+
+    @Test
+    @DisplayName("Verify commits are compared without opening folders which match")
+    void testDiffCommits() throws Exception {
+        InMemoryObjectStore store = new InMemoryObjectStore();
+        Git git = new Git("project", store);
+        try {
+            git.init();
+            Utils.writeFile("project/file1", "file1");
+            Utils.writeFile("project/folder/a", "a");
+            Utils.writeFile("project/folder/sub/b", "one\ntwo\nthree\nfour");
+            Utils.writeFile("project/other/c", "c");
+            git.addFile("file1");
+            git.addDirectory("folder");
+            git.addDirectory("other");
+            String c1 = new Commit("Wyatt", "c1", "project").getHash();
+
+            Utils.writeFile("project/folder/sub/b", "one\n2\nthree\nfour\nfive");
+            Utils.writeFile("project/file2", "file2");
+            git.addDirectory("folder");
+            git.addFile("file2");
+            git.deleteFile("file1");
+            String c2 = new Commit("Wyatt", "c2", "project").getHash();
+
+            assertEquals(List.of("A\tfile1", "A\tfolder/a", "A\tfolder/sub/b", "A\tother/c"),
+                    names(git.diff("", c1).toList()));
+
+            // Confirm the unchanged folder is never read
+            store.remove(Tree.readTree(Paths.get("project/objects"), git.getCommitTree(c1)).getTreeHash("other"));
+            ObjectCache.getShared().clear();
+
+            List<DiffEntry> entries = git.diff(c1, c2).toList();
+            assertEquals(List.of("D\tfile1", "A\tfile2", "M\tfolder/sub/b"), names(entries));
+            assertEquals(0, git.diff(c2, c2).count());
+
+            List<LineDiff.Edit> edits = entries.get(2).getEdits();
+            assertEquals(2, edits.size());
+            assertEquals("@@ -2,1 +2,1 @@", edits.get(0).toString());
+            assertEquals(List.of("two\n"), edits.get(0).getOldLines());
+            assertEquals(List.of("2\n"), edits.get(0).getNewLines());
+
+            // The last line gained a newline as well as the line after it
+            assertEquals(List.of("four"), edits.get(1).getOldLines());
+            assertEquals(List.of("four\n", "five"), edits.get(1).getNewLines());
+
+            assertEquals(List.of("file1"), entries.get(0).getEdits().get(0).getOldLines());
+        } finally {
+            ObjectStores.unregister(Paths.get("project/objects"));
+        }
+    }
+
+    @Test
+    @DisplayName("Verify line differences are the smallest set of changes")
+    void testLineDiff() throws Exception {
+        List<LineDiff.Edit> edits = LineDiff.diff(List.of("a", "b", "c", "d", "e"),
+                List.of("a", "x", "c", "e", "f"));
+        assertEquals(3, edits.size());
+        assertEquals("@@ -2,1 +2,1 @@", edits.get(0).toString());
+        assertEquals("@@ -4,1 +3,0 @@", edits.get(1).toString());
+        assertEquals("@@ -5,0 +5,1 @@", edits.get(2).toString());
+
+        assertEquals(0, LineDiff.diff(List.of("a"), List.of("a")).size());
+        assertEquals(List.of("a", "b"), LineDiff.diff(List.of(), List.of("a", "b")).get(0).getNewLines());
+
+        // Confirm one change in a large blob is found at the right line
+        StringBuilder before = new StringBuilder(), after = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            before.append("line ").append(i).append("\n");
+            after.append("line ").append(i == 50000 ? "changed" : i).append("\n");
+        }
+        InMemoryObjectStore store = new InMemoryObjectStore();
+        String oldHash = store.put("blob", before.toString().getBytes());
+        String newHash = store.put("blob", after.toString().getBytes());
+
+        edits = LineDiff.compare(store, oldHash, newHash);
+        assertEquals(1, edits.size());
+        assertEquals(50000, edits.get(0).getOldStart());
+        assertEquals(List.of("line changed\n"), edits.get(0).getNewLines());
+    }
+
+    @Test
+    @DisplayName("Verify line ending changes are found and rewritten files are diffed in bounded time")
+    void testLineDiffEdgeCases() throws Exception {
+        InMemoryObjectStore store = new InMemoryObjectStore();
+        String lf = store.put("blob", "a\nb\n".getBytes()), crlf = store.put("blob", "a\r\nb\r\n".getBytes());
+        String noNewline = store.put("blob", "a\nb".getBytes());
+
+        assertEquals(1, LineDiff.compare(store, lf, crlf).size());
+        List<LineDiff.Edit> edits = LineDiff.compare(store, lf, noNewline);
+        assertEquals(1, edits.size());
+        assertEquals(List.of("b\n"), edits.get(0).getOldLines());
+        assertEquals(List.of("b"), edits.get(0).getNewLines());
+
+        // Confirm applying the edits always gives the new lines
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            List<String> before = randomLines(random), after = randomLines(random);
+            assertEquals(after, apply(before, LineDiff.diff(before, after)));
+        }
+
+        // Confirm two files with nothing in common are replaced whole without
+        // searching through every change
+        ArrayList<String> before = new ArrayList<String>(), after = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            before.add("old " + i + "\n");
+            after.add("new " + i + "\n");
+        }
+        edits = LineDiff.diff(before, after);
+        assertEquals(1, edits.size());
+        assertEquals(after, apply(before, edits));
+    }
+
+    private static List<String> randomLines(Random random) {
+        ArrayList<String> lines = new ArrayList<String>();
+        int count = random.nextInt(30);
+        for (int i = 0; i < count; i++) {
+            lines.add(String.valueOf((char) ('a' + random.nextInt(4))));
+        }
+        return lines;
+    }
+
+    // Replaces each edited region, working back from the end so earlier line
+    // numbers still hold
+    private static List<String> apply(List<String> lines, List<LineDiff.Edit> edits) {
+        ArrayList<String> result = new ArrayList<String>(lines);
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            LineDiff.Edit edit = edits.get(i);
+            assertEquals(edit.getOldLines(), result.subList(edit.getOldStart(), edit.getOldEnd()));
+            result.subList(edit.getOldStart(), edit.getOldEnd()).clear();
+            result.addAll(edit.getOldStart(), edit.getNewLines());
+        }
+        return result;
+    }
+
+    private static List<String> names(List<DiffEntry> entries) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (DiffEntry entry : entries) {
+            names.add(entry.toString());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metadata of a file which changes whenever its contents do: size,
+ * modification time, change time and inode. Comparing it with the metadata
+ * recorded in the index tells whether a file has changed without reading it.
+ */
+public class FileStat {
+    // Recorded for files which changed too recently to be trusted
+    static final long SMUDGED_SIZE = -1;
+
+    private final long size, mtime, ctime, inode;
+
+    public FileStat(long size, long mtime, long ctime, long inode) {
+        this.size = size;
+        this.mtime = mtime;
+        this.ctime = ctime;
+        this.inode = inode;
+    }
+
+    /**
+     * Reads the metadata of a file with a single stat call. Platforms without
+     * change times and inodes use the creation time and file key instead.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static FileStat read(Path path) throws IOException {
+        try {
+            Map<String, Object> attributes = Files.readAttributes(path, "unix:size,lastModifiedTime,ctime,ino");
+            return new FileStat((Long) attributes.get("size"), toNanos(attributes.get("lastModifiedTime")),
+                    toNanos(attributes.get("ctime")), (Long) attributes.get("ino"));
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Object key = attributes.fileKey();
+            return new FileStat(attributes.size(), toNanos(attributes.lastModifiedTime()),
+                    toNanos(attributes.creationTime()), (key == null) ? 0 : key.hashCode());
+        }
+    }
+
+    /**
+     * Returns this metadata, or a copy which will never match a file if the
+     * file was modified so recently that a later change could keep the same
+     * timestamp. Such entries are hashed again the next time they are checked.
+     *
+     * @param readAt Time in milliseconds the metadata was read
+     * @return
+     */
+    public FileStat guardRacy(long readAt) {
+        if (TimeUnit.NANOSECONDS.toMillis(mtime) + Consts.RACY_TIMESTAMP_MILLIS >= readAt) {
+            return new FileStat(SMUDGED_SIZE, mtime, ctime, inode);
+        }
+        return this;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModifiedTime() {
+        return mtime;
+    }
+
+    public long getChangeTime() {
+        return ctime;
+    }
+
+    public long getInode() {
+        return inode;
+    }
+
+    public boolean isSmudged() {
+        return size == SMUDGED_SIZE;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FileStat)) {
+            return false;
+        }
+        FileStat stat = (FileStat) other;
+        return size == stat.size && mtime == stat.mtime && ctime == stat.ctime && inode == stat.inode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(size) * 31 + Long.hashCode(mtime);
+    }
+
+    private static long toNanos(Object time) {
+        return ((FileTime) time).to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -1,11 +1,45 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-public class Git {
-    protected Path projectDirectory, gitDirectory, objectsPath, indexPath;
-    static final String[] IGNORED_PATHS = { "objects", "HEAD", "index" };
+public class Git implements AutoCloseable {
+    protected Path projectDirectory, gitDirectory, objectsPath, indexPath, graphPath, filtersPath, sparsePath;
+    protected ObjectStore store;
+    protected Index index;
+    protected ChildIndex children;
+    static final String[] IGNORED_PATHS = { "objects", "HEAD", "index", "children", "commit-graph",
+            "changed-paths", "sparse-checkout", "HEAD.lock", "index.lock", "children.lock", "commit-graph.lock",
+            "changed-paths.lock", "sparse-checkout.lock", "HEAD.lock.takeover", "index.lock.takeover",
+            "children.lock.takeover", "commit-graph.lock.takeover", "changed-paths.lock.takeover",
+            "sparse-checkout.lock.takeover" };
 
     public Git() {
         this("");
@@ -16,6 +50,25 @@ public class Git {
         this.gitDirectory = this.projectDirectory.resolve("");
         this.objectsPath = this.gitDirectory.resolve("objects/");
         this.indexPath = this.gitDirectory.resolve("index");
+        this.graphPath = this.gitDirectory.resolve("commit-graph");
+        this.filtersPath = this.gitDirectory.resolve("changed-paths");
+        this.sparsePath = this.gitDirectory.resolve("sparse-checkout");
+        this.store = ObjectStores.forDirectory(objectsPath);
+        this.index = Index.forPath(indexPath);
+        this.children = ChildIndex.forPath(gitDirectory.resolve("children"));
+    }
+
+    /**
+     * Creates a repository whose objects are kept in the given store instead of
+     * the default loose object store.
+     * 
+     * @param projectDirectory
+     * @param store
+     */
+    public Git(String projectDirectory, ObjectStore store) {
+        this(projectDirectory);
+        this.store = store;
+        ObjectStores.register(objectsPath, store);
     }
 
     /**
@@ -24,28 +77,229 @@ public class Git {
      * @throws Exception
      */
     public void init() throws Exception {
-        if (!Files.exists(objectsPath))
-            Files.createDirectories(objectsPath);
+        store.init();
+        index.init();
+    }
 
-        if (!Files.exists(indexPath))
-            Utils.writeFile(indexPath.toString(), "");
+    /**
+     * Waits for queued objects to be written, then lets go of everything kept
+     * in memory for this repository: its object store and its shared index,
+     * child links, commit-graph and changed-path filters. Processes which open
+     * many short-lived repositories should close each one once no other thread
+     * is using it. Git objects opened on the same folder later start afresh
+     * from the files on disk.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            store.sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for objects to be written");
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            ObjectStores.unregister(objectsPath, store);
+            Index.forget(indexPath);
+            ChildIndex.forget(gitDirectory.resolve("children"));
+            CommitGraph.forget(graphPath);
+            PathFilters.forget(filtersPath);
+            Commit.forget(gitDirectory.resolve("HEAD"));
+        }
     }
 
     /**
-     * Adds a new file to the index map
+     * Adds a new file to the index map. Files whose metadata shows they have
+     * not changed since they were last added are skipped without being read.
      * 
      * @param path
      * @throws Exception
      */
     public void addFile(String path) throws Exception {
+        ReentrantLock lock = index.lockFor(path);
+        lock.lock();
+        try {
+            Index.Entry entry = stageFile(path, null);
+            if (entry != null) {
+                index.addEntry(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds many files to the index. The files are hashed and written to objects
+     * by a pool of workers, and the index is written once at the end, so the
+     * files are either all staged or none are.
+     * 
+     * @param paths Paths of files, relative to the project directory
+     * @return Counts and throughput of the files staged.
+     * @throws Exception
+     */
+    public ProgressStats addAll(Collection<Path> paths) throws Exception {
+        return addAll(paths, null);
+    }
+
+    /**
+     * Adds many files to the index, reporting progress as each file is done.
+     * 
+     * @param paths    Paths of files, relative to the project directory
+     * @param progress Called from the workers after each file, or null
+     * @return Counts and throughput of the files staged.
+     * @throws Exception
+     */
+    public ProgressStats addAll(Collection<Path> paths, Consumer<ProgressStats> progress) throws Exception {
+        ProgressStats stats = new ProgressStats(paths.size());
+        ArrayList<Future<Index.Entry>> results = new ArrayList<Future<Index.Entry>>(paths.size());
+
+        ExecutorService workers = Executors.newFixedThreadPool(Consts.STAGING_THREADS);
+        try {
+            for (Path path : paths) {
+                String indexPath = toIndexPath(path);
+                results.add(workers.submit(() -> {
+                    Index.Entry entry = stageFile(indexPath, stats);
+                    if (progress != null) {
+                        progress.accept(stats);
+                    }
+                    return entry;
+                }));
+            }
+
+            ArrayList<Index.Entry> entries = new ArrayList<Index.Entry>(paths.size());
+            for (Future<Index.Entry> result : results) {
+                Index.Entry entry = result.get();
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+
+            if (!entries.isEmpty()) {
+                index.addEntries(entries);
+            }
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } finally {
+            workers.shutdownNow();
+        }
+
+        stats.finish();
+        return stats;
+    }
+
+    /**
+     * Adds every file in the project whose path matches a glob, such as
+     * "src/**.java".
+     * 
+     * @param glob     Pattern matched against paths relative to the project
+     *                 directory
+     * @param progress Called after each file, or null
+     * @return Counts and throughput of the files staged.
+     * @throws Exception
+     */
+    public ProgressStats addMatching(String glob, Consumer<ProgressStats> progress) throws Exception {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        Path root = projectDirectory.toAbsolutePath();
+
+        ArrayList<Path> matches = new ArrayList<Path>();
+        for (Path path : listFiles(root)) {
+            if (matcher.matches(path)) {
+                matches.add(path);
+            }
+        }
+
+        return addAll(matches, progress);
+    }
+
+    /**
+     * Lists the files in a folder of the project, relative to the project
+     * directory. The repository's own files are never listed, and files
+     * deleted during the walk are left out.
+     * 
+     * @param start
+     * @return
+     * @throws IOException
+     */
+    List<Path> listFiles(Path start) throws IOException {
+        Path root = projectDirectory.toAbsolutePath();
+        ArrayList<Path> files = new ArrayList<Path>();
+
+        Files.walkFileTree(start.toAbsolutePath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                // Objects are written in the background, so the folder is not even walked
+                return isIgnored(root.relativize(directory)) ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                Path path = root.relativize(file);
+                if (attributes.isRegularFile() && !isIgnored(path)) {
+                    files.add(path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+        return files;
+    }
+
+    // Repository files such as the objects folder and index are never staged
+    static boolean isIgnored(Path relative) {
+        return relative.getNameCount() > 0 && !relative.toString().equals("")
+                && Utils.contains(relative.getName(0).toString(), IGNORED_PATHS);
+    }
+
+    // Index paths always use forward slashes
+    private String toIndexPath(Path path) {
+        if (path.isAbsolute()) {
+            path = projectDirectory.toAbsolutePath().relativize(path);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Path part : path) {
+            if (builder.length() > 0) {
+                builder.append("/");
+            }
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+
+    // Hashes a file into objects and returns its new index entry, or null if it
+    // has not changed. The metadata is read before the contents, so a change
+    // made while the file is being hashed is caught the next time it is checked
+    private Index.Entry stageFile(String path, ProgressStats stats) throws Exception {
+        FileStat stat = FileStat.read(projectDirectory.resolve(path));
+        long readAt = System.currentTimeMillis();
+
+        // The object is checked as well, so staging a file again writes it if its
+        // first write failed
+        Index.Entry existing = index.getEntry(path);
+        if (existing != null && existing.isUnchanged(stat) && store.has(existing.getHash())) {
+            if (stats != null) {
+                stats.fileDone(0, true);
+            }
+            return null;
+        }
+
         Blob blob = new Blob(path, projectDirectory.toString());
         blob.writeToObjects();
 
-        String prefix = "\n";
-        if (Utils.readFile(indexPath.toString()).equals("")) {
-            prefix = "";
+        if (stats != null) {
+            stats.fileDone(stat.getSize(), false);
         }
-        Utils.appendToFile(indexPath.toString(), prefix + "blob : " + blob.getHash() + " : " + path);
+        return Index.Entry.blob(blob.getHash(), path, stat.guardRacy(readAt));
     }
 
     /**
@@ -55,15 +309,45 @@ public class Git {
      * @throws Exception
      */
     public void addDirectory(String path) throws Exception {
-        // Create a new tree from the project directory
-        Tree tree = new Tree(projectDirectory.toString());
-        String hash = tree.addDirectory(path);
+        // The folder's tree would leave out the files which are not checked out
+        SparsePatterns sparse = getSparsePatterns();
+        if (sparse != null && !sparse.includesAll(path)) {
+            throw new Exception("Folder " + path + " is only partly checked out, add its files instead");
+        }
+
+        ReentrantLock lock = index.lockFor(path);
+        lock.lock();
+        try {
+            // Create a new tree from the project directory
+            long readAt = System.currentTimeMillis();
+            Map<String, String> hashes = new ConcurrentHashMap<String, String>();
+            Tree tree = new Tree(projectDirectory.toString());
+            String hash = tree.addDirectory(path, hashes);
 
-        String prefix = "\n";
-        if (Utils.readFile(indexPath.toString()).equals("")) {
-            prefix = "";
+            // The files inside are tracked with their metadata, so later checks can
+            // tell they have not changed without reading them. Metadata read after
+            // hashing is only trusted if the file was last changed before hashing began
+            ArrayList<Index.Entry> tracked = new ArrayList<Index.Entry>();
+            for (Map.Entry<String, String> file : hashes.entrySet()) {
+                Path filePath = projectDirectory.resolve(file.getKey());
+                if (Files.isRegularFile(filePath)) {
+                    FileStat stat = FileStat.read(filePath).guardRacy(readAt);
+                    tracked.add(new Index.Entry("blob", file.getValue(), file.getKey(), stat, false));
+                }
+            }
+
+            index.update(map -> {
+                map.put(path, Index.Entry.tree(hash, path));
+                for (Index.Entry entry : tracked) {
+                    Index.Entry existing = map.get(entry.getPath());
+                    if (existing == null || !existing.isStaged()) {
+                        map.put(entry.getPath(), entry);
+                    }
+                }
+            });
+        } finally {
+            lock.unlock();
         }
-        Utils.appendToFile(indexPath.toString(), prefix + "tree : " + hash + " : " + path);
     }
 
     /**
@@ -73,83 +357,872 @@ public class Git {
      * @throws Exception
      */
     public void removeFile(String path) throws Exception {
-        String[] lines = Utils.readFile(indexPath.toString()).split("\n");
+        ReentrantLock lock = index.lockFor(path);
+        lock.lock();
+        try {
+            index.removeEntry("blob", path);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        StringBuilder builder = new StringBuilder();
+    /**
+     * Removes a folder from the index, along with any files or folders inside
+     * it which were added on their own.
+     * 
+     * @param path
+     * @throws Exception
+     */
+    public void removeFolder(String path) throws Exception {
+        ReentrantLock lock = index.lockFor(path);
+        lock.lock();
+        try {
+            index.removePrefix(path);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        for (String line : lines) {
-            String[] splits = line.split(" : ");
-            // Classic De Morgan's Law moment
-            if (!(splits[0].equals("blob") && splits[2].equals(path))) {
-                builder.append(line);
+    /**
+     * Removes several paths from the index, writing it at most once.
+     * 
+     * @param paths
+     * @return Number of entries removed.
+     * @throws Exception
+     */
+    public int removeAll(Collection<String> paths) throws Exception {
+        return index.removeAll(paths);
+    }
+
+    /**
+     * Adds a delete file entry to the index file.
+     * 
+     * @param path
+     * @throws Exception
+     */
+    public void deleteFile(String path) throws Exception {
+        addMarker(Index.Entry.deleted(path));
+    }
+
+    /**
+     * Combines all loose objects into a pack file with a sorted index, which
+     * keeps the number of files in the objects folder small. Edited files are
+     * stored as deltas against their previous version.
+     * 
+     * @return Path to the new pack file, or null if there was nothing to pack.
+     * @throws Exception
+     */
+    public Path repack() throws Exception {
+        return Pack.repack(objectsPath, getPathVersions());
+    }
+
+    /**
+     * Moves loose objects written before the objects folder was sharded into
+     * the sharded layout. Only needs to be run once per repository.
+     * 
+     * @return Number of objects moved.
+     * @throws Exception
+     */
+    public int migrateObjects() throws Exception {
+        store.sync();
+        return Utils.shardObjects(objectsPath.toString());
+    }
+
+    /**
+     * Lists the paths which differ between HEAD, the index and the project.
+     * Staged changes come first, then changes in the project, then files which
+     * have been deleted. Results are found as the stream is read, so callers
+     * can act on the first ones before the scan is done.
+     *
+     * @return
+     * @throws Exception
+     */
+    public Stream<Status> status() throws Exception {
+        return new StatusScanner(this).scan();
+    }
+
+    /**
+     * Starts keeping the index up to date with changes to the project as they
+     * happen. Close the watcher to stop.
+     *
+     * @return
+     * @throws Exception
+     */
+    public IndexWatcher watch() throws Exception {
+        return new IndexWatcher(this);
+    }
+
+    /**
+     * Writes the commit-graph file for the history of HEAD, so history can be
+     * walked without reading commit objects. Commits already in the graph are
+     * copied from it, so only commits made since it was last written are read.
+     * 
+     * @return Number of commits in the graph.
+     * @throws Exception
+     */
+    public int writeCommitGraph() throws Exception {
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+        ArrayList<CommitGraph.Record> records = new ArrayList<CommitGraph.Record>();
+        if (graph != null) {
+            records.addAll(graph.getRecords());
+        }
+
+        String commitHash = getHead();
+        while (!commitHash.equals("") && (graph == null || !graph.contains(commitHash))) {
+            String parent = Commit.getParent(commitHash, store);
+            String treeHash = Commit.getCommitTree(commitHash, projectDirectory.toString());
+            records.add(new CommitGraph.Record(commitHash, treeHash, parent));
+            commitHash = parent;
+        }
+
+        CommitGraph.write(graphPath, records);
+        return records.size();
+    }
+
+    /**
+     * Writes the commit-graph, then a Bloom filter of the paths each commit in
+     * it changed, so history can pass over commits which did not touch a path.
+     * Filters from the last time are kept if they were built with the same
+     * settings, so only commits made since then are compared with their
+     * parents.
+     * 
+     * @return Number of commits whose filters were built.
+     * @throws Exception
+     */
+    public int writePathFilters() throws Exception {
+        return writePathFilters(PathFilters.Settings.forRate(Consts.PATH_FILTER_FALSE_POSITIVE_RATE,
+                Consts.PATH_FILTER_MAX_PATHS));
+    }
+
+    /**
+     * Writes the commit-graph and changed path filters built with the given
+     * settings.
+     * 
+     * @param settings
+     * @return Number of commits whose filters were built.
+     * @throws Exception
+     */
+    public int writePathFilters(PathFilters.Settings settings) throws Exception {
+        // Records move when the graph is rewritten, so old filters are kept by commit
+        HashMap<String, byte[]> existing = new HashMap<String, byte[]>();
+        CommitGraph oldGraph = CommitGraph.forPath(graphPath);
+        PathFilters oldFilters = PathFilters.forPath(filtersPath);
+        if (oldGraph != null && oldFilters != null && oldFilters.isFor(oldGraph)
+                && oldFilters.getSettings().equals(settings)) {
+            for (int i = 0; i < oldGraph.getCommitCount(); i++) {
+                existing.put(oldGraph.getCommitId(i), oldFilters.getFilter(i));
+            }
+        }
+
+        writeCommitGraph();
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+
+        ArrayList<byte[]> filters = new ArrayList<byte[]>(graph.getCommitCount());
+        int built = 0;
+        for (int i = 0; i < graph.getCommitCount(); i++) {
+            byte[] filter = existing.get(graph.getCommitId(i));
+            if (filter == null) {
+                int parent = graph.getParent(i);
+                String parentTree = (parent == CommitGraph.NO_PARENT) ? "" : graph.getTreeId(parent);
+                filter = PathFilters.build(PathFilters.changedPaths(objectsPath, parentTree, graph.getTreeId(i)),
+                        settings);
+                built++;
             }
+            filters.add(filter);
         }
 
-        Utils.writeFile(indexPath.toString(), builder.toString());
+        PathFilters.write(filtersPath, graph, settings, filters);
+        return built;
     }
 
     /**
-     * Removes a folder from the index.
+     * Streams the commits in the history of HEAD which changed a file or
+     * anything inside a folder, newest first. Commits whose changed path filter
+     * rules the path out are passed over without reading their trees.
      * 
-     * @param path
+     * @param path Path of a file or folder inside the project
+     * @return
      * @throws Exception
      */
-    public void removeFolder(String path) throws Exception {
-        String[] lines = Utils.readFile(indexPath.toString()).split("\n");
+    public Stream<CommitView> history(String path) throws Exception {
+        String target = path.replaceAll("/+$", "");
 
-        StringBuilder builder = new StringBuilder();
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+        PathFilters filters = PathFilters.forPath(filtersPath);
+        boolean useFilters = graph != null && filters != null && filters.isFor(graph);
 
-        for (String line : lines) {
-            String[] splits = line.split(" : ");
-            // Classic De Morgan's Law moment
-            if (!(splits[0].equals("tree") && splits[2].equals(path))) {
-                builder.append(line);
+        return log().filter(commit -> LogQuery.unchecked(() -> {
+            if (useFilters) {
+                int position = graph.findPosition(commit.getHash());
+                if (position >= 0 && !filters.mightContain(position, target)) {
+                    return false;
+                }
             }
+
+            String parent = commit.getParent();
+            String before = parent.equals("") ? null : findPathVersion(getCommitTree(parent), target);
+            return !Objects.equals(findPathVersion(commit.getTree(), target), before);
+        }));
+    }
+
+    // Identifies the version of a path in a commit tree: the hash of its blob or
+    // tree, or for folders whose files are staged separately, a list of what is
+    // inside. Returns null if the path is not in the tree
+    private String findPathVersion(String treeHash, String path) throws Exception {
+        TreeMap<String, String> files = new TreeMap<String, String>(), folders = new TreeMap<String, String>();
+        Commit.readSnapshot(objectsPath, treeHash, files, folders);
+
+        if (files.containsKey(path)) {
+            return files.get(path);
+        }
+        if (folders.containsKey(path)) {
+            return folders.get(path);
         }
 
-        Utils.writeFile(indexPath.toString(), builder.toString());
+        // Folders staged separately can be nested, in which case the innermost one
+        // holds the path
+        String holder = null;
+        for (String folder : folders.keySet()) {
+            if (path.startsWith(folder + "/") && (holder == null || folder.length() > holder.length())) {
+                holder = folder;
+            }
+        }
+        if (holder != null) {
+            String hash = folders.get(holder);
+            String[] names = path.substring(holder.length() + 1).split("/");
+            for (int i = 0; i < names.length && hash != null; i++) {
+                Tree tree = Tree.readTree(objectsPath, hash);
+                String fileHash = tree.getFileHash(names[i]);
+                hash = (i == names.length - 1 && fileHash != null) ? fileHash : tree.getTreeHash(names[i]);
+            }
+            return hash;
+        }
+
+        StringBuilder contents = new StringBuilder();
+        for (TreeMap<String, String> entries : List.of(files, folders)) {
+            for (Map.Entry<String, String> entry : entries.subMap(path + "/", path + "0").entrySet()) {
+                contents.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+            }
+        }
+        return (contents.length() == 0) ? null : contents.toString();
     }
 
     /**
-     * Adds a delete file entry to the index file.
+     * Streams the files which differ between two commits, in path order.
+     * Folders whose tree hashes match are passed over without being read, and
+     * blobs are only read when an entry's line differences are asked for.
      * 
-     * @param path
+     * @param oldCommit Commit before, or an empty string for none
+     * @param newCommit Commit after, or an empty string for none
+     * @return
      * @throws Exception
      */
-    public void deleteFile(String path) throws Exception {
-        String prefix = "\n";
-        if (Utils.readFile(indexPath.toString()).equals("")) {
-            prefix = "";
+    public Stream<DiffEntry> diff(String oldCommit, String newCommit) throws Exception {
+        String oldTree = oldCommit.equals("") ? "" : getCommitTree(oldCommit);
+        String newTree = newCommit.equals("") ? "" : getCommitTree(newCommit);
+        return diffTrees(oldTree, newTree);
+    }
+
+    /**
+     * Streams the files which differ between two commit trees, in path order.
+     * 
+     * @param oldTree Tree before, or an empty string for none
+     * @param newTree Tree after, or an empty string for none
+     * @return
+     * @throws Exception
+     */
+    public Stream<DiffEntry> diffTrees(String oldTree, String newTree) throws Exception {
+        return new TreeDiff(objectsPath, store).diff(oldTree, newTree);
+    }
+
+    /**
+     * Returns the parent of a commit, from the commit-graph if the commit is in
+     * it.
+     * 
+     * @param commitHash
+     * @return Parent commit, or an empty string for the first commit.
+     * @throws Exception
+     */
+    public String getParent(String commitHash) throws Exception {
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+        int position = (graph == null) ? -1 : graph.findPosition(commitHash);
+        if (position < 0) {
+            return Commit.getParent(commitHash, store);
+        }
+
+        int parent = graph.getParent(position);
+        return (parent == CommitGraph.NO_PARENT) ? "" : graph.getCommitId(parent);
+    }
+
+    /**
+     * Returns the tree of a commit, from the commit-graph if the commit is in
+     * it.
+     * 
+     * @param commitHash
+     * @return
+     * @throws Exception
+     */
+    public String getCommitTree(String commitHash) throws Exception {
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+        int position = (graph == null) ? -1 : graph.findPosition(commitHash);
+        if (position < 0) {
+            return Commit.getCommitTree(commitHash, projectDirectory.toString());
         }
+        return graph.getTreeId(position);
+    }
+
+    /**
+     * Streams the history of HEAD, newest first.
+     * 
+     * @return
+     * @throws Exception
+     */
+    public Stream<CommitView> log() throws Exception {
+        return log(new LogQuery());
+    }
+
+    /**
+     * Streams a commit and its ancestors, newest first.
+     * 
+     * @param commitHash
+     * @return
+     * @throws Exception
+     */
+    public Stream<CommitView> log(String commitHash) throws Exception {
+        return log(new LogQuery().start(commitHash));
+    }
+
+    /**
+     * Streams the commits matching a query, newest first. Parents are only
+     * followed as the stream is read, and commit objects are only read for
+     * filters or when a commit's author, date or summary is asked for, so
+     * taking the first few commits of a long history stays cheap.
+     * 
+     * @param query
+     * @return
+     * @throws Exception
+     */
+    public Stream<CommitView> log(LogQuery query) throws Exception {
+        String start = (query.start == null) ? getHead() : query.start;
+        Stream<CommitView> commits = walk(start, query).skip(query.skip);
+        return (query.limit < 0) ? commits : commits.limit(query.limit);
+    }
+
+    /**
+     * Returns one page of the commits matching a query. Each page is found by
+     * walking on from the cursor of the one before, so paging through the whole
+     * history never holds more than one page. The query's skip only applies to
+     * the first page and its limit is ignored.
+     * 
+     * @param query
+     * @param cursor   Cursor from the previous page, or null for the first page
+     * @param pageSize
+     * @return
+     * @throws Exception
+     */
+    public LogPage logPage(LogQuery query, String cursor, int pageSize) throws Exception {
+        if (pageSize <= 0) {
+            throw new Exception("Page size must be positive");
+        }
+
+        String start = (cursor != null) ? cursor : (query.start == null) ? getHead() : query.start;
+        long skip = (cursor != null) ? 0 : query.skip;
 
-        Utils.appendToFile(indexPath.toString(), prefix + "*deleted* " + path);
+        List<CommitView> commits = walk(start, query).skip(skip).limit(pageSize).toList();
+        if (commits.size() < pageSize) {
+            return new LogPage(commits, null);
+        }
+
+        String next = commits.get(commits.size() - 1).getParent();
+        return new LogPage(commits, next.equals("") ? null : next);
     }
 
-    public void checkout(String commitHash) throws Exception {
-        Utils.clearDirectory(projectDirectory.toString(), IGNORED_PATHS);
-        String commitTreeHash = Commit.getCommitTree(commitHash, projectDirectory.toString());
-        Tree commitTree = Tree.parseTreeFile(Utils.unzipFile(objectsPath.resolve(commitTreeHash).toString()));
-        checkoutHelper(commitTree, projectDirectory.toString() + ((projectDirectory.toString().equals("")) ? "" : "/"));
+    // Follows parents from a commit, stopping once the query's dates are passed
+    private Stream<CommitView> walk(String start, LogQuery query) {
+        return Stream.iterate(start, hash -> !hash.equals(""), hash -> LogQuery.unchecked(() -> getParent(hash)))
+                .map(hash -> new CommitView(this, hash))
+                .takeWhile(commit -> !LogQuery.unchecked(() -> query.isPast(commit)))
+                .filter(commit -> LogQuery.unchecked(() -> query.matches(commit)));
     }
 
-    private void checkoutHelper(Tree tree, String directory) throws Exception {
-        // Create all files in tree
+    /**
+     * Returns true if a commit is the other commit or one of its ancestors.
+     * Commits in the commit-graph are compared by generation, so the walk stops
+     * as soon as it passes the ancestor's generation.
+     * 
+     * @param ancestor
+     * @param descendant
+     * @return
+     * @throws Exception
+     */
+    public boolean isAncestor(String ancestor, String descendant) throws Exception {
+        GraphCommit start = findInGraph(descendant);
+        GraphCommit target = findInGraph(ancestor);
+
+        // Commits newer than the graph can only be reached by walking the commits
+        // made since
+        for (String commitHash : start.newer) {
+            if (commitHash.equals(ancestor)) {
+                return true;
+            }
+        }
+        if (start.position < 0 || target.position < 0 || !target.newer.isEmpty()) {
+            return false;
+        }
+        return start.graph.isAncestor(target.position, start.position);
+    }
+
+    /**
+     * Returns the newest commit both commits descend from.
+     * 
+     * @param first
+     * @param second
+     * @return The merge base, or an empty string if the commits share no
+     *         history.
+     * @throws Exception
+     */
+    public String getMergeBase(String first, String second) throws Exception {
+        GraphCommit firstStart = findInGraph(first);
+        GraphCommit secondStart = findInGraph(second);
+
+        // A base made since the graph was written is passed on the way back from
+        // both commits
+        HashSet<String> firstNewer = new HashSet<String>(firstStart.newer);
+        for (String commitHash : secondStart.newer) {
+            if (firstNewer.contains(commitHash)) {
+                return commitHash;
+            }
+        }
+
+        if (firstStart.position < 0 || secondStart.position < 0) {
+            return "";
+        }
+        int base = firstStart.graph.getMergeBase(firstStart.position, secondStart.position);
+        return (base == CommitGraph.NO_PARENT) ? "" : firstStart.graph.getCommitId(base);
+    }
+
+    // Where the walk back from a commit enters the commit-graph, and the commits
+    // newer than the graph passed on the way
+    private static class GraphCommit {
+        CommitGraph graph;
+        int position = -1;
+        ArrayList<String> newer = new ArrayList<String>();
+    }
+
+    private GraphCommit findInGraph(String commitHash) throws Exception {
+        GraphCommit result = new GraphCommit();
+        result.graph = CommitGraph.forPath(graphPath);
+
+        while (!commitHash.equals("")) {
+            if (result.graph != null) {
+                result.position = result.graph.findPosition(commitHash);
+                if (result.position >= 0) {
+                    return result;
+                }
+            }
+            result.newer.add(commitHash);
+            commitHash = Commit.getParent(commitHash, store);
+        }
+        return result;
+    }
+
+    // Lists the objects each path has pointed to over the history of HEAD, from
+    // oldest to newest
+    private HashMap<String, List<String>> getPathVersions() throws Exception {
+        HashMap<String, List<String>> versions = new HashMap<String, List<String>>();
+
+        Path headPath = gitDirectory.resolve("HEAD");
+        if (!Files.exists(headPath)) {
+            return versions;
+        }
+
+        List<String> commits = log(Utils.readFile(headPath.toString())).map(CommitView::getHash).toList();
+        for (int i = commits.size() - 1; i >= 0; i--) {
+            addPathVersions(versions, getCommitTree(commits.get(i)), "");
+        }
+
+        return versions;
+    }
+
+    private void addPathVersions(HashMap<String, List<String>> versions, String treeHash, String directory)
+            throws Exception {
+        Tree tree = Tree.readTree(objectsPath, treeHash);
+
         for (HashMap.Entry<String, String> fileEntry : tree.getFileMap().entrySet()) {
-            // Writes the unzipped blob contents to the current directory
-            Utils.writeFile(directory + fileEntry.getKey(),
-                    Utils.unzipFile(objectsPath.resolve(fileEntry.getValue()).toString()));
+            addPathVersion(versions, directory + fileEntry.getKey(), fileEntry.getValue());
         }
 
-        // Recursively create all folders in tree
         for (HashMap.Entry<String, String> treeEntry : tree.getTreeMap().entrySet()) {
-            // Loads the child tree from the hash
-            Tree childTree = Tree.parseTreeFile(Utils.unzipFile(objectsPath.resolve(treeEntry.getValue()).toString()));
+            // Previous commit trees are skipped because every commit is visited anyway
+            if (!treeEntry.getKey().equals("")) {
+                String path = directory + treeEntry.getKey();
+                addPathVersion(versions, path, treeEntry.getValue());
+                addPathVersions(versions, treeEntry.getValue(), path + "/");
+            }
+        }
+    }
 
-            // Runs checkoutHelper with the tree's folder added to the base directory. If
-            // the tree is a previous commit tree and not a folder, nothing is added to the
-            // directory path
-            String childDirectory = (treeEntry.getKey().equals("")) ? "" : treeEntry.getKey() + "/";
-            checkoutHelper(childTree, directory + childDirectory);
+    private void addPathVersion(HashMap<String, List<String>> versions, String path, String hash) {
+        List<String> history = versions.computeIfAbsent(path, key -> new ArrayList<String>());
+        if (history.isEmpty() || !history.get(history.size() - 1).equals(hash)) {
+            history.add(hash);
+        }
+    }
+
+    /**
+     * Lists every file in a commit, following the links to previous commit
+     * trees. Where a path appears more than once the newest version is kept.
+     * 
+     * @param commitHash
+     * @return Map from path to blob hash, sorted by path.
+     * @throws Exception
+     */
+    public TreeMap<String, String> getFiles(String commitHash) throws Exception {
+        TreeMap<String, String> files = new TreeMap<String, String>();
+        if (!commitHash.equals("")) {
+            addFiles(files, getCommitTree(commitHash), "");
+        }
+        return files;
+    }
+
+    /**
+     * Returns the commits made on top of a commit, oldest first. The links are
+     * checked against the history of HEAD first, so links which were never
+     * written, or which predate the links file, are added.
+     * 
+     * @param commitHash
+     * @return
+     * @throws Exception
+     */
+    public List<String> getChildren(String commitHash) throws Exception {
+        children.update(getHead());
+        return children.getChildren(commitHash);
+    }
+
+    /**
+     * Returns the commit HEAD points to, or an empty string if there are no
+     * commits.
+     * 
+     * @return
+     * @throws Exception
+     */
+    public String getHead() throws Exception {
+        Path headPath = gitDirectory.resolve("HEAD");
+        return Files.exists(headPath) ? Utils.readFile(headPath.toString()) : "";
+    }
+
+    private void addFiles(TreeMap<String, String> files, String treeHash, String directory) throws Exception {
+        Tree tree = Tree.readTree(objectsPath, treeHash);
+
+        for (HashMap.Entry<String, String> fileEntry : tree.getFileMap().entrySet()) {
+            files.putIfAbsent(directory + fileEntry.getKey(), fileEntry.getValue());
+        }
+
+        for (HashMap.Entry<String, String> treeEntry : tree.getTreeMap().entrySet()) {
+            if (!treeEntry.getKey().equals("")) {
+                addFiles(files, treeEntry.getValue(), directory + treeEntry.getKey() + "/");
+            }
+        }
+
+        // The previous commit tree is read last so it never hides newer files. It is
+        // not a folder, so nothing is added to the path
+        String previousTreeHash = tree.getPreviousTreeHash();
+        if (!previousTreeHash.equals("")) {
+            addFiles(files, previousTreeHash, directory);
+        }
+    }
+
+    /**
+     * Makes the project match a commit and moves HEAD to it. Only the paths
+     * which differ between HEAD and the commit are deleted or written, so every
+     * other file is left as it is, including untracked files and changes to
+     * files which match in both commits. If one of those paths has changes in
+     * the project, or an untracked file is in the way of a file being written,
+     * nothing is changed and an exception is thrown. If HEAD cannot be read,
+     * the project is cleared and every file is written instead. In a sparse
+     * checkout, only paths matching its patterns are written. If another writer
+     * moves HEAD during the checkout, HEAD is left where they put it and an
+     * exception is thrown.
+     * 
+     * @param commitHash
+     * @return Counts and throughput of the files written.
+     * @throws Exception
+     */
+    public ProgressStats checkout(String commitHash) throws Exception {
+        return checkout(commitHash, Consts.CHECKOUT_THREADS, null);
+    }
+
+    /**
+     * Checks out a commit, writing files with the given number of workers and
+     * reporting progress as each file is written.
+     * 
+     * @param commitHash
+     * @param threads    Most files written at once
+     * @param progress   Called from the workers after each file, or null
+     * @return Counts and throughput of the files written.
+     * @throws Exception
+     */
+    public ProgressStats checkout(String commitHash, int threads, Consumer<ProgressStats> progress)
+            throws Exception {
+        if (threads < 1) {
+            throw new Exception("Checkout needs at least one thread");
+        }
+
+        String targetTree = getCommitTree(commitHash);
+        String head = getHead();
+        String headTree = readHeadTree(head);
+        SparsePatterns sparse = getSparsePatterns();
+
+        TreeMap<String, String> writes = new TreeMap<String, String>();
+        TreeSet<String> deletes = new TreeSet<String>();
+        if (headTree == null) {
+            Utils.clearDirectory(projectDirectory.toString(), IGNORED_PATHS);
+            findChanges("", targetTree, sparse, writes, deletes, null);
+        } else {
+            HashMap<String, String> headVersions = new HashMap<String, String>();
+            findChanges(headTree, targetTree, sparse, writes, deletes, headVersions);
+            checkProjectChanges(writes, deletes, headVersions);
+        }
+
+        // Files are deleted first, since a folder can replace a file of the same name
+        for (String path : deletes) {
+            deleteCheckedOutFile(path);
+        }
+        ProgressStats stats = writeCheckedOutFiles(writes, threads, progress);
+        forgetTracked(deletes, writes.keySet());
+
+        // A commit made since HEAD was read is kept rather than orphaned, and the
+        // checkout fails since the project no longer matches either commit
+        try (LockFile lock = LockFile.acquire(gitDirectory.resolve("HEAD"))) {
+            String current = getHead();
+            if (!current.equals(head)) {
+                throw new Exception("HEAD was moved to " + current + " while checking out " + commitHash
+                        + ", check out again to update the project");
+            }
+            lock.commit(commitHash);
+        }
+        return stats;
+    }
+
+    /**
+     * Limits the project to the paths matching some patterns, deleting files
+     * which no longer match and writing files from HEAD which now do. Each
+     * pattern is a path, which takes in a file or everything inside a folder,
+     * or a glob such as "src/**.java". Later checkouts only write matching
+     * files, and status leaves the other paths out, so they stay as they are
+     * in HEAD.
+     * 
+     * @param patterns Patterns to check out, or an empty collection to check
+     *                 out everything
+     * @return Counts and throughput of the files written.
+     * @throws Exception
+     */
+    public ProgressStats setSparseCheckout(Collection<String> patterns) throws Exception {
+        SparsePatterns oldPatterns = getSparsePatterns();
+        SparsePatterns newPatterns = patterns.isEmpty() ? null : new SparsePatterns(patterns);
+
+        String headTree = readHeadTree();
+        TreeMap<String, String> before = new TreeMap<String, String>(), after = new TreeMap<String, String>();
+        if (headTree != null) {
+            findChanges("", headTree, oldPatterns, before, new TreeSet<String>(), null);
+            findChanges("", headTree, newPatterns, after, new TreeSet<String>(), null);
+        }
+
+        TreeSet<String> deletes = new TreeSet<String>(before.keySet());
+        deletes.removeAll(after.keySet());
+        HashMap<String, String> headVersions = new HashMap<String, String>(before);
+        headVersions.putAll(after);
+        after.keySet().removeAll(before.keySet());
+        checkProjectChanges(after, deletes, headVersions);
+
+        if (newPatterns == null) {
+            Files.deleteIfExists(sparsePath);
+        } else {
+            newPatterns.write(sparsePath);
+        }
+
+        for (String path : deletes) {
+            deleteCheckedOutFile(path);
+        }
+        ProgressStats stats = writeCheckedOutFiles(after, Consts.CHECKOUT_THREADS, null);
+        forgetTracked(deletes, after.keySet());
+        return stats;
+    }
+
+    /**
+     * Returns the patterns of the sparse checkout.
+     * 
+     * @return The patterns, or null if everything is checked out.
+     * @throws Exception
+     */
+    public SparsePatterns getSparsePatterns() throws Exception {
+        return SparsePatterns.read(sparsePath);
+    }
+
+    // Tracked entries describe HEAD's versions, so paths which were deleted or
+    // written are hashed again next time they are checked
+    private void forgetTracked(Collection<String> deleted, Collection<String> written) throws Exception {
+        ArrayList<String> changed = new ArrayList<String>(deleted);
+        changed.addAll(written);
+        index.update(map -> {
+            for (String path : changed) {
+                Index.Entry entry = map.get(path);
+                if (entry != null && !entry.isStaged()) {
+                    map.remove(path);
+                }
+            }
+        });
+    }
+
+    // Tree of the commit the project was last checked out or committed at, or
+    // null if there is none or it is not in the store
+    private String readHeadTree() throws Exception {
+        return readHeadTree(getHead());
+    }
+
+    private String readHeadTree(String head) throws Exception {
+        if (head.equals("")) {
+            return null;
+        }
+
+        CommitGraph graph = CommitGraph.forPath(graphPath);
+        if (!store.has(head) && (graph == null || !graph.contains(head))) {
+            return null;
+        }
+        String treeHash = getCommitTree(head);
+        return store.has(treeHash) ? treeHash : null;
+    }
+
+    // Sorts the files which differ between two trees into files to write and
+    // files to delete, recording the old version of each in oldVersions unless
+    // it is null
+    private void findChanges(String oldTree, String newTree, SparsePatterns sparse, TreeMap<String, String> writes,
+            TreeSet<String> deletes, Map<String, String> oldVersions) throws Exception {
+        try (Stream<DiffEntry> entries = new TreeDiff(objectsPath, store, sparse).diff(oldTree, newTree)) {
+            entries.forEach(entry -> {
+                if (entry.getNewHash() == null) {
+                    deletes.add(entry.getPath());
+                } else {
+                    writes.put(entry.getPath(), entry.getNewHash());
+                }
+                if (oldVersions != null && entry.getOldHash() != null) {
+                    oldVersions.put(entry.getPath(), entry.getOldHash());
+                }
+            });
+        }
+    }
+
+    // Makes sure writing and deleting the given paths loses nothing: each file
+    // must be missing, match its version in HEAD or already have the contents
+    // being written, and folders which a file replaces may only hold files being
+    // deleted. Only these paths are read, and files whose tracked metadata
+    // matches HEAD are not hashed
+    private void checkProjectChanges(Map<String, String> writes, Collection<String> deletes,
+            Map<String, String> headVersions) throws Exception {
+        ArrayList<String> paths = new ArrayList<String>(writes.keySet());
+        paths.addAll(deletes);
+
+        for (String path : paths) {
+            Path file = projectDirectory.resolve(path);
+            if (Files.isDirectory(file)) {
+                try (Stream<Path> inside = Files.walk(file)) {
+                    Optional<String> untracked = inside.filter(Files::isRegularFile)
+                            .map(child -> toIndexPath(projectDirectory.relativize(child)))
+                            .filter(child -> !deletes.contains(child)).findFirst();
+                    if (untracked.isPresent()) {
+                        throw new Exception("Checkout would overwrite untracked file " + untracked.get());
+                    }
+                }
+                continue;
+            }
+            if (!Files.exists(file)) {
+                continue;
+            }
+
+            String headHash = headVersions.get(path);
+            Index.Entry entry = index.getEntry(path);
+            if (headHash != null && entry != null && entry.getHash().equals(headHash)
+                    && entry.isUnchanged(FileStat.read(file))) {
+                continue;
+            }
+
+            String fileHash = Utils.hashObject("blob", file);
+            if (!fileHash.equals(headHash) && !fileHash.equals(writes.get(path))) {
+                throw new Exception("Checkout would overwrite " + (headHash == null ? "untracked file " : "changes to ")
+                        + path);
+            }
+        }
+    }
+
+    // Creates every folder the files need, parents first, then writes the files
+    // with a pool of workers
+    private ProgressStats writeCheckedOutFiles(TreeMap<String, String> writes, int threads,
+            Consumer<ProgressStats> progress) throws Exception {
+        ProgressStats stats = new ProgressStats(writes.size());
+
+        TreeSet<Path> folders = new TreeSet<Path>();
+        for (String path : writes.keySet()) {
+            Path filePath = projectDirectory.resolve(path);
+            if (Files.isDirectory(filePath)) {
+                // A file is replacing a folder
+                Utils.deleteDirectory(filePath.toString());
+            }
+            if (filePath.getParent() != null) {
+                folders.add(filePath.getParent());
+            }
+        }
+        for (Path folder : folders) {
+            Files.createDirectories(folder);
+        }
+
+        ArrayList<Future<?>> results = new ArrayList<Future<?>>(writes.size());
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, Math.max(writes.size(), 1)));
+        try {
+            for (Map.Entry<String, String> file : writes.entrySet()) {
+                Path filePath = projectDirectory.resolve(file.getKey());
+                String blobHash = file.getValue();
+                results.add(workers.submit(() -> {
+                    long size;
+                    try (InputStream input = store.open(blobHash)) {
+                        size = Files.copy(input, filePath, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    stats.fileDone(size, false);
+                    if (progress != null) {
+                        progress.accept(stats);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } finally {
+            workers.shutdownNow();
+        }
+
+        stats.finish();
+        return stats;
+    }
+
+    // Deletes a file, then any folders it leaves empty
+    private void deleteCheckedOutFile(String path) throws Exception {
+        Path root = projectDirectory.toAbsolutePath().normalize();
+        Path filePath = root.resolve(path);
+        Files.deleteIfExists(filePath);
+
+        for (Path folder = filePath.getParent(); folder != null && !folder.equals(root)
+                && folder.startsWith(root); folder = folder.getParent()) {
+            try (Stream<Path> listing = Files.list(folder)) {
+                if (listing.findAny().isPresent()) {
+                    break;
+                }
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            Files.delete(folder);
         }
     }
 
@@ -160,11 +1233,16 @@ public class Git {
      * @throws Exception
      */
     public void editFile(String path) throws Exception {
-        String prefix = "\n";
-        if (Utils.readFile(indexPath.toString()).equals("")) {
-            prefix = "";
-        }
+        addMarker(Index.Entry.edited(path));
+    }
 
-        Utils.appendToFile(indexPath.toString(), prefix + "*edited* " + path);
+    private void addMarker(Index.Entry marker) throws Exception {
+        ReentrantLock lock = index.lockFor(marker.getPath());
+        lock.lock();
+        try {
+            index.addEntry(marker);
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -1,9 +1,24 @@
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
-
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -15,6 +30,13 @@ public class GitTester {
         Utils.deleteDirectory("project");
     }
 
+    @AfterEach
+    void finishWrites() throws Exception {
+        // Queued object writes must land before the next test deletes their folders
+        ObjectStores.forDirectory("objects").sync();
+        ObjectStores.forDirectory("project/objects").sync();
+    }
+
     @Test
     @DisplayName("Verify init creates index file and objects folder")
     void testInit() throws Exception {
@@ -24,6 +46,7 @@ public class GitTester {
         assertTrue(Utils.exists("objects"));
         assertTrue(Utils.exists("index"));
 
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Utils.deleteFile("index");
     }
@@ -41,13 +64,16 @@ public class GitTester {
         Utils.writeFile("testFile.txt", "This is a test file.");
         git.addFile("testFile.txt");
 
-        // Confirm blob file has been created in objects with the correct hash
-        assertTrue(Utils.exists("objects/5d6dceb0452f8a0eb37d5bc089984fc05e49fa51"));
+        // Confirm blob file has been created in objects with the correct hash once
+        // the queued writes are done
+        ObjectStores.forDirectory("objects").sync();
+        assertTrue(Utils.exists("objects/af/27ff4986a7bdb5c5150d972123bd50febb5267"));
 
         // Confirm index has been updated
-        assertEquals(Utils.readFile("index"),
-                "blob : 5d6dceb0452f8a0eb37d5bc089984fc05e49fa51 : testFile.txt");
+        assertEquals(Index.forPath(Paths.get("index")).toString(),
+                "blob : af27ff4986a7bdb5c5150d972123bd50febb5267 : testFile.txt");
 
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Utils.deleteFile("index");
     }
@@ -65,26 +91,28 @@ public class GitTester {
         git.addFile("testFile2.txt");
 
         // Confirm index has both files
-        assertEquals(Utils.readFile("index"),
-                "blob : 5d6dceb0452f8a0eb37d5bc089984fc05e49fa51 : testFile.txt\nblob : 7e3c2056ff8f7039e116baac1fc70505cb654578 : testFile2.txt");
+        assertEquals(Index.forPath(Paths.get("index")).toString(),
+                "blob : af27ff4986a7bdb5c5150d972123bd50febb5267 : testFile.txt\nblob : 479d79d7cc78b6d1b22a03eaa21374056033ffc9 : testFile2.txt");
 
         git.removeFile("testFile.txt");
+        ObjectStores.forDirectory("objects").sync();
 
         // Confirm testFile.txt has been removed from index
-        assertEquals(Utils.readFile("index"),
-                "blob : 7e3c2056ff8f7039e116baac1fc70505cb654578 : testFile2.txt");
+        assertEquals(Index.forPath(Paths.get("index")).toString(),
+                "blob : 479d79d7cc78b6d1b22a03eaa21374056033ffc9 : testFile2.txt");
 
         // Confirm the blob file still exists
-        assertTrue(Utils.exists("objects/5d6dceb0452f8a0eb37d5bc089984fc05e49fa51"));
+        assertTrue(Utils.exists("objects/af/27ff4986a7bdb5c5150d972123bd50febb5267"));
 
         git.removeFile("testFile2.txt");
 
         // Confirm testFile2.txt has been removed from index
-        assertEquals(Utils.readFile("index"), "");
+        assertEquals(Index.forPath(Paths.get("index")).toString(), "");
 
         // Confirm the blob file still exists
-        assertTrue(Utils.exists("objects/7e3c2056ff8f7039e116baac1fc70505cb654578"));
+        assertTrue(Utils.exists("objects/47/9d79d7cc78b6d1b22a03eaa21374056033ffc9"));
 
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Utils.deleteFile("index");
     }
@@ -102,21 +130,22 @@ public class GitTester {
         git.addFile("file1.txt");
         git.addDirectory("folder1");
 
-        assertEquals(Utils.readFile("project/index"),
-                "blob : 4a0a81eb2fc662e554e9bc711c44e3caa424fca8 : file1.txt\n" + //
-                        "tree : fb5272f8669faa5a21818f72323ff4433184d45e : folder1");
+        assertEquals(Index.forPath(Paths.get("project/index")).toString(),
+                "blob : 08219db9b0969fa29cf16fd04df4a63964da0b69 : file1.txt\n" + //
+                        "tree : cfce90c559923022cfa32c4c7e82dd3e8773484c : folder1");
 
-        assertEquals("tree : faa3516b4644211485496cd5a9b3d99f7bf64025 : folder2",
-                Utils.unzipFile("project/objects/fb5272f8669faa5a21818f72323ff4433184d45e"));
+        assertEquals("tree : 3f6758501614c6878b506b327bfc34f935b97fbd : folder2",
+                Utils.unzipFile("project/objects/cfce90c559923022cfa32c4c7e82dd3e8773484c"));
 
-        assertEquals("blob : cf38160f02777e57fa8436d860f94caa4c7587d3 : file2.txt",
-                Utils.unzipFile("project/objects/faa3516b4644211485496cd5a9b3d99f7bf64025"));
+        assertEquals("blob : 30d67d4672d5c05833b7192cc77a79eaafb5c7ad : file2.txt",
+                Utils.unzipFile("project/objects/3f6758501614c6878b506b327bfc34f935b97fbd"));
 
         Utils.deleteDirectory("project/.gitproject");
     }
 
     @Test
     void testCheckout() throws Exception {
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Utils.deleteDirectory("index");
         Utils.deleteDirectory("HEAD");
@@ -173,4 +202,657 @@ public class GitTester {
         assertEquals(Utils.readFile("project/folder1/file5.txt"), "f5");
         assertFalse(Utils.exists("project/file2.txt"));
     }
+
+    @Test
+    @DisplayName("Verify objects can still be read after being packed")
+    void testRepack() throws Exception {
+        Utils.writeFile("project/file1.txt", "file1");
+        Utils.writeFile("project/folder1/file2.txt", "file2");
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1.txt");
+        git.addDirectory("folder1");
+
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        Path packPath = git.repack();
+
+        // Confirm the loose objects were moved into the pack
+        assertTrue(Utils.exists(packPath.toString()));
+        assertNull(Utils.findLooseObject(Paths.get("project/objects"), c1.getHash()));
+        assertNull(Utils.findLooseObject(Paths.get("project/objects"), c1.getTree()));
+        assertTrue(Utils.objectExists("project/objects", c1.getTree()));
+
+        // Confirm packed objects are read without the caller knowing where they are
+        assertEquals(c1.getTree(), Commit.getCommitTree(c1.getHash(), "project"));
+        assertEquals("file1", Utils.unzipFile("project/objects/" + Utils.hashObject("blob", "file1")));
+
+        Utils.writeFile("project/file3.txt", "file3");
+        git.addFile("file3.txt");
+        Commit c2 = new Commit("Wyatt", "c2", "project");
+
+        // Confirm the packed parent commit is linked to the new commit and stays packed
+        assertEquals(List.of(c2.getHash()), git.getChildren(c1.getHash()));
+        assertNull(Utils.findLooseObject(Paths.get("project/objects"), c1.getHash()));
+
+        git.checkout(c2.getHash());
+
+        assertEquals("file1", Utils.readFile("project/file1.txt"));
+        assertEquals("file2", Utils.readFile("project/folder1/file2.txt"));
+        assertEquals("file3", Utils.readFile("project/file3.txt"));
+    }
+
+    @Test
+    @DisplayName("Verify edited files are packed as deltas")
+    void testRepackDeltas() throws Exception {
+        StringBuilder config = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            config.append("setting" + i + " = " + (i * 7) + "\n");
+        }
+        String original = config.toString();
+        String edited = original.replace("setting1000 = 7000", "setting1000 = 1");
+
+        Utils.writeFile("project/config.txt", original);
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("config.txt");
+        new Commit("Wyatt", "c1", "project");
+
+        Utils.writeFile("project/config.txt", edited);
+        git.editFile("config.txt");
+        new Commit("Wyatt", "c2", "project");
+
+        Path packPath = git.repack();
+        Pack pack = new Pack(Paths.get(packPath.toString().replace(".pack", ".idx")));
+
+        // Confirm the edited version is stored as a delta against the original
+        assertFalse(pack.isDelta(Utils.hashObject("blob", original)));
+        assertTrue(pack.isDelta(Utils.hashObject("blob", edited)));
+
+        // Confirm both versions are rebuilt correctly
+        assertEquals(original, Utils.unzipFile("project/objects/" + Utils.hashObject("blob", original)));
+        assertEquals(edited, Utils.unzipFile("project/objects/" + Utils.hashObject("blob", edited)));
+    }
+
+    @Test
+    @DisplayName("Verify flat objects are still read and can be migrated to the sharded layout")
+    void testMigrateObjects() throws Exception {
+        Utils.writeFile("project/file1.txt", "file1");
+        Utils.writeFile("project/file2.txt", "file2");
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1.txt");
+        git.addFile("file2.txt");
+
+        // Move the objects back into the old flat layout
+        ObjectStores.forDirectory("project/objects").sync();
+        String hash1 = Utils.hashObject("blob", "file1");
+        String hash2 = Utils.hashObject("blob", "file2");
+        Files.move(Utils.objectPath("project/objects", hash1), Paths.get("project/objects/" + hash1));
+        Files.move(Utils.objectPath("project/objects", hash2), Paths.get("project/objects/" + hash2));
+
+        // Confirm flat objects are still found
+        assertTrue(Utils.objectExists("project/objects", hash1));
+        assertEquals("file1", Utils.unzipFile("project/objects/" + hash1));
+
+        assertEquals(2, git.migrateObjects());
+
+        // Confirm the objects were moved into their shard folders
+        assertFalse(Utils.exists("project/objects/" + hash1));
+        assertTrue(Utils.exists("project/objects/" + hash1.substring(0, 2) + "/" + hash1.substring(2)));
+        assertEquals("file2", Utils.unzipFile("project/objects/" + hash2));
+
+        // Confirm running the migration again does nothing
+        assertEquals(0, git.migrateObjects());
+    }
+
+    @Test
+    @DisplayName("Verify a repository can keep its objects in memory")
+    void testInMemoryObjectStore() throws Exception {
+        Utils.writeFile("project/file1.txt", "file1");
+        Utils.writeFile("project/folder1/file2.txt", "file2");
+
+        InMemoryObjectStore store = new InMemoryObjectStore();
+        try (Git git = new Git("project", store)) {
+            git.init();
+            git.addFile("file1.txt");
+            git.addDirectory("folder1");
+
+            Commit c1 = new Commit("Wyatt", "c1", "project");
+
+            // Confirm nothing was written to the objects folder
+            assertFalse(Utils.exists("project/objects"));
+            assertTrue(store.has(c1.getHash()));
+            assertEquals(c1.getTree(), Commit.getCommitTree(c1.getHash(), "project"));
+
+            Utils.writeFile("project/file1.txt", "changed");
+            git.addFile("file1.txt");
+            new Commit("Wyatt", "c2", "project");
+            git.checkout(c1.getHash());
+
+            assertEquals("file1", Utils.readFile("project/file1.txt"));
+            assertEquals("file2", Utils.readFile("project/folder1/file2.txt"));
+        }
+
+        // Confirm closing the repository lets go of its store
+        assertFalse(ObjectStores.forDirectory("project/objects") == store);
+    }
+
+    @Test
+    @DisplayName("Verify queued objects can be read straight away and are on disk once committed")
+    void testWriteBehind() throws Exception {
+        Git git = new Git("project");
+        git.init();
+
+        ObjectStore store = ObjectStores.forDirectory("project/objects");
+        ArrayList<String> hashes = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            hashes.add(store.put("blob", ("object " + i).getBytes()));
+        }
+
+        // Confirm every object can be read whether or not it has been written yet
+        for (int i = 0; i < 500; i++) {
+            assertEquals("object " + i, new String(store.get(hashes.get(i))));
+        }
+
+        Utils.writeFile("project/file1.txt", "file1");
+        git.addFile("file1.txt");
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        // Confirm every object was written before HEAD was updated
+        for (String hash : hashes) {
+            assertNotNull(Utils.findLooseObject(Paths.get("project/objects"), hash));
+        }
+        assertNotNull(Utils.findLooseObject(Paths.get("project/objects"), c1.getHash()));
+        assertNotNull(Utils.findLooseObject(Paths.get("project/objects"), c1.getTree()));
+    }
+
+    @Test
+    @DisplayName("Verify a failed object write only holds up commits which refer to it")
+    void testFailedWrite() throws Exception {
+        Git git = new Git("project");
+        git.init();
+        ObjectStore store = ObjectStores.forDirectory("project/objects");
+
+        // A file in place of the object's shard folder makes its write fail
+        String hash = Utils.hashObject("blob", "unwritable");
+        Utils.writeFile("project/objects/" + hash.substring(0, 2), "");
+        Utils.writeFile("project/unwritable.txt", "unwritable");
+        git.addFile("unwritable.txt");
+
+        store.sync();
+        assertFalse(store.has(hash));
+        assertThrows(Exception.class, () -> store.sync(List.of(hash)));
+
+        // Confirm HEAD is not moved onto a commit missing the object
+        assertThrows(Exception.class, () -> new Commit("Wyatt", "c1", "project"));
+        assertFalse(Utils.exists("project/HEAD"));
+
+        // Confirm commits which do not refer to the object still go ahead
+        git.removeFile("unwritable.txt");
+        Utils.writeFile("project/other.txt", "other");
+        git.addFile("other.txt");
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+        assertEquals(c1.getHash(), Utils.readFile("project/HEAD"));
+
+        // Confirm staging the unchanged file again writes the object once it can be
+        Utils.deleteFile("project/objects/" + hash.substring(0, 2));
+        git.addFile("unwritable.txt");
+        Commit c2 = new Commit("Wyatt", "c2", "project");
+        assertEquals(c2.getHash(), Utils.readFile("project/HEAD"));
+        assertNotNull(Utils.findLooseObject(Paths.get("project/objects"), hash));
+    }
+
+    @Test
+    @DisplayName("Verify several threads can stage and commit to one repository at once")
+    void testConcurrentWriters() throws Exception {
+        Git git = new Git("project");
+        git.init();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            ArrayList<Future<?>> adds = new ArrayList<Future<?>>();
+            for (int i = 0; i < 200; i++) {
+                String name = "file" + i + ".txt";
+                Utils.writeFile("project/" + name, "contents " + i);
+                adds.add(pool.submit(() -> {
+                    git.addFile(name);
+                    return null;
+                }));
+            }
+            for (Future<?> add : adds) {
+                add.get();
+            }
+
+            // Confirm no entries were lost
+            assertEquals(200, Index.forPath(Paths.get("project/index")).getEntries().size());
+
+            ArrayList<Future<?>> commits = new ArrayList<Future<?>>();
+            for (int i = 0; i < 20; i++) {
+                String summary = "c" + i;
+                commits.add(pool.submit(() -> new Commit("Wyatt", summary, "project")));
+            }
+            for (Future<?> commit : commits) {
+                commit.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Confirm every commit is in the history of HEAD
+        int count = 0;
+        String commitHash = Utils.readFile("project/HEAD");
+        while (!commitHash.equals("")) {
+            count++;
+            commitHash = Utils.unzipFile("project/objects/" + commitHash).split("\n")[1];
+        }
+        assertEquals(20, count);
+        assertTrue(Index.forPath(Paths.get("project/index")).getStagedEntries().isEmpty());
+
+        git.checkout(Utils.readFile("project/HEAD"));
+        for (int i = 0; i < 200; i++) {
+            assertEquals("contents " + i, Utils.readFile("project/file" + i + ".txt"));
+        }
+    }
+
+    @Test
+    @DisplayName("Verify a lock left behind by a writer which exited is taken over")
+    void testStaleLock() throws Exception {
+        Git git = new Git("project");
+        git.init();
+        Utils.writeFile("project/a.txt", "a");
+        git.addFile("a.txt");
+
+        // A writer which exited while holding HEAD
+        Process writer = new ProcessBuilder("java", "-version").start();
+        writer.waitFor();
+        Files.writeString(Paths.get("project/HEAD.lock"), LockFile.owner(writer.toHandle()));
+        new Commit("Wyatt", "first", "project");
+        assertFalse(Files.exists(Paths.get("project/HEAD.lock")));
+
+        // The same, when the writer also exited while taking over another stale lock
+        Files.writeString(Paths.get("project/HEAD.lock"), LockFile.owner(writer.toHandle()));
+        Files.writeString(Paths.get("project/HEAD.lock.takeover"), LockFile.owner(writer.toHandle()));
+        new Commit("Wyatt", "second", "project");
+        assertFalse(Files.exists(Paths.get("project/HEAD.lock")));
+        assertFalse(Files.exists(Paths.get("project/HEAD.lock.takeover")));
+
+        // A writer which exited while replacing the index contents, so the lock no
+        // longer names it
+        Files.writeString(Paths.get("project/index.lock"), "half written index");
+        Files.setLastModifiedTime(Paths.get("project/index.lock"),
+                FileTime.fromMillis(System.currentTimeMillis() - Consts.LOCK_STALE_MILLIS - 1000));
+        Utils.writeFile("project/b.txt", "b");
+        git.addFile("b.txt");
+        assertFalse(Files.exists(Paths.get("project/index.lock")));
+
+    }
+
+    @Test
+    @DisplayName("Verify unchanged files are skipped using the metadata in the index")
+    void testStatCache() throws Exception {
+        Utils.writeFile("project/file1.txt", "file1");
+        Files.setLastModifiedTime(Paths.get("project/file1.txt"), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1.txt");
+        new Commit("Wyatt", "c1", "project");
+
+        // Confirm the committed file is still tracked with its metadata
+        Index index = Index.forPath(Paths.get("project/index"));
+        Index.Entry entry = index.getEntry("file1.txt");
+        assertFalse(entry.isStaged());
+        assertTrue(entry.isUnchanged(FileStat.read(Paths.get("project/file1.txt"))));
+
+        // Confirm adding the unchanged file again stages nothing
+        git.addFile("file1.txt");
+        assertTrue(index.getStagedEntries().isEmpty());
+
+        // Confirm a changed file is hashed and staged, but not trusted while its
+        // timestamp is too recent
+        Utils.writeFile("project/file1.txt", "changed");
+        git.addFile("file1.txt");
+        entry = index.getEntry("file1.txt");
+        assertTrue(entry.isStaged());
+        assertEquals(Utils.hashObject("blob", "changed"), entry.getHash());
+        assertTrue(entry.getStat().isSmudged());
+        assertFalse(entry.isUnchanged(FileStat.read(Paths.get("project/file1.txt"))));
+    }
+
+    @Test
+    @DisplayName("Verify many files can be staged at once with progress reported")
+    void testAddAll() throws Exception {
+        ArrayList<Path> paths = new ArrayList<Path>();
+        for (int i = 0; i < 300; i++) {
+            Utils.writeFile("project/generated/dir" + (i % 10) + "/file" + i + ".txt", "contents " + i);
+            paths.add(Paths.get("generated", "dir" + (i % 10), "file" + i + ".txt"));
+        }
+        Utils.writeFile("project/generated/notes.md", "notes");
+
+        Git git = new Git("project");
+        git.init();
+
+        AtomicInteger calls = new AtomicInteger();
+        ProgressStats stats = git.addAll(paths, progress -> calls.incrementAndGet());
+
+        assertEquals(300, calls.get());
+        assertEquals(300, stats.getFiles());
+        assertTrue(stats.isFinished());
+
+        Index index = Index.forPath(Paths.get("project/index"));
+        assertEquals(300, index.getStagedEntries().size());
+        assertEquals(Utils.hashObject("blob", "contents 7"), index.getEntry("generated/dir7/file7.txt").getHash());
+
+        // Confirm globs only stage matching files
+        stats = git.addMatching("generated/*.md", null);
+        assertEquals(1, stats.getFiles());
+        assertEquals(Utils.hashObject("blob", "notes"), index.getEntry("generated/notes.md").getHash());
+        assertEquals(301, index.getStagedEntries().size());
+
+        new Commit("Wyatt", "c1", "project");
+        git.checkout(Utils.readFile("project/HEAD"));
+        assertEquals("contents 299", Utils.readFile("project/generated/dir9/file299.txt"));
+    }
+
+    @Test
+    @DisplayName("Verify the index watcher stages changes as they happen")
+    void testWatch() throws Exception {
+        Utils.writeFile("project/file1.txt", "file1");
+        Utils.writeFile("project/file2.txt", "file2");
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1.txt");
+        git.addFile("file2.txt");
+        new Commit("Wyatt", "c1", "project");
+
+        Index index = Index.forPath(Paths.get("project/index"));
+        try (IndexWatcher watcher = git.watch()) {
+            // Confirm new files are staged, including those in new folders
+            Utils.writeFile("project/folder/file3.txt", "file3");
+            waitFor(() -> index.getEntry("folder/file3.txt") != null);
+            assertEquals(Utils.hashObject("blob", "file3"), index.getEntry("folder/file3.txt").getHash());
+
+            // Confirm committed files are staged again or marked as deleted
+            Utils.writeFile("project/file1.txt", "changed");
+            Utils.deleteFile("project/file2.txt");
+            String changed = Utils.hashObject("blob", "changed");
+            waitFor(() -> index.getEntry("file2.txt").getType().equals(Index.Entry.DELETED));
+            waitFor(() -> index.getEntry("file1.txt").isStaged() && index.getEntry("file1.txt").getHash().equals(changed));
+            assertTrue(watcher.getRefreshes() > 0);
+
+            // Confirm a deleted file which comes back is no longer marked as deleted,
+            // and is staged again once its contents differ from HEAD
+            Utils.writeFile("project/file2.txt", "file2");
+            waitFor(() -> index.getEntry("file2.txt") == null);
+            Utils.writeFile("project/file2.txt", "file2 again");
+            String again = Utils.hashObject("blob", "file2 again");
+            waitFor(() -> index.getEntry("file2.txt") != null && index.getEntry("file2.txt").getHash().equals(again));
+
+            // Confirm a rescan finds changes without any events
+            watcher.requestRescan();
+            watcher.refresh();
+            assertEquals(1, watcher.getRescans());
+            assertEquals(3, index.getStagedEntries().size());
+
+            // Confirm the watcher keeps running after a refresh fails, and scans
+            // the whole project once it can
+            byte[] saved = Files.readAllBytes(Paths.get("project/index"));
+            Utils.writeFile("project/index", "not an index");
+            Utils.writeFile("project/file4.txt", "file4");
+            Thread.sleep(Consts.WATCH_DEBOUNCE_MILLIS * 10);
+            Files.write(Paths.get("project/index"), saved);
+            waitFor(() -> index.getEntry("file4.txt") != null);
+            assertTrue(watcher.getRescans() > 1);
+        }
+
+        new Commit("Wyatt", "c2", "project");
+        git.checkout(Utils.readFile("project/HEAD"));
+        assertEquals("changed", Utils.readFile("project/file1.txt"));
+        assertEquals("file3", Utils.readFile("project/folder/file3.txt"));
+        assertEquals("file4", Utils.readFile("project/file4.txt"));
+        assertEquals("file2 again", Utils.readFile("project/file2.txt"));
+    }
+
+    @Test
+    @DisplayName("Verify status lists staged, unstaged and untracked changes")
+    void testStatus() throws Exception {
+        Utils.writeFile("project/file1.txt", "file1");
+        Utils.writeFile("project/file2.txt", "file2");
+        Utils.writeFile("project/dir/a.txt", "a");
+        Utils.writeFile("project/dir/sub/b.txt", "b");
+        for (String file : List.of("file1.txt", "file2.txt", "dir/a.txt", "dir/sub/b.txt")) {
+            Files.setLastModifiedTime(Paths.get("project", file),
+                    FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        }
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1.txt");
+        git.addFile("file2.txt");
+        git.addDirectory("dir");
+
+        // Confirm everything is staged before the first commit
+        assertEquals(List.of("A  dir/a.txt", "A  dir/sub/b.txt", "A  file1.txt", "A  file2.txt"), status(git));
+
+        // Confirm nothing differs straight after a commit
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+        assertEquals(List.of(), status(git));
+
+        // Confirm a committed folder which matches the project is not walked, so
+        // its trees are never read, and that no unchanged file is read either
+        ObjectStore store = ObjectStores.forDirectory("project/objects");
+        String dirHash = Tree.readTree(Paths.get("project/objects"), c1.getTree()).getTreeHash("dir");
+        byte[] dirTree = store.get(dirHash);
+        store.remove(dirHash);
+        ObjectCache.getShared().clear();
+        StatusScanner scanner = new StatusScanner(git);
+        assertEquals(0, scanner.scan().count());
+        assertEquals(0, scanner.getFilesRead());
+        store.put("tree", dirTree);
+
+        Utils.writeFile("project/file1.txt", "changed");
+        Utils.deleteFile("project/file2.txt");
+        Utils.writeFile("project/dir/sub/b.txt", "changed");
+        Utils.writeFile("project/file3.txt", "file3");
+        assertEquals(List.of(" M dir/sub/b.txt", " M file1.txt", "?? file3.txt", " D file2.txt"), status(git));
+
+        // Confirm staged changes move to the first column
+        git.addFile("file3.txt");
+        git.addDirectory("dir");
+        assertEquals(List.of("M  dir/sub/b.txt", "A  file3.txt", " M file1.txt", " D file2.txt"), status(git));
+
+        // Confirm results can be taken before the scan is finished
+        assertEquals("M  dir/sub/b.txt", git.status().findFirst().get().toString());
+    }
+
+    @Test
+    @DisplayName("Verify checkout only rewrites files which differ and moves HEAD")
+    void testDifferentialCheckout() throws Exception {
+        Utils.writeFile("project/a.txt", "a");
+        Utils.writeFile("project/b.txt", "b");
+        Utils.writeFile("project/dir/c.txt", "c");
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("a.txt");
+        git.addFile("b.txt");
+        git.addDirectory("dir");
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        Utils.writeFile("project/a.txt", "a2");
+        Utils.writeFile("project/dir/d.txt", "d");
+        git.addFile("a.txt");
+        git.deleteFile("b.txt");
+        git.addDirectory("dir");
+        Utils.deleteFile("project/b.txt");
+        Commit c2 = new Commit("Wyatt", "c2", "project");
+
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(Paths.get("project/dir/c.txt"), old);
+        Files.setLastModifiedTime(Paths.get("project/a.txt"), old);
+
+        git.checkout(c1.getHash());
+        assertEquals(c1.getHash(), git.getHead());
+        assertEquals("a", Utils.readFile("project/a.txt"));
+        assertEquals("b", Utils.readFile("project/b.txt"));
+        assertFalse(Utils.exists("project/dir/d.txt"));
+
+        // Confirm files which are the same in both commits were not written
+        assertEquals(old, Files.getLastModifiedTime(Paths.get("project/dir/c.txt")));
+        assertFalse(old.equals(Files.getLastModifiedTime(Paths.get("project/a.txt"))));
+
+        // Confirm changes to files which differ between the commits are never
+        // overwritten, and nothing is changed when checkout refuses
+        Utils.writeFile("project/a.txt", "changed");
+        assertThrows(Exception.class, () -> git.checkout(c2.getHash()));
+        assertEquals(c1.getHash(), git.getHead());
+        assertEquals("b", Utils.readFile("project/b.txt"));
+        Utils.writeFile("project/a.txt", "a");
+
+        Utils.writeFile("project/dir/d.txt", "untracked");
+        assertThrows(Exception.class, () -> git.checkout(c2.getHash()));
+        Utils.deleteFile("project/dir/d.txt");
+
+        // Confirm untracked files and changes to files which match in both
+        // commits are left alone
+        Utils.writeFile("project/dir/c.txt", "changed");
+        Utils.writeFile("project/untracked.txt", "untracked");
+        git.checkout(c2.getHash());
+        assertEquals("a2", Utils.readFile("project/a.txt"));
+        assertEquals("d", Utils.readFile("project/dir/d.txt"));
+        assertFalse(Utils.exists("project/b.txt"));
+        assertEquals("changed", Utils.readFile("project/dir/c.txt"));
+        assertEquals("untracked", Utils.readFile("project/untracked.txt"));
+        assertEquals(List.of(" M dir/c.txt", "?? untracked.txt"), status(git));
+        Utils.writeFile("project/dir/c.txt", "c");
+        Utils.deleteFile("project/untracked.txt");
+
+        // Confirm the project is written in full when HEAD is missing
+        Utils.deleteFile("project/HEAD");
+        git.checkout(c1.getHash());
+        assertEquals("b", Utils.readFile("project/b.txt"));
+        assertFalse(Utils.exists("project/dir/d.txt"));
+        assertEquals(c1.getHash(), git.getHead());
+
+        // Confirm a commit made while a checkout is writing files is kept, and the
+        // checkout fails instead of moving HEAD past it
+        Utils.writeFile("project/e.txt", "e");
+        git.addFile("e.txt");
+        String[] c3 = new String[1];
+        assertThrows(Exception.class, () -> git.checkout(c2.getHash(), 1, progress -> {
+            if (c3[0] == null) {
+                try {
+                    c3[0] = new Commit("Wyatt", "c3", "project").getHash();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }));
+        assertNotNull(c3[0]);
+        assertEquals(c3[0], git.getHead());
+    }
+
+    @Test
+    @DisplayName("Verify checkout writes files in parallel with progress reported")
+    void testParallelCheckout() throws Exception {
+        ArrayList<Path> paths = new ArrayList<Path>();
+        long size = 0;
+        for (int i = 0; i < 300; i++) {
+            Utils.writeFile("project/generated/dir" + (i % 10) + "/sub" + (i % 3) + "/file" + i + ".txt",
+                    "contents " + i);
+            paths.add(Paths.get("generated", "dir" + (i % 10), "sub" + (i % 3), "file" + i + ".txt"));
+            size += ("contents " + i).length();
+        }
+
+        Git git = new Git("project");
+        git.init();
+        git.addAll(paths);
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        // Confirm every file is written when there is no HEAD to compare with
+        Utils.deleteDirectory("project/generated");
+        Utils.deleteFile("project/HEAD");
+        AtomicInteger calls = new AtomicInteger();
+        ProgressStats stats = git.checkout(c1.getHash(), 8, progress -> calls.incrementAndGet());
+
+        assertEquals(300, calls.get());
+        assertEquals(300, stats.getFiles());
+        assertEquals(size, stats.getBytes());
+        assertTrue(stats.isFinished());
+        for (int i = 0; i < 300; i++) {
+            assertEquals("contents " + i,
+                    Utils.readFile("project/generated/dir" + (i % 10) + "/sub" + (i % 3) + "/file" + i + ".txt"));
+        }
+
+        // Confirm a checkout of the same commit has nothing to write
+        assertEquals(0, git.checkout(c1.getHash(), 1, null).getFiles());
+    }
+
+    @Test
+    @DisplayName("Verify a sparse checkout only writes matching paths and leaves the rest as in HEAD")
+    void testSparseCheckout() throws Exception {
+        Utils.writeFile("project/dir1/a", "a");
+        Utils.writeFile("project/dir1/sub/b", "b");
+        Utils.writeFile("project/dir2/c", "c");
+        Utils.writeFile("project/docs/readme.md", "readme");
+        Utils.writeFile("project/docs/notes.txt", "notes");
+
+        Git git = new Git("project");
+        git.init();
+        git.addDirectory("dir1");
+        git.addDirectory("dir2");
+        git.addDirectory("docs");
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        git.setSparseCheckout(List.of("dir1", "docs/*.md"));
+        assertTrue(Files.exists(Paths.get("project/dir1/sub/b")));
+        assertTrue(Files.exists(Paths.get("project/docs/readme.md")));
+        assertFalse(Files.exists(Paths.get("project/dir2")));
+        assertFalse(Files.exists(Paths.get("project/docs/notes.txt")));
+        assertEquals(List.of(), status(git));
+
+        // Confirm excluded paths are kept in new commits, and only matching
+        // files are written on checkout
+        Utils.writeFile("project/dir1/a", "changed");
+        git.addFile("dir1/a");
+        assertThrows(Exception.class, () -> git.addDirectory("docs"));
+        Commit c2 = new Commit("Wyatt", "c2", "project");
+        assertEquals(git.getFiles(c1.getHash()).get("dir2/c"), git.getFiles(c2.getHash()).get("dir2/c"));
+        assertEquals(git.getFiles(c1.getHash()).get("docs/notes.txt"),
+                git.getFiles(c2.getHash()).get("docs/notes.txt"));
+
+        git.checkout(c1.getHash());
+        assertEquals("a", Utils.readFile("project/dir1/a"));
+        assertFalse(Files.exists(Paths.get("project/dir2")));
+        assertEquals(List.of(), status(git));
+
+        // Confirm clearing the patterns writes everything again
+        git.setSparseCheckout(List.of());
+        assertNull(git.getSparsePatterns());
+        assertEquals("c", Utils.readFile("project/dir2/c"));
+        assertEquals("notes", Utils.readFile("project/docs/notes.txt"));
+        assertEquals(List.of(), status(git));
+    }
+
+    private static List<String> status(Git git) throws Exception {
+        return git.status().map(Status::toString).collect(Collectors.toList());
+    }
+
+    private interface Condition {
+        boolean check() throws Exception;
+    }
+
+    // Waits for the watcher to catch up with changes on disk
+    private static void waitFor(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.check()) {
+            assertTrue("Timed out waiting for the index watcher", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
 }
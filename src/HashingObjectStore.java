@@ -0,0 +1,44 @@
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Works out object hashes without keeping the objects. Used to compare files
+ * and folders with what a repository has stored, without filling the objects
+ * folder with versions which are never committed.
+ */
+public class HashingObjectStore implements ObjectStore {
+    @Override
+    public boolean has(String hash) {
+        return false;
+    }
+
+    @Override
+    public byte[] get(String hash) throws Exception {
+        throw new FileNotFoundException("Object " + hash + " was never kept");
+    }
+
+    @Override
+    public InputStream open(String hash) throws Exception {
+        return new ByteArrayInputStream(get(hash));
+    }
+
+    @Override
+    public String put(String type, byte[] content) throws Exception {
+        return Utils.hashObject(type, content);
+    }
+
+    @Override
+    public String put(String type, Path source) throws Exception {
+        return Utils.hashObject(type, source);
+    }
+
+    @Override
+    public void write(String hash, byte[] content) {
+    }
+
+    @Override
+    public void remove(String hash) {
+    }
+}
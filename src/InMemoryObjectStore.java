@@ -0,0 +1,60 @@
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps objects on the heap only. Useful for tests and throwaway repositories,
+ * where writing objects to disk is wasted work.
+ */
+public class InMemoryObjectStore implements ObjectStore {
+    private Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+
+    @Override
+    public boolean has(String hash) {
+        return objects.containsKey(hash);
+    }
+
+    @Override
+    public byte[] get(String hash) throws Exception {
+        byte[] content = objects.get(hash);
+        if (content == null) {
+            throw new FileNotFoundException("Object " + hash + " does not exist");
+        }
+        return content.clone();
+    }
+
+    @Override
+    public InputStream open(String hash) throws Exception {
+        return new ByteArrayInputStream(get(hash));
+    }
+
+    @Override
+    public String put(String type, byte[] content) throws Exception {
+        String hash = Utils.hashObject(type, content);
+        objects.putIfAbsent(hash, content.clone());
+        return hash;
+    }
+
+    @Override
+    public String put(String type, Path source) throws Exception {
+        return put(type, Files.readAllBytes(source));
+    }
+
+    @Override
+    public void write(String hash, byte[] content) {
+        objects.put(hash, content.clone());
+    }
+
+    @Override
+    public void remove(String hash) {
+        objects.remove(hash);
+    }
+
+    public int size() {
+        return objects.size();
+    }
+}
@@ -0,0 +1,684 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The staging index of a repository, with at most one entry per path.
+ *
+ * Entries are either staged, to be included in the next commit, or tracked,
+ * which keeps the metadata of a committed file so later operations can tell
+ * whether it has changed without reading it (see FileStat).
+ *
+ * The index file starts with a header ("GIDX", a version and the entry count),
+ * followed by the entries sorted by path, and ends with a SHA-1 checksum of
+ * everything before it. Each entry is a type byte, a flags byte, a 20 byte
+ * object ID (zero for markers), the size, modification time, change time and
+ * inode of the file (-1 if unknown) and the length of its path, followed by
+ * the path itself. Version 1 files have no flags or metadata. Entries are
+ * variable-width, as in git's own index, rather than padding every path to the
+ * longest one allowed: the file is always read whole and sorted, so nothing
+ * seeks to an entry by its position.
+ *
+ * The entries are kept in memory keyed by path and only read again when the
+ * file has been changed by someone else. Each operation changes the entries in
+ * memory and writes the file back once, while holding its lock file, so
+ * entries are never lost when several threads or processes stage files at
+ * once. Staging a path also takes one of a fixed set of locks picked by the
+ * path, so changes to the same path happen in order while different paths are
+ * staged in parallel. Many changes can be made with one write using batch.
+ */
+public class Index {
+    static final byte[] SIGNATURE = { 'G', 'I', 'D', 'X' };
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 12;
+    static final int CHECKSUM_LENGTH = 20;
+
+    private static final byte TYPE_BLOB = 1;
+    private static final byte TYPE_TREE = 2;
+    private static final byte TYPE_DELETED = 3;
+    private static final byte TYPE_EDITED = 4;
+
+    private static final byte FLAG_STAGED = 1;
+
+    // Loaded indexes, so every part of the program shares one copy of each
+    private static final Map<Path, Index> indexes = new ConcurrentHashMap<Path, Index>();
+
+    private static final ReentrantLock[] pathLocks = new ReentrantLock[Consts.INDEX_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < pathLocks.length; i++) {
+            pathLocks[i] = new ReentrantLock();
+        }
+    }
+
+    protected Path indexPath;
+
+    private TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+    // Changes made inside batch, per thread, which are written when it ends
+    private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+
+    // Identifies the version of the file the entries were read from
+    private Object loadedKey;
+    private long loadedSize = -1;
+    private long loadedTime;
+
+    public Index(Path indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * Returns the shared index for an index file.
+     *
+     * @param indexPath
+     * @return
+     */
+    public static Index forPath(Path indexPath) {
+        return indexes.computeIfAbsent(indexPath.toAbsolutePath().normalize(), path -> new Index(path));
+    }
+
+    /**
+     * Drops the shared index for a file, so its entries no longer take up
+     * memory. Anyone still holding it can keep using it.
+     *
+     * @param indexPath
+     */
+    public static void forget(Path indexPath) {
+        indexes.remove(indexPath.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Creates an empty index file if there is none.
+     *
+     * @throws Exception
+     */
+    public void init() throws Exception {
+        if (!Files.exists(indexPath)) {
+            update(map -> {
+            });
+        }
+    }
+
+    /**
+     * Returns the lock for a path in this index. It should be held for the
+     * whole of an operation on the path, including writing its objects.
+     *
+     * @param path
+     * @return
+     */
+    public ReentrantLock lockFor(String path) {
+        int stripe = Math.floorMod((indexPath.toAbsolutePath().normalize() + ":" + path).hashCode(),
+                pathLocks.length);
+        return pathLocks[stripe];
+    }
+
+    /**
+     * Returns every entry in the index, sorted by path.
+     *
+     * @return
+     * @throws Exception
+     */
+    public synchronized List<Entry> getEntries() throws Exception {
+        return new ArrayList<Entry>(view().values());
+    }
+
+    /**
+     * Returns the entries which will be included in the next commit.
+     *
+     * @return
+     * @throws Exception
+     */
+    public synchronized List<Entry> getStagedEntries() throws Exception {
+        ArrayList<Entry> staged = new ArrayList<Entry>();
+        for (Entry entry : view().values()) {
+            if (entry.isStaged()) {
+                staged.add(entry);
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Returns the entry for a path, or null if the path is not in the index.
+     *
+     * @param path
+     * @return
+     * @throws Exception
+     */
+    public synchronized Entry getEntry(String path) throws Exception {
+        return view().get(path);
+    }
+
+    /**
+     * Runs work which makes many changes to the index and writes the file once
+     * at the end, instead of once per change. The calling thread sees its
+     * changes straight away, and other threads see them once the batch ends.
+     * The changes are made again on top of anything other writers changed in
+     * the meantime. Changes made before the work fails are still written.
+     *
+     * @param work
+     * @return What the work returned.
+     * @throws Exception
+     */
+    public <T> T batch(Callable<T> work) throws Exception {
+        if (batches.get() != null) {
+            return work.call();
+        }
+
+        Batch batch = new Batch();
+        synchronized (this) {
+            refresh();
+            batch.entries = new TreeMap<String, Entry>(entries);
+        }
+
+        batches.set(batch);
+        try {
+            return work.call();
+        } finally {
+            batches.remove();
+            if (!batch.changes.isEmpty()) {
+                modify(map -> {
+                    for (Predicate<TreeMap<String, Entry>> change : batch.changes) {
+                        change.test(map);
+                    }
+                    return true;
+                });
+            }
+        }
+    }
+
+    /**
+     * Changes the entries and writes the index once. The map passed to the
+     * change is keyed by path.
+     *
+     * @param change
+     * @throws Exception
+     */
+    public void update(Consumer<TreeMap<String, Entry>> change) throws Exception {
+        modify(map -> {
+            change.accept(map);
+            return true;
+        });
+    }
+
+    // Changes the entries and writes the index, unless the change reports that
+    // it did nothing
+    private void modify(Predicate<TreeMap<String, Entry>> change) throws Exception {
+        Batch batch = batches.get();
+        if (batch != null) {
+            synchronized (this) {
+                if (change.test(batch.entries)) {
+                    batch.changes.add(change);
+                }
+            }
+            return;
+        }
+
+        try (LockFile lock = LockFile.acquire(indexPath)) {
+            synchronized (this) {
+                refresh();
+
+                TreeMap<String, Entry> updated = new TreeMap<String, Entry>(entries);
+                if (!change.test(updated) && Files.exists(indexPath)) {
+                    return;
+                }
+
+                BasicFileAttributes attributes = lock.commit(serialize(updated));
+                entries = updated;
+                remember(attributes);
+            }
+        }
+    }
+
+    /**
+     * Stages an entry, replacing whatever was staged for its path.
+     *
+     * @param entry
+     * @throws Exception
+     */
+    public void addEntry(Entry entry) throws Exception {
+        update(map -> map.put(entry.getPath(), entry));
+    }
+
+    /**
+     * Stages several entries with a single write of the index.
+     *
+     * @param added
+     * @throws Exception
+     */
+    public void addEntries(Collection<Entry> added) throws Exception {
+        update(map -> {
+            for (Entry entry : added) {
+                map.put(entry.getPath(), entry);
+            }
+        });
+    }
+
+    /**
+     * Removes every entry matching a filter. This looks at every entry, so
+     * removeEntry, removeAll or removePrefix should be used where possible.
+     *
+     * @param filter
+     * @throws Exception
+     */
+    public void removeEntries(Predicate<Entry> filter) throws Exception {
+        modify(map -> map.values().removeIf(filter));
+    }
+
+    /**
+     * Removes the entry for a path if it has the given type.
+     *
+     * @param type Type of entry to remove (blob, tree or a marker)
+     * @param path
+     * @return True if an entry was removed.
+     * @throws Exception
+     */
+    public boolean removeEntry(String type, String path) throws Exception {
+        boolean[] removed = new boolean[1];
+        modify(map -> {
+            Entry entry = map.get(path);
+            removed[0] = entry != null && entry.getType().equals(type) && map.remove(path) != null;
+            return removed[0];
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes the entries for several paths, writing the index at most once.
+     *
+     * @param paths
+     * @return Number of entries removed.
+     * @throws Exception
+     */
+    public int removeAll(Collection<String> paths) throws Exception {
+        int[] removed = new int[1];
+        modify(map -> {
+            for (String path : paths) {
+                if (map.remove(path) != null) {
+                    removed[0]++;
+                }
+            }
+            return removed[0] > 0;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes a directory's entry and the entries of everything inside it.
+     *
+     * @param directory Path of the directory, without a trailing slash
+     * @return Number of entries removed.
+     * @throws Exception
+     */
+    public int removePrefix(String directory) throws Exception {
+        int[] removed = new int[1];
+        modify(map -> {
+            // Paths inside the directory sort between "directory/" and "directory0",
+            // since '0' comes right after '/'
+            SortedMap<String, Entry> inside = map.subMap(directory + "/", directory + "0");
+            removed[0] = inside.size();
+            inside.clear();
+
+            if (map.remove(directory) != null) {
+                removed[0]++;
+            }
+            return removed[0] > 0;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Unstages entries which have been committed. Files with known metadata
+     * stay in the index as tracked entries, and everything else is removed.
+     * Paths which have been staged again since the entries were read are left
+     * alone.
+     *
+     * @param committed Entries read by the commit
+     * @throws Exception
+     */
+    public void markCommitted(Collection<Entry> committed) throws Exception {
+        update(map -> {
+            for (Entry entry : committed) {
+                if (entry.getType().equals("blob") && entry.getStat() != null) {
+                    map.replace(entry.getPath(), entry, entry.tracked());
+                } else {
+                    map.remove(entry.getPath(), entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lists the staged entries one per line, in the same format as tree files.
+     */
+    @Override
+    public synchronized String toString() {
+        TreeMap<String, Entry> current;
+        try {
+            current = view();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : current.values()) {
+            if (!entry.isStaged()) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append("\n");
+            }
+            builder.append(entry);
+        }
+        return builder.toString();
+    }
+
+    // The entries as the calling thread should see them, including its changes
+    // in a batch
+    private TreeMap<String, Entry> view() throws Exception {
+        Batch batch = batches.get();
+        if (batch != null) {
+            return batch.entries;
+        }
+        refresh();
+        return entries;
+    }
+
+    // Reads the file again if it has changed since it was last read or written
+    private void refresh() throws Exception {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(indexPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            entries = new TreeMap<String, Entry>();
+            loadedSize = -1;
+            return;
+        }
+
+        if (Objects.equals(attributes.fileKey(), loadedKey) && attributes.size() == loadedSize
+                && attributes.lastModifiedTime().toMillis() == loadedTime) {
+            return;
+        }
+
+        entries = parse(Files.readAllBytes(indexPath));
+        remember(attributes);
+    }
+
+    private void remember(BasicFileAttributes attributes) {
+        loadedKey = attributes.fileKey();
+        loadedSize = attributes.size();
+        loadedTime = attributes.lastModifiedTime().toMillis();
+    }
+
+    private byte[] serialize(TreeMap<String, Entry> map) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.write(SIGNATURE);
+        output.writeInt(VERSION);
+        output.writeInt(map.size());
+
+        for (Entry entry : map.values()) {
+            byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+            output.writeByte(typeCode(entry.getType()));
+            output.writeByte(entry.isStaged() ? FLAG_STAGED : 0);
+            output.write(entry.isMarker() ? new byte[20] : Utils.fromHex(entry.getHash()));
+
+            FileStat stat = entry.getStat();
+            output.writeLong((stat == null) ? -1 : stat.getSize());
+            output.writeLong((stat == null) ? -1 : stat.getModifiedTime());
+            output.writeLong((stat == null) ? -1 : stat.getChangeTime());
+            output.writeLong((stat == null) ? -1 : stat.getInode());
+
+            output.writeShort(path.length);
+            output.write(path);
+        }
+
+        output.flush();
+        output.write(MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray()));
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private TreeMap<String, Entry> parse(byte[] contents) throws Exception {
+        TreeMap<String, Entry> result = new TreeMap<String, Entry>();
+        if (contents.length == 0) {
+            return result;
+        }
+
+        if (contents.length < HEADER_LENGTH + CHECKSUM_LENGTH
+                || !Arrays.equals(SIGNATURE, Arrays.copyOf(contents, SIGNATURE.length))) {
+            return parseText(new String(contents, StandardCharsets.UTF_8));
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(contents, 0, contents.length - CHECKSUM_LENGTH);
+        if (!Arrays.equals(digest.digest(),
+                Arrays.copyOfRange(contents, contents.length - CHECKSUM_LENGTH, contents.length))) {
+            throw new Exception("Index file " + indexPath + " is corrupt");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(contents, 0, contents.length - CHECKSUM_LENGTH);
+        buffer.position(SIGNATURE.length);
+        int version = buffer.getInt();
+        if (version != 1 && version != VERSION) {
+            throw new Exception("Unsupported index version " + version);
+        }
+
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte type = buffer.get();
+            boolean staged = (version == 1) || (buffer.get() & FLAG_STAGED) != 0;
+            byte[] id = new byte[20];
+            buffer.get(id);
+
+            FileStat stat = null;
+            if (version > 1) {
+                long size = buffer.getLong();
+                long mtime = buffer.getLong();
+                long ctime = buffer.getLong();
+                long inode = buffer.getLong();
+                if (mtime != -1) {
+                    stat = new FileStat(size, mtime, ctime, inode);
+                }
+            }
+
+            byte[] path = new byte[buffer.getShort() & 0xffff];
+            buffer.get(path);
+
+            String name = new String(path, StandardCharsets.UTF_8);
+            String hash = (type == TYPE_DELETED || type == TYPE_EDITED) ? "" : Utils.toHex(id);
+            result.put(name, new Entry(typeName(type), hash, name, stat, staged));
+        }
+
+        return result;
+    }
+
+    // Reads an index written before the binary format, one entry per line
+    private TreeMap<String, Entry> parseText(String contents) throws Exception {
+        TreeMap<String, Entry> result = new TreeMap<String, Entry>();
+
+        for (String line : contents.split("\n")) {
+            Entry entry;
+            if (line.equals("")) {
+                continue;
+            } else if (line.startsWith(Entry.DELETED + " ")) {
+                entry = Entry.deleted(line.substring(10));
+            } else if (line.startsWith(Entry.EDITED + " ")) {
+                entry = Entry.edited(line.substring(9));
+            } else {
+                String[] splits = line.split(" : ");
+                if (splits.length != 3) {
+                    throw new Exception("Invalid index entry " + line);
+                }
+                entry = new Entry(splits[0], splits[1], splits[2]);
+            }
+            result.put(entry.getPath(), entry);
+        }
+
+        return result;
+    }
+
+    private static byte typeCode(String type) throws Exception {
+        switch (type) {
+            case "blob":
+                return TYPE_BLOB;
+            case "tree":
+                return TYPE_TREE;
+            case Entry.DELETED:
+                return TYPE_DELETED;
+            case Entry.EDITED:
+                return TYPE_EDITED;
+            default:
+                throw new Exception("Invalid index entry type " + type);
+        }
+    }
+
+    private static String typeName(byte type) throws Exception {
+        switch (type) {
+            case TYPE_BLOB:
+                return "blob";
+            case TYPE_TREE:
+                return "tree";
+            case TYPE_DELETED:
+                return Entry.DELETED;
+            case TYPE_EDITED:
+                return Entry.EDITED;
+            default:
+                throw new Exception("Invalid index entry type " + type);
+        }
+    }
+
+    // The entries as a thread in a batch sees them, and the changes which made
+    // them differ from the file
+    private static class Batch {
+        TreeMap<String, Entry> entries;
+        ArrayList<Predicate<TreeMap<String, Entry>>> changes = new ArrayList<Predicate<TreeMap<String, Entry>>>();
+    }
+
+    /**
+     * A path in the index. Blobs and trees have the hash of their object, while
+     * deleted and edited markers only have a path. Blobs can also have the
+     * metadata their file had when it was hashed.
+     */
+    public static class Entry {
+        public static final String DELETED = "*deleted*";
+        public static final String EDITED = "*edited*";
+
+        private final String type, hash, path;
+        private final FileStat stat;
+        private final boolean staged;
+
+        public Entry(String type, String hash, String path, FileStat stat, boolean staged) {
+            this.type = type;
+            this.hash = hash;
+            this.path = path;
+            this.stat = stat;
+            this.staged = staged;
+        }
+
+        public Entry(String type, String hash, String path) {
+            this(type, hash, path, null, true);
+        }
+
+        public static Entry blob(String hash, String path) {
+            return new Entry("blob", hash, path);
+        }
+
+        public static Entry blob(String hash, String path, FileStat stat) {
+            return new Entry("blob", hash, path, stat, true);
+        }
+
+        public static Entry tree(String hash, String path) {
+            return new Entry("tree", hash, path);
+        }
+
+        public static Entry deleted(String path) {
+            return new Entry(DELETED, "", path);
+        }
+
+        public static Entry edited(String path) {
+            return new Entry(EDITED, "", path);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public FileStat getStat() {
+            return stat;
+        }
+
+        public boolean isStaged() {
+            return staged;
+        }
+
+        public boolean isMarker() {
+            return hash.equals("");
+        }
+
+        /**
+         * Returns true if a file with this metadata is known to still have the
+         * entry's contents, so it does not need to be hashed again.
+         *
+         * @param current Metadata the file has now
+         * @return
+         */
+        public boolean isUnchanged(FileStat current) {
+            return type.equals("blob") && stat != null && !stat.isSmudged() && stat.equals(current);
+        }
+
+        // The same entry once it has been committed
+        Entry tracked() {
+            return new Entry(type, hash, path, stat, false);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) other;
+            return type.equals(entry.type) && hash.equals(entry.hash) && path.equals(entry.path)
+                    && Objects.equals(stat, entry.stat) && staged == entry.staged;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, hash, path, staged);
+        }
+
+        // Blobs and trees are written the same way as in tree files
+        @Override
+        public String toString() {
+            return isMarker() ? type + " " + path : type + " : " + hash + " : " + path;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class IndexTester {
+    private static final String HASH1 = "08219db9b0969fa29cf16fd04df4a63964da0b69";
+    private static final String HASH2 = "30d67d4672d5c05833b7192cc77a79eaafb5c7ad";
+
+    @BeforeEach
+    void deleteEverything() throws Exception {
+        // Queued object writes must land before their folder is deleted
+        ObjectStores.forDirectory("project/objects").sync();
+        Utils.deleteDirectory("project");
+    }
+
+    @Test
+    @DisplayName("Verify entries are kept sorted with one entry per path")
+    void testEntries() throws Exception {
+        Index index = new Index(Paths.get("project/index"));
+        index.addEntry(Index.Entry.blob(HASH1, "b.txt"));
+        index.addEntry(Index.Entry.tree(HASH2, "a"));
+        index.addEntry(Index.Entry.deleted("c.txt"));
+
+        // Staging a path again replaces its entry
+        index.addEntry(Index.Entry.blob(HASH2, "b.txt"));
+
+        assertEquals("tree : " + HASH2 + " : a\n" + //
+                "blob : " + HASH2 + " : b.txt\n" + //
+                "*deleted* c.txt", index.toString());
+
+        // Confirm a fresh copy reads the same entries from the binary file
+        assertEquals(index.getEntries(), new Index(Paths.get("project/index")).getEntries());
+        assertArrayEquals(Index.SIGNATURE, Arrays.copyOf(Files.readAllBytes(Paths.get("project/index")), 4));
+    }
+
+    @Test
+    @DisplayName("Verify staging many files writes the index once")
+    void testAddEntries() throws Exception {
+        Index index = new Index(Paths.get("project/index"));
+
+        List<Index.Entry> entries = new ArrayList<Index.Entry>();
+        for (int i = 0; i < 10000; i++) {
+            entries.add(Index.Entry.blob(HASH1, "file" + i + ".txt"));
+        }
+        index.addEntries(entries);
+
+        assertEquals(10000, new Index(Paths.get("project/index")).getEntries().size());
+        assertEquals(Index.Entry.blob(HASH1, "file42.txt"), index.getEntry("file42.txt"));
+    }
+
+    @Test
+    @DisplayName("Verify changes made in a batch are written once and kept alongside other writers")
+    void testBatch() throws Exception {
+        Index index = new Index(Paths.get("project/index"));
+        Index other = new Index(Paths.get("project/index"));
+        index.addEntry(Index.Entry.blob(HASH1, "kept.txt"));
+        Object before = Files.readAttributes(Paths.get("project/index"), BasicFileAttributes.class).fileKey();
+
+        index.batch(() -> {
+            for (int i = 0; i < 1000; i++) {
+                index.addEntry(Index.Entry.blob(HASH1, "file" + i + ".txt"));
+            }
+            index.removeEntry("blob", "file0.txt");
+
+            // The batch sees its own changes, but nothing is written until it ends
+            assertNull(index.getEntry("file0.txt"));
+            assertEquals(Index.Entry.blob(HASH1, "file1.txt"), index.getEntry("file1.txt"));
+            assertEquals(1, other.getEntries().size());
+            assertEquals(before,
+                    Files.readAttributes(Paths.get("project/index"), BasicFileAttributes.class).fileKey());
+
+            // Another writer changes the index in the meantime
+            Thread writer = new Thread(() -> {
+                try {
+                    other.addEntry(Index.Entry.blob(HASH2, "other.txt"));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writer.start();
+            writer.join();
+            return null;
+        });
+
+        List<Index.Entry> entries = new Index(Paths.get("project/index")).getEntries();
+        assertEquals(1001, entries.size());
+        assertTrue(entries.contains(Index.Entry.blob(HASH2, "other.txt")));
+        assertTrue(entries.contains(Index.Entry.blob(HASH1, "kept.txt")));
+        assertFalse(entries.contains(Index.Entry.blob(HASH1, "file0.txt")));
+    }
+
+    @Test
+    @DisplayName("Verify corrupt index files are detected")
+    void testChecksum() throws Exception {
+        Path indexPath = Paths.get("project/index");
+        new Index(indexPath).addEntry(Index.Entry.blob(HASH1, "file1.txt"));
+
+        byte[] contents = Files.readAllBytes(indexPath);
+        contents[Index.HEADER_LENGTH + 5] ^= 1;
+        Files.write(indexPath, contents);
+
+        assertThrows(Exception.class, () -> new Index(indexPath).getEntries());
+    }
+
+    @Test
+    @DisplayName("Verify text index files from before the binary format are still read")
+    void testTextIndex() throws Exception {
+        Utils.writeFile("project/index", "blob : " + HASH1 + " : file1.txt\n*edited* file2.txt");
+
+        Index index = new Index(Paths.get("project/index"));
+        assertEquals(Index.Entry.blob(HASH1, "file1.txt"), index.getEntry("file1.txt"));
+        assertEquals(Index.Entry.edited("file2.txt"), index.getEntry("file2.txt"));
+
+        // Confirm the next change rewrites it in the binary format
+        index.removeEntries(entry -> entry.getPath().equals("file1.txt"));
+        assertArrayEquals(Index.SIGNATURE, Arrays.copyOf(Files.readAllBytes(Paths.get("project/index")), 4));
+        assertEquals("*edited* file2.txt", new Index(Paths.get("project/index")).toString());
+    }
+
+    @Test
+    @DisplayName("Verify entries are removed by path, in batches and by directory")
+    void testRemoval() throws Exception {
+        Index index = new Index(Paths.get("project/index"));
+
+        List<Index.Entry> entries = new ArrayList<Index.Entry>();
+        for (String path : new String[] { "a.txt", "b.txt", "folder1", "folder1/c.txt", "folder1/sub/d.txt",
+                "folder1.txt", "folder10/e.txt" }) {
+            entries.add(Index.Entry.blob(HASH1, path));
+        }
+        index.addEntries(entries);
+
+        // Confirm entries of the wrong type are left alone
+        assertFalse(index.removeEntry("tree", "a.txt"));
+        assertTrue(index.removeEntry("blob", "a.txt"));
+
+        // Confirm only the directory and what is inside it are removed
+        assertEquals(3, index.removePrefix("folder1"));
+        assertEquals("blob : " + HASH1 + " : b.txt\n" + //
+                "blob : " + HASH1 + " : folder1.txt\n" + //
+                "blob : " + HASH1 + " : folder10/e.txt", index.toString());
+
+        // Confirm removing paths which are not staged does not write the index
+        Object fileKey = Files.readAttributes(Paths.get("project/index"), BasicFileAttributes.class).fileKey();
+        assertEquals(0, index.removeAll(Arrays.asList("missing1.txt", "missing2.txt")));
+        assertEquals(fileKey, Files.readAttributes(Paths.get("project/index"), BasicFileAttributes.class).fileKey());
+
+        assertEquals(2, index.removeAll(Arrays.asList("b.txt", "folder1.txt", "missing.txt")));
+        assertEquals("blob : " + HASH1 + " : folder10/e.txt", new Index(Paths.get("project/index")).toString());
+    }
+}
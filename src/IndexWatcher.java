@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches a project for changes and keeps its index up to date, so a commit
+ * after a small edit does not have to scan the whole project.
+ *
+ * Changed paths are recorded as the file system reports them, and once
+ * changes stop for Consts.WATCH_DEBOUNCE_MILLIS only those paths are checked:
+ * new and changed files are added, and deleted files are removed or marked as
+ * deleted, depending on whether they have been committed. Only the parts of
+ * HEAD's tree which lead to those paths are read. If the file system drops
+ * events, or a refresh fails, the whole project is scanned instead.
+ */
+public class IndexWatcher implements AutoCloseable {
+    protected Git git;
+    protected Path root;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<WatchKey, Path>();
+    private final Set<String> dirtyPaths = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+
+    private volatile boolean rescanNeeded;
+    private volatile boolean closed;
+
+    // Whether the last refresh failed, so a failure which repeats is only
+    // reported once
+    private boolean failing;
+    private long rescans, refreshes;
+
+    /**
+     * Starts watching a repository's project directory.
+     *
+     * @param git
+     * @throws Exception
+     */
+    public IndexWatcher(Git git) throws Exception {
+        this.git = git;
+        this.root = git.projectDirectory.toAbsolutePath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        registerAll(root);
+
+        thread = new Thread(this::run, "index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Brings the index up to date with every change seen so far. Called
+     * automatically once changes settle, but can be called before a commit to
+     * be sure nothing is waiting.
+     *
+     * @throws Exception
+     */
+    public synchronized void refresh() throws Exception {
+        if (rescanNeeded) {
+            rescanNeeded = false;
+            dirtyPaths.clear();
+            rescan();
+            return;
+        }
+
+        if (dirtyPaths.isEmpty()) {
+            return;
+        }
+
+        ArrayList<String> paths = new ArrayList<String>(dirtyPaths);
+        dirtyPaths.removeAll(paths);
+        refreshes++;
+
+        TreeMap<String, String> committed = committedFiles(paths);
+        git.index.batch(() -> {
+            for (String path : paths) {
+                Path file = root.resolve(path);
+                if (Files.isRegularFile(file)) {
+                    updateFile(path, committed);
+                } else if (!Files.isDirectory(file)) {
+                    removePath(path, committed);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Makes the next refresh scan the whole project, as happens when the file
+     * system drops events.
+     */
+    public void requestRescan() {
+        rescanNeeded = true;
+    }
+
+    public synchronized long getRescans() {
+        return rescans;
+    }
+
+    // Number of refreshes which only checked changed paths
+    public synchronized long getRefreshes() {
+        return refreshes;
+    }
+
+    public boolean hasPendingChanges() {
+        return rescanNeeded || !dirtyPaths.isEmpty();
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            // Leaves the thread to stop on its own
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                WatchKey key = watchService.poll(Consts.WATCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    // Nothing has changed for a while, so the changes so far are applied
+                    if (hasPendingChanges()) {
+                        refresh();
+                        failing = false;
+                    }
+                    continue;
+                }
+
+                Path directory = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescanNeeded = true;
+                    } else if (directory != null) {
+                        changed(directory.resolve((Path) event.context()));
+                    }
+                }
+
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+            } catch (ClosedWatchServiceException | InterruptedException e) {
+                // Closed
+                return;
+            } catch (Exception e) {
+                // The index can no longer be trusted to match the project, so the next
+                // refresh starts from scratch
+                if (!failing) {
+                    System.err.println("Index watcher failed to update " + root + ": " + e);
+                }
+                failing = true;
+                rescanNeeded = true;
+            }
+        }
+    }
+
+    private void changed(Path path) throws IOException {
+        Path relative = root.relativize(path);
+        if (Git.isIgnored(relative)) {
+            return;
+        }
+
+        dirtyPaths.add(toIndexPath(relative));
+
+        // Files can be created in a new folder before it is watched, so everything
+        // already inside it is treated as changed
+        if (Files.isDirectory(path)) {
+            registerAll(path);
+            for (Path file : git.listFiles(path)) {
+                dirtyPaths.add(toIndexPath(file));
+            }
+        }
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+                    throws IOException {
+                if (Git.isIgnored(root.relativize(directory))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                // Deleted before it could be watched, which the delete event covers
+                if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw e;
+            }
+        });
+    }
+
+    // HEAD's files at the given paths or inside them. Only the folders leading
+    // to the paths are read
+    private TreeMap<String, String> committedFiles(Collection<String> paths) throws Exception {
+        TreeMap<String, String> files = new TreeMap<String, String>();
+        String head = git.getHead();
+        if (head.equals("")) {
+            return files;
+        }
+
+        TreeDiff diff = new TreeDiff(git.objectsPath, git.store, SparsePatterns.ofPaths(paths));
+        try (Stream<DiffEntry> entries = diff.diff("", git.getCommitTree(head))) {
+            entries.forEach(entry -> files.put(entry.getPath(), entry.getNewHash()));
+        }
+        return files;
+    }
+
+    // Checks every file in the project and every path in the index, writing the
+    // index once at the end
+    private void rescan() throws Exception {
+        rescans++;
+
+        TreeMap<String, String> committed = git.getFiles(git.getHead());
+        git.index.batch(() -> {
+            for (Path file : git.listFiles(root)) {
+                updateFile(toIndexPath(file), committed);
+            }
+
+            // Anything committed or staged which is no longer on disk has been deleted
+            ArrayList<String> known = new ArrayList<String>(committed.keySet());
+            for (Index.Entry entry : git.index.getEntries()) {
+                known.add(entry.getPath());
+            }
+            for (String path : known) {
+                if (!Files.exists(root.resolve(path))) {
+                    removePath(path, committed);
+                }
+            }
+            return null;
+        });
+    }
+
+    private void updateFile(String path, TreeMap<String, String> committed) throws Exception {
+        Index.Entry entry = git.index.getEntry(path);
+        if (entry != null && (entry.getType().equals(Index.Entry.EDITED)
+                || entry.isUnchanged(FileStat.read(root.resolve(path))))) {
+            // Files marked as edited are hashed when they are committed
+            return;
+        }
+
+        // Committed files whose contents are back to what was committed need nothing
+        // staged, including deleted files which have come back
+        boolean deleted = entry != null && entry.getType().equals(Index.Entry.DELETED);
+        String committedHash = committed.get(path);
+        if (committedHash != null && (entry == null || !entry.isStaged() || deleted)
+                && committedHash.equals(Utils.hashObject("blob", root.resolve(path)))) {
+            if (deleted) {
+                git.index.removeEntry(Index.Entry.DELETED, path);
+            }
+            return;
+        }
+
+        // Staging the file replaces any delete marker
+        git.addFile(path);
+    }
+
+    // Removes a deleted file or folder from the index
+    private void removePath(String path, TreeMap<String, String> committed) throws Exception {
+        ArrayList<String> removed = new ArrayList<String>();
+        for (Index.Entry entry : git.index.getEntries()) {
+            // Committed files are replaced by their delete markers below instead
+            if (isInside(entry.getPath(), path) && !committed.containsKey(entry.getPath())) {
+                removed.add(entry.getPath());
+            }
+        }
+        git.removeAll(removed);
+
+        // Files outside a sparse checkout are missing on purpose
+        SparsePatterns sparse = git.getSparsePatterns();
+        for (String file : committed.keySet()) {
+            if (isInside(file, path) && (sparse == null || sparse.includes(file))) {
+                git.deleteFile(file);
+            }
+        }
+    }
+
+    private static boolean isInside(String path, String directory) {
+        return path.equals(directory) || path.startsWith(directory + "/");
+    }
+
+    private static String toIndexPath(Path relative) {
+        StringBuilder builder = new StringBuilder();
+        for (Path part : relative) {
+            if (builder.length() > 0) {
+                builder.append("/");
+            }
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+}
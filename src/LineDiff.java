@@ -0,0 +1,275 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line by line differences between two blobs, found with Myers' diff
+ * algorithm.
+ *
+ * Both blobs are streamed from the store, and lines at the start which match
+ * are passed over as they are read, so only the part from the first
+ * difference on is held in memory. Lines at the end which match are trimmed
+ * before diffing, and Myers' algorithm takes time in proportion to the number
+ * of lines changed, so small edits to large files stay cheap. The linear space
+ * version of the algorithm is used, and past Consts.LINE_DIFF_MAX_COST changes
+ * the rest of a region is reported as one replacement, so rewritten files stay
+ * cheap as well.
+ *
+ * Lines from blobs keep their line endings, so a change from CRLF to LF or to
+ * the newline at the end of a file shows up as an edit.
+ */
+public class LineDiff {
+    /**
+     * Compares two blobs.
+     *
+     * @param store
+     * @param oldHash Blob before, or null if it was added
+     * @param newHash Blob after, or null if it was removed
+     * @return Changed regions, in order.
+     * @throws Exception
+     */
+    public static List<Edit> compare(ObjectStore store, String oldHash, String newHash) throws Exception {
+        if (oldHash != null && oldHash.equals(newHash)) {
+            return Collections.emptyList();
+        }
+
+        try (BufferedReader oldReader = open(store, oldHash); BufferedReader newReader = open(store, newHash)) {
+            // Matching lines at the start are never kept
+            int prefix = 0;
+            String oldLine = readLine(oldReader), newLine = readLine(newReader);
+            while (oldLine != null && oldLine.equals(newLine)) {
+                prefix++;
+                oldLine = readLine(oldReader);
+                newLine = readLine(newReader);
+            }
+
+            ArrayList<String> oldLines = readRest(oldReader, oldLine);
+            ArrayList<String> newLines = readRest(newReader, newLine);
+            return diff(oldLines, newLines, prefix);
+        }
+    }
+
+    /**
+     * Compares two lists of lines.
+     *
+     * @param oldLines
+     * @param newLines
+     * @return Changed regions, in order.
+     */
+    public static List<Edit> diff(List<String> oldLines, List<String> newLines) {
+        return diff(oldLines, newLines, 0);
+    }
+
+    // Line numbers in the edits are moved on by offset, for lines which were
+    // already matched before the lists
+    private static List<Edit> diff(List<String> oldLines, List<String> newLines, int offset) {
+        // Lines are compared as numbers, with equal lines given the same number
+        HashMap<String, Integer> numbers = new HashMap<String, Integer>();
+        int[] a = number(oldLines, numbers), b = number(newLines, numbers);
+
+        ArrayList<int[]> regions = new ArrayList<int[]>();
+        divide(a, 0, a.length, b, 0, b.length, regions);
+
+        ArrayList<Edit> edits = new ArrayList<Edit>();
+        for (int[] region : regions) {
+            edits.add(new Edit(offset + region[0], offset + region[1], offset + region[2], offset + region[3],
+                    new ArrayList<String>(oldLines.subList(region[0], region[1])),
+                    new ArrayList<String>(newLines.subList(region[2], region[3]))));
+        }
+        return edits;
+    }
+
+    // Finds the changed regions between a[aStart, aEnd) and b[bStart, bEnd) as
+    // { oldStart, oldEnd, newStart, newEnd }. The middle snake of the shortest
+    // edit script splits the lines into two smaller problems, so memory stays in
+    // proportion to the number of lines rather than the number of changes
+    private static void divide(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd, List<int[]> regions) {
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while (aEnd > aStart && bEnd > bStart && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+
+        if (aStart == aEnd || bStart == bEnd) {
+            if (aStart < aEnd || bStart < bEnd) {
+                addRegion(regions, aStart, aEnd, bStart, bEnd);
+            }
+            return;
+        }
+
+        int[] snake = middleSnake(a, aStart, aEnd, b, bStart, bEnd);
+        if (snake == null) {
+            // Too many changes to search through, so the rest is replaced whole
+            addRegion(regions, aStart, aEnd, bStart, bEnd);
+            return;
+        }
+
+        divide(a, aStart, snake[0], b, bStart, snake[1], regions);
+        divide(a, snake[2], aEnd, b, snake[3], bEnd, regions);
+    }
+
+    // Searches for the shortest edit script from both ends at once until the two
+    // searches meet, returning the lines they meet on as { oldStart, newStart,
+    // oldEnd, newEnd }. Returns null if the script is longer than
+    // Consts.LINE_DIFF_MAX_COST
+    private static int[] middleSnake(int[] a, int aStart, int aEnd, int[] b, int bStart, int bEnd) {
+        int n = aEnd - aStart, m = bEnd - bStart, delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int limit = Math.min((n + m + 1) / 2, Consts.LINE_DIFF_MAX_COST / 2);
+
+        // forward[offset + k] is the furthest x reached from the start on diagonal
+        // k = x - y, and backward[offset + c] the furthest reached back from the
+        // end on diagonal c, counted from the end
+        int offset = limit + 1;
+        int[] forward = new int[2 * limit + 3], backward = new int[2 * limit + 3];
+
+        for (int d = 0; d <= limit; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]))
+                        ? forward[offset + k + 1]
+                        : forward[offset + k - 1] + 1;
+                int y = x - k, startX = x, startY = y;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+
+                int c = delta - k;
+                if (odd && c >= 1 - d && c <= d - 1 && x + backward[offset + c] >= n) {
+                    return new int[] { aStart + startX, bStart + startY, aStart + x, bStart + y };
+                }
+            }
+
+            for (int c = -d; c <= d; c += 2) {
+                int x = (c == -d || (c != d && backward[offset + c - 1] < backward[offset + c + 1]))
+                        ? backward[offset + c + 1]
+                        : backward[offset + c - 1] + 1;
+                int y = x - c, startX = x, startY = y;
+                while (x < n && y < m && a[aEnd - 1 - x] == b[bEnd - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + c] = x;
+
+                int k = delta - c;
+                if (!odd && k >= -d && k <= d && x + forward[offset + k] >= n) {
+                    return new int[] { aEnd - x, bEnd - y, aEnd - startX, bEnd - startY };
+                }
+            }
+        }
+        return null;
+    }
+
+    // Regions with no matching lines between them join into one
+    private static void addRegion(List<int[]> regions, int oldStart, int oldEnd, int newStart, int newEnd) {
+        int[] last = regions.isEmpty() ? null : regions.get(regions.size() - 1);
+        if (last != null && last[1] == oldStart && last[3] == newStart) {
+            last[1] = oldEnd;
+            last[3] = newEnd;
+        } else {
+            regions.add(new int[] { oldStart, oldEnd, newStart, newEnd });
+        }
+    }
+
+    private static int[] number(List<String> lines, Map<String, Integer> numbers) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = numbers.computeIfAbsent(lines.get(i), line -> numbers.size());
+        }
+        return result;
+    }
+
+    private static BufferedReader open(ObjectStore store, String hash) throws Exception {
+        if (hash == null) {
+            return new BufferedReader(new StringReader(""));
+        }
+        return new BufferedReader(new InputStreamReader(store.open(hash), StandardCharsets.UTF_8));
+    }
+
+    // Reads a line along with its line ending, so changes to line endings and a
+    // missing newline at the end are found. Returns null at the end
+    private static String readLine(BufferedReader reader) throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int character = reader.read(); character != -1; character = reader.read()) {
+            line.append((char) character);
+            if (character == '\n') {
+                break;
+            }
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static ArrayList<String> readRest(BufferedReader reader, String first) throws Exception {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (String line = first; line != null; line = readLine(reader)) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * A region of lines which changed. Lines are numbered from 0 and ends are
+     * exclusive, so an empty old region is an insertion and an empty new region
+     * is a deletion.
+     */
+    public static class Edit {
+        private final int oldStart, oldEnd, newStart, newEnd;
+        private final List<String> oldLines, newLines;
+
+        Edit(int oldStart, int oldEnd, int newStart, int newEnd, List<String> oldLines, List<String> newLines) {
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+            this.oldLines = oldLines;
+            this.newLines = newLines;
+        }
+
+        public int getOldStart() {
+            return oldStart;
+        }
+
+        public int getOldEnd() {
+            return oldEnd;
+        }
+
+        public int getNewStart() {
+            return newStart;
+        }
+
+        public int getNewEnd() {
+            return newEnd;
+        }
+
+        // Lines removed
+        public List<String> getOldLines() {
+            return oldLines;
+        }
+
+        // Lines added in their place
+        public List<String> getNewLines() {
+            return newLines;
+        }
+
+        // In the style of a unified diff hunk header, counting lines from 1. An
+        // empty range is numbered by the line before it
+        @Override
+        public String toString() {
+            return "@@ -" + range(oldStart, oldEnd) + " +" + range(newStart, newEnd) + " @@";
+        }
+
+        private static String range(int start, int end) {
+            return ((end == start) ? start : start + 1) + "," + (end - start);
+        }
+    }
+}
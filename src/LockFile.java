@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the lock on a file such as HEAD or the index, so several threads and
+ * processes can share a repository. The lock is a file next to the target
+ * with ".lock" added, which is created exclusively. New contents are written
+ * to the lock file and renamed over the target, so readers only ever see the
+ * old or the new contents and releasing the lock is the same rename.
+ *
+ * Threads in the same process wait on an in-memory lock first, so only one of
+ * them competes for the lock file at a time.
+ *
+ * A new lock file names the process holding it. If that process has exited
+ * without releasing the lock, the next writer removes the lock file instead of
+ * waiting on it forever.
+ */
+public class LockFile implements AutoCloseable {
+    private static final Map<Path, ReentrantLock> localLocks = new ConcurrentHashMap<Path, ReentrantLock>();
+
+    // Longest owner line read back from a lock file
+    private static final int OWNER_MAX_LENGTH = 256;
+
+    // How often (in milliseconds) a waiting writer checks whether the lock's
+    // owner is still running
+    private static final long STALE_CHECK_MILLIS = 100;
+
+    private static final String HOST = hostName();
+    private static final String OWNER = owner(ProcessHandle.current());
+
+    protected Path target, lockPath;
+    private ReentrantLock localLock;
+    private boolean released;
+
+    private LockFile(Path target, ReentrantLock localLock) {
+        this.target = target;
+        this.lockPath = target.resolveSibling(target.getFileName() + ".lock");
+        this.localLock = localLock;
+    }
+
+    /**
+     * Locks a file, waiting up to Consts.LOCK_TIMEOUT_MILLIS for another writer
+     * to finish with it.
+     *
+     * @param target File to lock
+     * @return
+     * @throws Exception If the lock could not be taken in time
+     */
+    public static LockFile acquire(Path target) throws Exception {
+        Path key = target.toAbsolutePath().normalize();
+        ReentrantLock localLock = localLocks.computeIfAbsent(key, path -> new ReentrantLock());
+
+        long deadline = System.currentTimeMillis() + Consts.LOCK_TIMEOUT_MILLIS;
+        if (!localLock.tryLock(Consts.LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new Exception("Timed out waiting for the lock on " + target);
+        }
+
+        LockFile lock = new LockFile(key, localLock);
+        try {
+            Files.createDirectories(key.getParent());
+
+            long nextStaleCheck = 0;
+            while (true) {
+                try {
+                    Files.write(lock.lockPath, OWNER.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE);
+                    return lock;
+                } catch (FileAlreadyExistsException e) {
+                    // Another process holds the lock, or held it and exited
+                    if (System.currentTimeMillis() >= nextStaleCheck) {
+                        nextStaleCheck = System.currentTimeMillis() + STALE_CHECK_MILLIS;
+                        if (removeIfStale(lock.lockPath)) {
+                            continue;
+                        }
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new Exception("Unable to lock " + target + ": " + lock.lockPath + " exists");
+                    }
+                    Thread.sleep(1);
+                }
+            }
+        } catch (Exception e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    // Describes a process in the form written to its lock files: its pid, when it
+    // started and the host it runs on
+    static String owner(ProcessHandle process) {
+        long started = process.info().startInstant().map(Instant::toEpochMilli).orElse(0L);
+        return "pid " + process.pid() + " " + started + " " + HOST;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName().replace(' ', '_');
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    // Removes a lock file left behind by a process which has exited. Returns
+    // false if the lock may still be held.
+    //
+    // Waiters take turns at this by creating a second lock file, so one cannot
+    // remove a lock which another has just taken over. The lock is checked again
+    // once it is their turn, since only the owner or a waiter taking its turn
+    // ever removes it.
+    private static boolean removeIfStale(Path lockPath) throws Exception {
+        String owner = readOwner(lockPath);
+        if (owner == null || !isStale(lockPath, owner)) {
+            return false;
+        }
+
+        Path takeoverPath = lockPath.resolveSibling(lockPath.getFileName() + ".takeover");
+        try {
+            Files.write(takeoverPath, OWNER.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            // Another waiter's turn. It only lasts a moment, so the file is only left
+            // behind if that waiter exited during it
+            String taker = readOwner(takeoverPath);
+            if (taker != null && isStale(takeoverPath, taker)) {
+                Files.deleteIfExists(takeoverPath);
+            }
+            return false;
+        }
+
+        try {
+            owner = readOwner(lockPath);
+            if (owner != null && !isStale(lockPath, owner)) {
+                return false;
+            }
+            Files.deleteIfExists(lockPath);
+            return true;
+        } finally {
+            Files.deleteIfExists(takeoverPath);
+        }
+    }
+
+    // Reads the start of a lock file, or null if it has just been removed
+    private static String readOwner(Path lockPath) throws Exception {
+        try (InputStream input = Files.newInputStream(lockPath)) {
+            return new String(input.readNBytes(OWNER_MAX_LENGTH), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // A lock taken on this host is stale once its process has exited. Otherwise,
+    // including while the owner line is being replaced by new contents, it is
+    // only stale once it is older than Consts.LOCK_STALE_MILLIS.
+    private static boolean isStale(Path lockPath, String owner) throws Exception {
+        String[] fields = owner.split(" ");
+        if (fields.length == 4 && fields[0].equals("pid") && fields[3].equals(HOST)) {
+            try {
+                long pid = Long.parseLong(fields[1]);
+                long started = Long.parseLong(fields[2]);
+                Optional<ProcessHandle> process = ProcessHandle.of(pid);
+                if (process.isEmpty() || !process.get().isAlive()) {
+                    return true;
+                }
+
+                // A different process started since with the same pid
+                long running = process.get().info().startInstant().map(Instant::toEpochMilli).orElse(0L);
+                return started != 0 && running != 0 && started != running;
+            } catch (NumberFormatException e) {
+                // Not an owner line
+            }
+        }
+
+        try {
+            long modified = Files.getLastModifiedTime(lockPath).toMillis();
+            return System.currentTimeMillis() - modified > Consts.LOCK_STALE_MILLIS;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the target's contents and releases the lock.
+     *
+     * @param content
+     * @throws Exception
+     */
+    public void commit(String content) throws Exception {
+        commit(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replaces the target's contents and releases the lock.
+     *
+     * @param content
+     * @return Attributes of the new file, read before anyone else can change it.
+     * @throws Exception
+     */
+    public BasicFileAttributes commit(byte[] content) throws Exception {
+        if (released) {
+            throw new Exception("Lock on " + target + " has already been released");
+        }
+
+        try {
+            // The contents must be on disk before the rename makes them the target's
+            try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            BasicFileAttributes attributes = Files.readAttributes(lockPath, BasicFileAttributes.class);
+            Files.move(lockPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return attributes;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Releases the lock, leaving the target as it is if commit was not called.
+     */
+    @Override
+    public void close() throws IOException {
+        if (released) {
+            return;
+        }
+        released = true;
+
+        try {
+            Files.deleteIfExists(lockPath);
+        } finally {
+            localLock.unlock();
+
+            // Drops the in-memory lock once nobody is waiting on it, so the map does
+            // not grow with every file ever locked. A thread which picked it up
+            // just before still competes for the lock file like any other process
+            if (!localLock.isLocked() && !localLock.hasQueuedThreads()) {
+                localLocks.remove(target, localLock);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.List;
+
+/**
+ * One page of history from Git.logPage, with a cursor for the next page.
+ */
+public class LogPage {
+    private final List<CommitView> commits;
+    private final String cursor;
+
+    LogPage(List<CommitView> commits, String cursor) {
+        this.commits = commits;
+        this.cursor = cursor;
+    }
+
+    public List<CommitView> getCommits() {
+        return commits;
+    }
+
+    /**
+     * Returns the token to pass to Git.logPage for the next page. It is only the
+     * hash of the next commit to walk, so pages can be fetched in any later
+     * session without keeping anything in memory.
+     *
+     * @return Cursor, or null if this is the last page.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean hasNext() {
+        return cursor != null;
+    }
+}
@@ -0,0 +1,101 @@
+import java.time.LocalDate;
+
+/**
+ * Chooses which commits Git.log returns. Every setter returns the query, so
+ * they can be chained:
+ *
+ * git.log(new LogQuery().author("Wyatt").since(date).limit(20))
+ *
+ * Commits are always walked newest first. Dates only go back in time along
+ * the history, so the walk stops at the first commit older than since instead
+ * of reading the rest of the history.
+ */
+public class LogQuery {
+    protected String start;
+    protected long skip = 0, limit = -1;
+    protected String author, since, until;
+
+    /**
+     * @param commitHash Commit to start from instead of HEAD
+     * @return
+     */
+    public LogQuery start(String commitHash) {
+        this.start = commitHash;
+        return this;
+    }
+
+    /**
+     * @param count Number of matching commits to leave out from the start
+     * @return
+     */
+    public LogQuery skip(long count) {
+        this.skip = count;
+        return this;
+    }
+
+    /**
+     * @param count Most matching commits to return
+     * @return
+     */
+    public LogQuery limit(long count) {
+        this.limit = count;
+        return this;
+    }
+
+    public LogQuery author(String author) {
+        this.author = author;
+        return this;
+    }
+
+    // Only commits made on or after the date
+    public LogQuery since(LocalDate date) {
+        this.since = Commit.dtf.format(date);
+        return this;
+    }
+
+    // Only commits made on or before the date
+    public LogQuery until(LocalDate date) {
+        this.until = Commit.dtf.format(date);
+        return this;
+    }
+
+    // True once the walk has gone back past since, so no older commit can match.
+    // Dates are formatted year first, so they compare as strings
+    boolean isPast(CommitView commit) throws Exception {
+        return since != null && commit.getDate().compareTo(since) < 0;
+    }
+
+    boolean matches(CommitView commit) throws Exception {
+        if (author != null && !author.equals(commit.getAuthor())) {
+            return false;
+        }
+        return until == null || commit.getDate().compareTo(until) <= 0;
+    }
+
+    interface Step<T> {
+        T call() throws Exception;
+    }
+
+    // Streams cannot throw checked exceptions, so failures are carried out as
+    // unchecked ones
+    static <T> T unchecked(Step<T> step) {
+        try {
+            return step.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new LogException(e);
+        }
+    }
+
+    /**
+     * Thrown from the log stream when a commit cannot be read.
+     */
+    public static class LogException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LogException(Exception cause) {
+            super(cause);
+        }
+    }
+}
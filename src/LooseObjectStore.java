@@ -0,0 +1,389 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores every object as its own zipped file in the objects folder, sharded
+ * by the start of its hash. Objects which have been repacked are read from
+ * the folder's packs.
+ *
+ * Objects are written behind the caller: put and write return as soon as the
+ * object is queued, and a small pool of writers creates the files. Queued
+ * objects can be read straight away, and sync waits for them to be written
+ * and flushes them to disk.
+ *
+ * An object whose write fails is dropped from the queue, so it is no longer
+ * found and the next put of it writes it again. Until then a sync of anything
+ * which refers to it fails, so nothing which refers to it is made durable.
+ */
+public class LooseObjectStore implements ObjectStore {
+    // Shared by every loose store. Once the queue is full, or its objects take up
+    // Consts.OBJECT_WRITE_QUEUE_BYTES, callers write their objects themselves, so
+    // the memory held by queued objects stays bounded
+    private static final ThreadPoolExecutor writers = new ThreadPoolExecutor(Consts.OBJECT_WRITER_THREADS,
+            Consts.OBJECT_WRITER_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(Consts.OBJECT_WRITE_QUEUE_SIZE), runnable -> {
+                Thread thread = new Thread(runnable, "object-writer");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        writers.allowCoreThreadTimeOut(true);
+    }
+
+    protected Path objectsDirectory;
+    protected boolean compress;
+    protected PackedObjectStore packs;
+
+    // Objects which have been queued but not written yet
+    private final Map<String, byte[]> pending = new ConcurrentHashMap<String, byte[]>();
+
+    // Size of the objects queued by every loose store
+    private static final AtomicLong pendingBytes = new AtomicLong();
+
+    // Files which have been written but not flushed to disk yet
+    private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+
+    // Objects whose last write failed, until they are written or removed
+    private final Map<String, Exception> failures = new ConcurrentHashMap<String, Exception>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Object idle = new Object();
+
+    // Writes of the same object are never run at the same time
+    private final Object[] locks = new Object[64];
+
+    public LooseObjectStore(Path objectsDirectory) {
+        this(objectsDirectory, Consts.COMPRESS_FILES);
+    }
+
+    /**
+     * Creates a new loose object store
+     *
+     * @param objectsDirectory Path to objects folder
+     * @param compress         Whether or not to zip object files
+     */
+    public LooseObjectStore(Path objectsDirectory, boolean compress) {
+        this.objectsDirectory = objectsDirectory;
+        this.compress = compress;
+        this.packs = new PackedObjectStore(objectsDirectory);
+
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public void init() throws Exception {
+        Files.createDirectories(objectsDirectory);
+    }
+
+    @Override
+    public boolean has(String hash) throws Exception {
+        return pending.containsKey(hash) || Utils.findLooseObject(objectsDirectory, hash) != null || packs.has(hash);
+    }
+
+    /**
+     * Reads an object, keeping the inflated contents in the shared object cache.
+     */
+    @Override
+    public byte[] get(String hash) throws Exception {
+        byte[] queued = pending.get(hash);
+        if (queued != null) {
+            return queued.clone();
+        }
+
+        ObjectCache cache = ObjectCache.getShared();
+        byte[] cached = cache.get(cacheKey(hash), byte[].class);
+        if (cached != null) {
+            return cached.clone();
+        }
+
+        byte[] contents;
+        try (InputStream input = open(hash)) {
+            contents = input.readAllBytes();
+        }
+
+        cache.put(cacheKey(hash), contents.clone());
+        return contents;
+    }
+
+    @Override
+    public InputStream open(String hash) throws Exception {
+        byte[] queued = pending.get(hash);
+        if (queued != null) {
+            return new ByteArrayInputStream(queued);
+        }
+
+        byte[] cached = ObjectCache.getShared().get(cacheKey(hash), byte[].class);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+
+        Path loosePath = Utils.findLooseObject(objectsDirectory, hash);
+
+        if (loosePath == null) {
+            if (!packs.has(hash)) {
+                throw new FileNotFoundException("Object " + hash + " does not exist in " + objectsDirectory);
+            }
+            return packs.open(hash);
+        }
+
+        InputStream input = Files.newInputStream(loosePath);
+        return compress ? new GZIPInputStream(input, Utils.BUFFER_SIZE) : input;
+    }
+
+    @Override
+    public String put(String type, byte[] content) throws Exception {
+        String hash = Utils.hashObject(type, content);
+
+        // Existing objects are never compressed again
+        if (!has(hash)) {
+            write(hash, content);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Stores a file as an object. Small files are queued like any other object.
+     * Larger files are hashed first with a fixed buffer, and only if the object
+     * does not exist yet are they compressed into a temporary file and moved
+     * into place on the caller's thread, so memory use does not depend on the
+     * size of the file.
+     */
+    @Override
+    public String put(String type, Path source) throws Exception {
+        if (Files.size(source) <= Consts.WRITE_BEHIND_MAX_SIZE) {
+            return put(type, Files.readAllBytes(source));
+        }
+
+        String hash = Utils.hashObject(type, source);
+
+        if (has(hash)) {
+            return hash;
+        }
+
+        Path tempPath = createTempFile(hash);
+        try {
+            try (InputStream input = Files.newInputStream(source); OutputStream output = openTempFile(tempPath)) {
+                Utils.copyStream(input, output);
+            }
+
+            unsynced.add(moveIntoPlace(tempPath, hash));
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Queues an object file to be written. A loose file takes priority over a
+     * packed copy of the same object. If queuing the object would go over
+     * Consts.OBJECT_WRITE_QUEUE_BYTES, it is written on the caller's thread
+     * instead.
+     */
+    @Override
+    public void write(String hash, byte[] content) throws Exception {
+        byte[] copy = content.clone();
+
+        if (pendingBytes.get() + copy.length > Consts.OBJECT_WRITE_QUEUE_BYTES) {
+            synchronized (lockFor(hash)) {
+                unqueue(hash, pending.get(hash));
+                writeFile(hash, copy);
+            }
+            return;
+        }
+
+        synchronized (lockFor(hash)) {
+            byte[] replaced = pending.put(hash, copy);
+            pendingBytes.addAndGet(copy.length - (replaced == null ? 0 : replaced.length));
+        }
+        outstanding.incrementAndGet();
+
+        writers.execute(() -> {
+            try {
+                flush(hash);
+            } catch (Exception e) {
+                // Already recorded against the object by flush
+            } finally {
+                if (outstanding.decrementAndGet() == 0) {
+                    synchronized (idle) {
+                        idle.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for every queued object to be written, then forces the written
+     * files and their folders to disk. Objects whose writes failed are left
+     * out, so sync(hashes) should be used to check the objects which matter.
+     */
+    @Override
+    public void sync() throws Exception {
+        synchronized (idle) {
+            while (outstanding.get() > 0) {
+                idle.wait();
+            }
+        }
+
+        HashSet<Path> directories = new HashSet<Path>();
+        Iterator<Path> iterator = unsynced.iterator();
+        while (iterator.hasNext()) {
+            Path path = iterator.next();
+            iterator.remove();
+
+            // The object may have been removed since it was written
+            if (Files.exists(path)) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                directories.add(path.getParent());
+            }
+        }
+
+        // New directory entries are only durable once their folder is flushed
+        for (Path directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Some platforms cannot open folders, in which case there is nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Reports why a missing object could not be written, if its write failed
+     * in this process.
+     */
+    @Override
+    public void sync(Collection<String> hashes) throws Exception {
+        sync();
+
+        Set<String> stored = hasAll(hashes);
+        for (String hash : hashes) {
+            if (!stored.contains(hash)) {
+                throw new Exception("Object " + hash + " could not be written to " + objectsDirectory,
+                        failures.get(hash));
+            }
+        }
+    }
+
+    /**
+     * Deletes the loose copies of an object. Packed copies are only removed by
+     * repacking.
+     */
+    @Override
+    public void remove(String hash) throws Exception {
+        synchronized (lockFor(hash)) {
+            unqueue(hash, pending.get(hash));
+            failures.remove(hash);
+            ObjectCache.getShared().invalidate(cacheKey(hash));
+            Files.deleteIfExists(Utils.objectPath(objectsDirectory, hash, Consts.OBJECT_FANOUT_DEPTH));
+            Files.deleteIfExists(objectsDirectory.resolve(hash));
+        }
+    }
+
+    public Path getObjectsDirectory() {
+        return objectsDirectory;
+    }
+
+    // Writes the newest queued contents of an object. It stays readable from the
+    // queue until the file is in place, and is dropped if the write fails
+    private void flush(String hash) throws Exception {
+        synchronized (lockFor(hash)) {
+            byte[] content = pending.get(hash);
+            if (content == null) {
+                // Already written by an earlier task, or removed
+                return;
+            }
+
+            try {
+                writeFile(hash, content);
+            } finally {
+                unqueue(hash, content);
+            }
+        }
+    }
+
+    // Writes an object file, recording whether the object is now on disk. Callers
+    // hold the object's lock
+    private void writeFile(String hash, byte[] content) throws Exception {
+        try {
+            Path tempPath = createTempFile(hash);
+            try {
+                try (OutputStream output = openTempFile(tempPath)) {
+                    output.write(content);
+                }
+
+                unsynced.add(moveIntoPlace(tempPath, hash));
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        } catch (Exception e) {
+            failures.put(hash, e);
+            throw e;
+        }
+        failures.remove(hash);
+    }
+
+    // Removes queued contents of an object, if they are still the ones queued
+    private void unqueue(String hash, byte[] content) {
+        if (content != null && pending.remove(hash, content)) {
+            pendingBytes.addAndGet(-content.length);
+        }
+    }
+
+    private Object lockFor(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), locks.length)];
+    }
+
+    // Cached contents are keyed by folder as well as hash, so an object removed
+    // from one repository is not still read from another's copy
+    private String cacheKey(String hash) {
+        return objectsDirectory.toAbsolutePath().normalize() + ":" + hash;
+    }
+
+    // Objects are written to a temporary file in their shard folder first so
+    // readers never see a partly written object
+    private Path createTempFile(String hash) throws Exception {
+        Path shardDirectory = Utils.objectPath(objectsDirectory, hash, Consts.OBJECT_FANOUT_DEPTH).getParent();
+        Files.createDirectories(shardDirectory);
+        return Files.createTempFile(shardDirectory, "tmp_", null);
+    }
+
+    private OutputStream openTempFile(Path tempPath) throws Exception {
+        OutputStream output = new BufferedOutputStream(Files.newOutputStream(tempPath), Utils.BUFFER_SIZE);
+        return compress ? new GZIPOutputStream(output, Utils.BUFFER_SIZE) : output;
+    }
+
+    private Path moveIntoPlace(Path tempPath, String hash) throws Exception {
+        Path objectPath = Utils.objectPath(objectsDirectory, hash, Consts.OBJECT_FANOUT_DEPTH);
+        Files.move(tempPath, objectPath, StandardCopyOption.ATOMIC_MOVE);
+        return objectPath;
+    }
+}
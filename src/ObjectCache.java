@@ -0,0 +1,132 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps recently read objects in memory, bounded by the total size of what is
+ * kept. When the cache is full the least recently used entries are evicted
+ * first. All methods are safe to call from several threads.
+ *
+ * Values can be raw object contents or parsed objects such as trees. Cached
+ * values are shared between callers, so they must never be modified.
+ */
+public class ObjectCache {
+    // Shared by every repository, so an object read in one place is reused
+    // everywhere else it is needed
+    private static final ObjectCache shared = new ObjectCache(Consts.OBJECT_CACHE_SIZE);
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final long capacity;
+    private long size, hits, misses;
+
+    /**
+     * Creates a new cache
+     *
+     * @param capacity Most bytes the cache will hold at once
+     */
+    public ObjectCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public static ObjectCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Looks up a cached value, marking it as recently used.
+     *
+     * @param key
+     * @param type Class the value is expected to have
+     * @return The value, or null if it is not cached or has a different type.
+     */
+    public synchronized <T> T get(String key, Class<T> type) {
+        Entry entry = entries.get(key);
+        if (entry == null || !type.isInstance(entry.value)) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return type.cast(entry.value);
+    }
+
+    /**
+     * Caches a value, evicting the least recently used entries until the cache
+     * fits. Values larger than the whole cache are not kept.
+     *
+     * @param key
+     * @param value
+     * @param valueSize Size of the value in bytes
+     */
+    public synchronized void put(String key, Object value, long valueSize) {
+        if (valueSize > capacity) {
+            invalidate(key);
+            return;
+        }
+
+        Entry previous = entries.put(key, new Entry(value, valueSize));
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += valueSize;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Caches the raw contents of an object.
+     *
+     * @param key
+     * @param contents
+     */
+    public void put(String key, byte[] contents) {
+        put(key, contents, contents.length);
+    }
+
+    /**
+     * Drops a value, for when what it was read from has been rewritten.
+     *
+     * @param key
+     */
+    public synchronized void invalidate(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // Total size in bytes of everything currently cached
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        final Object value;
+        final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import static org.junit.Assert.*;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class ObjectCacheTester {
+    @BeforeEach
+    void deleteEverything() throws Exception {
+        // Queued object writes must land before their folder is deleted
+        ObjectStores.forDirectory("project/objects").sync();
+        Utils.deleteDirectory("project");
+        ObjectCache.getShared().clear();
+    }
+
+    @Test
+    @DisplayName("Verify the cache evicts least recently used entries once full")
+    void testEviction() throws Exception {
+        ObjectCache cache = new ObjectCache(10);
+
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+
+        // Reading a makes b the least recently used entry
+        assertNotNull(cache.get("a", byte[].class));
+        cache.put("c", new byte[4]);
+
+        assertNull(cache.get("b", byte[].class));
+        assertNotNull(cache.get("a", byte[].class));
+        assertNotNull(cache.get("c", byte[].class));
+        assertEquals(8, cache.getSize());
+
+        // Confirm entries larger than the cache are never kept
+        cache.put("d", new byte[11]);
+        assertNull(cache.get("d", byte[].class));
+
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    @DisplayName("Verify trees are parsed once and shared frozen")
+    void testCachedTrees() throws Exception {
+        Utils.writeFile("project/folder1/file1.txt", "file1");
+
+        Git git = new Git("project");
+        git.init();
+        git.addDirectory("folder1");
+
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        ObjectCache cache = ObjectCache.getShared();
+        Tree first = Tree.readTree(Paths.get("project/objects"), c1.getTree());
+        long hits = cache.getHits();
+        Tree second = Tree.readTree(Paths.get("project/objects"), c1.getTree());
+
+        assertSame(first, second);
+        assertEquals(hits + 1, cache.getHits());
+
+        // Confirm the shared tree cannot be modified
+        assertTrue(first.isFrozen());
+        assertThrows(Exception.class, () -> first.add("blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file.txt"));
+        assertThrows(UnsupportedOperationException.class, () -> first.getFileMap().clear());
+        assertThrows(UnsupportedOperationException.class, () -> first.getTreeMap().remove("folder1"));
+    }
+
+    @Test
+    @DisplayName("Verify cached commits stay valid because commits are never rewritten")
+    void testImmutableCommits() throws Exception {
+        Utils.writeFile("project/file1.txt", "file1");
+        Utils.writeFile("project/file2.txt", "file2");
+
+        Git git = new Git("project");
+        git.init();
+        git.addFile("file1.txt");
+        Commit c1 = new Commit("Wyatt", "c1", "project");
+
+        ObjectStore store = ObjectStores.forDirectory("project/objects");
+        // Caches the commit before it has a child
+        byte[] before = store.get(c1.getHash());
+
+        git.addFile("file2.txt");
+        Commit c2 = new Commit("Wyatt", "c2", "project");
+
+        // Confirm the parent is unchanged on disk and still matches its hash, while
+        // the child is found through the child index
+        assertArrayEquals(before, store.get(c1.getHash()));
+        assertEquals(c1.getHash(), Utils.hashObject("commit", store.get(c1.getHash())));
+        assertEquals(List.of(c2.getHash()), git.getChildren(c1.getHash()));
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read access to objects, for sources such as packs which are only written by
+ * other means. Objects are addressed by the hash of their type and raw
+ * contents (see Utils.hashObject), and readers always hand back the raw
+ * contents, however they keep them.
+ */
+public interface ObjectReader {
+    /**
+     * Returns true if the object can be read.
+     *
+     * @param hash
+     * @return
+     * @throws Exception
+     */
+    boolean has(String hash) throws Exception;
+
+    /**
+     * Reads the raw contents of an object.
+     *
+     * @param hash
+     * @return
+     * @throws Exception If the object does not exist
+     */
+    byte[] get(String hash) throws Exception;
+
+    /**
+     * Opens an object for streaming, so large objects are never held in memory.
+     *
+     * @param hash
+     * @return
+     * @throws Exception If the object does not exist
+     */
+    InputStream open(String hash) throws Exception;
+
+    /**
+     * Returns which of a set of objects can be read.
+     *
+     * @param hashes
+     * @return
+     * @throws Exception
+     */
+    default Set<String> hasAll(Collection<String> hashes) throws Exception {
+        HashSet<String> result = new HashSet<String>();
+        for (String hash : hashes) {
+            if (has(hash)) {
+                result.add(hash);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the raw contents of several objects.
+     *
+     * @param hashes
+     * @return Map from hash to contents, in the order the hashes were given.
+     * @throws Exception If any of the objects do not exist
+     */
+    default Map<String, byte[]> getAll(Collection<String> hashes) throws Exception {
+        LinkedHashMap<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (String hash : hashes) {
+            result.put(hash, get(hash));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Storage for objects, which can be written as well as read (see
+ * ObjectReader).
+ *
+ * Each objects folder is backed by one store, found through ObjectStores.
+ */
+public interface ObjectStore extends ObjectReader {
+    /**
+     * Stores an object, doing nothing if it already exists.
+     *
+     * @param type    Object type (blob, tree or commit)
+     * @param content Raw contents
+     * @return Hash of the object.
+     * @throws Exception
+     */
+    String put(String type, byte[] content) throws Exception;
+
+    /**
+     * Stores the contents of a file as an object without loading it into
+     * memory, doing nothing if it already exists.
+     *
+     * @param type   Object type
+     * @param source File to store
+     * @return Hash of the object.
+     * @throws Exception
+     */
+    String put(String type, Path source) throws Exception;
+
+    /**
+     * Stores contents under a hash which is already known, replacing any copy
+     * which exists.
+     *
+     * @param hash
+     * @param content Raw contents
+     * @throws Exception
+     */
+    void write(String hash, byte[] content) throws Exception;
+
+    /**
+     * Removes an object from the store.
+     *
+     * @param hash
+     * @throws Exception
+     */
+    void remove(String hash) throws Exception;
+
+    /**
+     * Prepares the store for use when a repository is initialized.
+     *
+     * @throws Exception
+     */
+    default void init() throws Exception {
+    }
+
+    /**
+     * Waits for every object written so far to be safely on disk. Stores which
+     * write objects straight away have nothing to do.
+     *
+     * @throws Exception
+     */
+    default void sync() throws Exception {
+    }
+
+    /**
+     * Syncs the store, then makes sure every given object is in it. Anything
+     * which refers to the objects, like HEAD, should only be updated once this
+     * returns.
+     *
+     * @param hashes Objects which must be stored
+     * @throws Exception If any of the objects is missing, such as when its write
+     *                   failed or the process writing it exited first
+     */
+    default void sync(Collection<String> hashes) throws Exception {
+        sync();
+
+        Set<String> stored = hasAll(hashes);
+        for (String hash : hashes) {
+            if (!stored.contains(hash)) {
+                throw new Exception("Object " + hash + " is missing from the store");
+            }
+        }
+    }
+
+    /**
+     * Stores several objects of the same type.
+     *
+     * @param type
+     * @param contents
+     * @return Hashes of the objects, in the same order as their contents.
+     * @throws Exception
+     */
+    default List<String> putAll(String type, List<byte[]> contents) throws Exception {
+        ArrayList<String> hashes = new ArrayList<String>(contents.size());
+        for (byte[] content : contents) {
+            hashes.add(put(type, content));
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,66 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which ObjectStore backs each objects folder. Folders without
+ * a registered store get a LooseObjectStore the first time they are used.
+ */
+public class ObjectStores {
+    private static final Map<Path, ObjectStore> stores = new ConcurrentHashMap<Path, ObjectStore>();
+
+    /**
+     * Returns the store for an objects folder.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @return
+     */
+    public static ObjectStore forDirectory(Path objectsDirectory) {
+        return stores.computeIfAbsent(normalize(objectsDirectory), path -> new LooseObjectStore(path));
+    }
+
+    /**
+     * Returns the store for an objects folder.
+     *
+     * @param path Path to objects folder
+     * @return
+     */
+    public static ObjectStore forDirectory(String path) {
+        return forDirectory(Paths.get(path));
+    }
+
+    /**
+     * Makes a store back an objects folder, replacing whatever backed it before.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @param store
+     */
+    public static void register(Path objectsDirectory, ObjectStore store) {
+        stores.put(normalize(objectsDirectory), store);
+    }
+
+    /**
+     * Goes back to the default store for an objects folder.
+     *
+     * @param objectsDirectory Path to objects folder
+     */
+    public static void unregister(Path objectsDirectory) {
+        stores.remove(normalize(objectsDirectory));
+    }
+
+    /**
+     * Goes back to the default store for an objects folder, unless a different
+     * store has been registered for it since.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @param store            Store to remove
+     */
+    public static void unregister(Path objectsDirectory, ObjectStore store) {
+        stores.remove(normalize(objectsDirectory), store);
+    }
+
+    private static Path normalize(Path objectsDirectory) {
+        return objectsDirectory.toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,637 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A pack file holding many objects, along with a sorted index used to find
+ * them.
+ *
+ * The pack file starts with a "PACK" signature, a version and an object count,
+ * followed by every object as a type byte, a length and the entry data, and
+ * ends with the SHA1 of everything before it. Full entries hold the zipped
+ * contents, while delta entries hold the ID of a base object in the same pack
+ * followed by a zipped Delta from the base to the object. The index file starts with a
+ * "PIDX" signature and a version, followed by a fanout table of 256 counts
+ * (entry i is the number of objects whose first byte is at most i), the sorted
+ * object IDs, their offsets into the pack file and the pack's checksum.
+ */
+public class Pack {
+    static final byte[] PACK_SIGNATURE = "PACK".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] INDEX_SIGNATURE = "PIDX".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+
+    // Object entry types
+    static final byte OBJECT_FULL = 1;
+    static final byte OBJECT_DELTA = 2;
+
+    static final int ID_LENGTH = 20;
+    static final int FANOUT_OFFSET = 8;
+    static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+    static final int ENTRY_HEADER_LENGTH = 9;
+
+    // Open packs for each pack directory, refreshed whenever the directory changes
+    private static final Map<Path, PackList> packLists = new ConcurrentHashMap<Path, PackList>();
+
+    // Recently rebuilt delta bases, least recently used first
+    private static final ObjectCache baseCache = new ObjectCache(Consts.DELTA_BASE_CACHE_SIZE);
+
+    protected Path packPath, indexPath;
+
+    private FileChannel packChannel;
+    private MappedByteBuffer index;
+    private int objectCount;
+
+    /**
+     * Opens a pack from its index file. The index is memory mapped so lookups do
+     * not need any reads.
+     *
+     * @param indexPath Path to .idx file
+     * @throws IOException
+     */
+    public Pack(Path indexPath) throws IOException {
+        this.indexPath = indexPath;
+        String name = indexPath.getFileName().toString();
+        this.packPath = indexPath.resolveSibling(name.substring(0, name.length() - 4) + ".pack");
+
+        try (FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        }
+
+        for (int i = 0; i < INDEX_SIGNATURE.length; i++) {
+            if (index.get(i) != INDEX_SIGNATURE[i]) {
+                throw new IOException("Invalid pack index " + indexPath);
+            }
+        }
+
+        objectCount = index.getInt(FANOUT_OFFSET + 255 * 4);
+        packChannel = FileChannel.open(packPath, StandardOpenOption.READ);
+    }
+
+    /**
+     * Returns true if the pack contains an object.
+     *
+     * @param hash
+     * @return
+     */
+    public boolean contains(String hash) {
+        return findPosition(hash) >= 0;
+    }
+
+    /**
+     * Opens an object in the pack for reading.
+     *
+     * @param hash
+     * @return Stream of the unzipped object, or null if it is not in this pack.
+     * @throws IOException
+     */
+    public InputStream openObject(String hash) throws IOException {
+        int position = findPosition(hash);
+        if (position < 0) {
+            return null;
+        }
+
+        long offset = getOffset(position);
+        ByteBuffer header = readHeader(offset);
+
+        if (header.get(0) == OBJECT_DELTA) {
+            // Deltas have to be rebuilt in memory, but they are only created for objects
+            // small enough to do so
+            return new ByteArrayInputStream(readDelta(offset, header.getLong(1)));
+        }
+
+        return new GZIPInputStream(
+                new ChannelInputStream(packChannel, offset + ENTRY_HEADER_LENGTH, header.getLong(1)),
+                Utils.BUFFER_SIZE);
+    }
+
+    /**
+     * Returns true if an object in the pack is stored as a delta.
+     *
+     * @param hash
+     * @return
+     * @throws IOException
+     */
+    public boolean isDelta(String hash) throws IOException {
+        int position = findPosition(hash);
+        return position >= 0 && readHeader(getOffset(position)).get(0) == OBJECT_DELTA;
+    }
+
+    // Reads the contents of an object in this pack, using the cache for delta bases
+    private byte[] readBase(String hash) throws IOException {
+        byte[] cached = baseCache.get(hash, byte[].class);
+        if (cached != null) {
+            return cached;
+        }
+
+        byte[] contents;
+        try (InputStream input = openObject(hash)) {
+            if (input == null) {
+                throw new IOException("Missing delta base " + hash + " in " + packPath);
+            }
+            contents = input.readAllBytes();
+        }
+
+        baseCache.put(hash, contents);
+
+        return contents;
+    }
+
+    private byte[] readDelta(long offset, long length) throws IOException {
+        ByteBuffer baseId = ByteBuffer.allocate(ID_LENGTH);
+        readFully(baseId, offset + ENTRY_HEADER_LENGTH);
+        byte[] base = readBase(Utils.toHex(baseId.array()));
+
+        try (InputStream input = new GZIPInputStream(new ChannelInputStream(packChannel,
+                offset + ENTRY_HEADER_LENGTH + ID_LENGTH, length - ID_LENGTH), Utils.BUFFER_SIZE)) {
+            return Delta.apply(base, input.readAllBytes());
+        }
+    }
+
+    private long getOffset(int position) {
+        return index.getLong(IDS_OFFSET + objectCount * ID_LENGTH + position * 8);
+    }
+
+    private ByteBuffer readHeader(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+        readFully(header, offset);
+
+        byte type = header.get(0);
+        if (type != OBJECT_FULL && type != OBJECT_DELTA) {
+            throw new IOException("Unknown object type " + type + " in " + packPath);
+        }
+        return header;
+    }
+
+    /**
+     * Returns the IDs of every object in the pack in sorted order.
+     *
+     * @return
+     */
+    public List<String> getHashes() {
+        ArrayList<String> hashes = new ArrayList<String>(objectCount);
+        byte[] id = new byte[ID_LENGTH];
+
+        for (int i = 0; i < objectCount; i++) {
+            for (int j = 0; j < ID_LENGTH; j++) {
+                id[j] = index.get(IDS_OFFSET + i * ID_LENGTH + j);
+            }
+            hashes.add(Utils.toHex(id));
+        }
+
+        return hashes;
+    }
+
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    private static void close(Iterable<Pack> packs) throws IOException {
+        for (Pack pack : packs) {
+            pack.packChannel.close();
+        }
+    }
+
+    // Binary searches the section of the index given by the fanout table
+    private int findPosition(String hash) {
+        byte[] id;
+        try {
+            id = Utils.fromHex(hash);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+
+        int first = id[0] & 0xff;
+        int low = (first == 0) ? 0 : index.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int high = index.getInt(FANOUT_OFFSET + first * 4) - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareId(middle, id);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    private int compareId(int position, byte[] id) {
+        int base = IDS_OFFSET + position * ID_LENGTH;
+
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int difference = (index.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+
+        return 0;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = packChannel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + packPath);
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Finds the pack containing an object.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @param hash
+     * @return Pack containing the object, or null if no pack contains it.
+     * @throws IOException
+     */
+    public static Pack find(Path objectsDirectory, String hash) throws IOException {
+        for (Pack pack : getPacks(objectsDirectory)) {
+            if (pack.contains(hash)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens an object stored in any pack in the objects folder.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @param hash
+     * @return Stream of the unzipped object, or null if no pack contains it.
+     * @throws IOException
+     */
+    public static InputStream openObject(Path objectsDirectory, String hash) throws IOException {
+        Pack pack = find(objectsDirectory, hash);
+        return (pack == null) ? null : pack.openObject(hash);
+    }
+
+    /**
+     * Returns all packs in an objects folder. The list is cached and only
+     * rescanned when the pack directory changes.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @return
+     * @throws IOException
+     */
+    public static List<Pack> getPacks(Path objectsDirectory) throws IOException {
+        Path packDirectory = objectsDirectory.resolve("pack").toAbsolutePath().normalize();
+
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(packDirectory);
+        } catch (NoSuchFileException e) {
+            PackList removed = packLists.remove(packDirectory);
+            if (removed != null) {
+                close(removed.packs);
+            }
+            return Collections.emptyList();
+        }
+
+        PackList cached = packLists.get(packDirectory);
+        if (cached != null && cached.modified.equals(modified)) {
+            return cached.packs;
+        }
+
+        synchronized (packLists) {
+            cached = packLists.get(packDirectory);
+            if (cached != null && cached.modified.equals(modified)) {
+                return cached.packs;
+            }
+
+            PackList scanned = new PackList(modified, packDirectory, cached);
+            packLists.put(packDirectory, scanned);
+            return scanned.packs;
+        }
+    }
+
+    /**
+     * Combines every loose object in an objects folder into a single new pack
+     * and deletes the loose copies.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @return Path to the new pack file, or null if there were no loose objects.
+     * @throws Exception
+     */
+    public static Path repack(Path objectsDirectory) throws Exception {
+        return repack(objectsDirectory, Collections.<String, List<String>>emptyMap());
+    }
+
+    /**
+     * Combines every loose object in an objects folder into a single new pack
+     * and deletes the loose copies. Each version of a path is stored as a delta
+     * against the version before it when that is smaller than storing it whole.
+     *
+     * @param objectsDirectory Path to objects folder
+     * @param versions         Object IDs each path has had, from oldest to newest
+     * @return Path to the new pack file, or null if there were no loose objects.
+     * @throws Exception
+     */
+    public static Path repack(Path objectsDirectory, Map<String, List<String>> versions) throws Exception {
+        // Queued objects are packed too
+        ObjectStores.forDirectory(objectsDirectory).sync();
+
+        Map<String, Path> looseObjects = Utils.listLooseObjects(objectsDirectory);
+        List<String> hashes = new ArrayList<String>(looseObjects.keySet());
+        if (hashes.isEmpty()) {
+            return null;
+        }
+
+        // The index needs the IDs in sorted order, so the pack is written in the same
+        // order
+        Collections.sort(hashes);
+
+        Path packDirectory = objectsDirectory.resolve("pack");
+        Files.createDirectories(packDirectory);
+
+        HashMap<String, String> bases = new HashMap<String, String>();
+        HashMap<String, byte[]> deltas = chooseDeltas(looseObjects, hashes, versions, bases);
+
+        Path tempPack = Files.createTempFile(packDirectory, "tmp_", ".pack");
+        Path tempIndex = Files.createTempFile(packDirectory, "tmp_", ".idx");
+
+        try {
+            long[] offsets = new long[hashes.size()];
+            MessageDigest crypt = MessageDigest.getInstance("SHA-1");
+
+            try (DataOutputStream output = new DataOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempPack), Utils.BUFFER_SIZE), crypt))) {
+                output.write(PACK_SIGNATURE);
+                output.writeInt(VERSION);
+                output.writeInt(hashes.size());
+
+                long offset = PACK_SIGNATURE.length + 8;
+                for (int i = 0; i < hashes.size(); i++) {
+                    offsets[i] = offset;
+
+                    byte[] delta = deltas.get(hashes.get(i));
+                    if (delta != null) {
+                        output.writeByte(OBJECT_DELTA);
+                        output.writeLong(ID_LENGTH + delta.length);
+                        output.write(Utils.fromHex(bases.get(hashes.get(i))));
+                        output.write(delta);
+
+                        offset += ENTRY_HEADER_LENGTH + ID_LENGTH + delta.length;
+                        continue;
+                    }
+
+                    Path loosePath = looseObjects.get(hashes.get(i));
+                    long length = Files.size(loosePath);
+
+                    output.writeByte(OBJECT_FULL);
+                    output.writeLong(length);
+
+                    // Loose objects are already zipped, so their bytes are copied as they are
+                    try (InputStream input = Files.newInputStream(loosePath)) {
+                        Utils.copyStream(input, output);
+                    }
+
+                    offset += ENTRY_HEADER_LENGTH + length;
+                }
+
+                output.flush();
+                output.write(crypt.digest());
+            }
+
+            byte[] checksum = crypt.digest();
+            writeIndex(tempIndex, hashes, offsets, checksum);
+
+            String name = "pack-" + Utils.toHex(checksum);
+            Path packPath = packDirectory.resolve(name + ".pack");
+
+            // The index is moved last so readers never see a pack without its contents
+            Files.move(tempPack, packPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempIndex, packDirectory.resolve(name + ".idx"), StandardCopyOption.REPLACE_EXISTING);
+
+            for (String hash : hashes) {
+                Files.deleteIfExists(looseObjects.get(hash));
+            }
+
+            return packPath;
+        } finally {
+            Files.deleteIfExists(tempPack);
+            Files.deleteIfExists(tempIndex);
+        }
+    }
+
+    // Picks which objects are stored as deltas. Each object's base is the previous
+    // version of its path, as long as that is also being packed and the chain of
+    // deltas leading to it is not already too long.
+    private static HashMap<String, byte[]> chooseDeltas(Map<String, Path> looseObjects, List<String> hashes,
+            Map<String, List<String>> versions, HashMap<String, String> bases) throws Exception {
+        HashSet<String> packed = new HashSet<String>(hashes);
+
+        for (List<String> history : versions.values()) {
+            for (int i = 1; i < history.size(); i++) {
+                String base = history.get(i - 1);
+                String target = history.get(i);
+
+                if (!base.equals(target) && packed.contains(base) && packed.contains(target)) {
+                    bases.putIfAbsent(target, base);
+                }
+            }
+        }
+
+        HashMap<String, byte[]> deltas = new HashMap<String, byte[]>();
+        HashMap<String, Integer> depths = new HashMap<String, Integer>();
+
+        for (String start : bases.keySet()) {
+            // Collect the undecided objects leading back from this one, stopping at a
+            // cycle so nothing ends up as its own base
+            ArrayDeque<String> chain = new ArrayDeque<String>();
+            HashSet<String> seen = new HashSet<String>();
+
+            String current = start;
+            while (current != null && !depths.containsKey(current) && seen.add(current)) {
+                chain.push(current);
+                current = bases.get(current);
+            }
+
+            // Decide from the oldest object forwards so each base is decided first
+            while (!chain.isEmpty()) {
+                String hash = chain.pop();
+                String base = bases.get(hash);
+                Integer baseDepth = (base == null) ? null : depths.get(base);
+
+                int depth = 0;
+                if (baseDepth != null && baseDepth < Consts.PACK_MAX_DELTA_DEPTH) {
+                    byte[] delta = createDelta(looseObjects.get(base), looseObjects.get(hash));
+                    if (delta != null) {
+                        deltas.put(hash, delta);
+                        depth = baseDepth + 1;
+                    }
+                }
+                depths.put(hash, depth);
+            }
+        }
+
+        // Objects stored whole do not need a base
+        bases.keySet().retainAll(deltas.keySet());
+
+        return deltas;
+    }
+
+    // Returns the zipped delta from base to target, or null if it would not be
+    // smaller than the zipped target
+    private static byte[] createDelta(Path basePath, Path targetPath) throws Exception {
+        if (Files.size(basePath) > Consts.PACK_DELTA_MAX_SIZE || Files.size(targetPath) > Consts.PACK_DELTA_MAX_SIZE) {
+            return null;
+        }
+
+        byte[] baseContents, targetContents;
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(basePath), Utils.BUFFER_SIZE)) {
+            baseContents = input.readAllBytes();
+        }
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(targetPath), Utils.BUFFER_SIZE)) {
+            targetContents = input.readAllBytes();
+        }
+
+        if (baseContents.length > Consts.PACK_DELTA_MAX_SIZE || targetContents.length > Consts.PACK_DELTA_MAX_SIZE) {
+            return null;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(outputStream)) {
+            gzip.write(Delta.create(baseContents, targetContents));
+        }
+
+        byte[] delta = outputStream.toByteArray();
+        return (ID_LENGTH + delta.length < Files.size(targetPath)) ? delta : null;
+    }
+
+    private static void writeIndex(Path path, List<String> hashes, long[] offsets, byte[] checksum)
+            throws IOException {
+        int[] fanout = new int[256];
+        for (String hash : hashes) {
+            fanout[Integer.parseInt(hash.substring(0, 2), 16)]++;
+        }
+        for (int i = 1; i < 256; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), Utils.BUFFER_SIZE))) {
+            output.write(INDEX_SIGNATURE);
+            output.writeInt(VERSION);
+
+            for (int count : fanout) {
+                output.writeInt(count);
+            }
+
+            for (String hash : hashes) {
+                output.write(Utils.fromHex(hash));
+            }
+
+            for (long offset : offsets) {
+                output.writeLong(offset);
+            }
+
+            output.write(checksum);
+        }
+    }
+
+    // The packs found in one pack directory at a given modification time
+    private static class PackList {
+        FileTime modified;
+        List<Pack> packs;
+
+        PackList(FileTime modified, Path packDirectory, PackList previous) throws IOException {
+            this.modified = modified;
+
+            Map<Path, Pack> previousPacks = new HashMap<Path, Pack>();
+            if (previous != null) {
+                for (Pack pack : previous.packs) {
+                    previousPacks.put(pack.indexPath, pack);
+                }
+            }
+
+            ArrayList<Pack> scanned = new ArrayList<Pack>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(packDirectory, "pack-*.idx")) {
+                for (Path indexPath : stream) {
+                    // Packs which are still present are reused rather than opened again
+                    Pack pack = previousPacks.remove(indexPath);
+                    scanned.add((pack != null) ? pack : new Pack(indexPath));
+                }
+            }
+
+            // Anything left over was deleted from the pack directory
+            close(previousPacks.values());
+
+            this.packs = Collections.unmodifiableList(scanned);
+        }
+    }
+
+    // Reads a fixed region of a file channel without moving its position
+    private static class ChannelInputStream extends InputStream {
+        private FileChannel channel;
+        private long position, remaining;
+
+        ChannelInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining));
+            int read = channel.read(target, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads objects from the packs in an objects folder. Packs are only written
+ * by repacking, so this only reads them. New objects are written loose next
+ * to the packs by LooseObjectStore, which reads both.
+ */
+public class PackedObjectStore implements ObjectReader {
+    protected Path objectsDirectory;
+
+    /**
+     * Creates a new packed object store
+     *
+     * @param objectsDirectory Path to objects folder containing the pack folder
+     */
+    public PackedObjectStore(Path objectsDirectory) {
+        this.objectsDirectory = objectsDirectory;
+    }
+
+    @Override
+    public boolean has(String hash) throws Exception {
+        return Pack.find(objectsDirectory, hash) != null;
+    }
+
+    @Override
+    public byte[] get(String hash) throws Exception {
+        try (InputStream input = open(hash)) {
+            return input.readAllBytes();
+        }
+    }
+
+    @Override
+    public InputStream open(String hash) throws Exception {
+        InputStream input = Pack.openObject(objectsDirectory, hash);
+        if (input == null) {
+            throw new FileNotFoundException("Object " + hash + " is not in any pack in " + objectsDirectory);
+        }
+        return input;
+    }
+
+    /**
+     * Moves the loose objects in the objects folder into a new pack.
+     *
+     * @param versions Object IDs each path has had, from oldest to newest, used to
+     *                 pick delta bases
+     * @return Path to the new pack file, or null if there was nothing to pack.
+     * @throws Exception
+     */
+    public Path repack(Map<String, List<String>> versions) throws Exception {
+        return Pack.repack(objectsDirectory, versions);
+    }
+}
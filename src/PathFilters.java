@@ -0,0 +1,438 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bloom filters of the paths each commit in a commit-graph changed, so a
+ * search for the commits which touched a path can pass over most commits
+ * without reading their trees. A filter can say a commit might have changed a
+ * path when it did not, but never the other way around.
+ *
+ * The file starts with a "CPBF" signature and a version, then the checksum of
+ * the commit-graph it was written for, the number of commits, and the
+ * settings the filters were built with: hashes per path, bits per path and the
+ * most paths a filter holds. Then comes one end offset per commit, in the
+ * order of the graph's records, then the filters themselves, and it ends with
+ * the SHA-1 of everything before it, which is checked when the file is opened.
+ *
+ * A commit which changed no paths has an empty filter. A commit which changed
+ * more paths than a filter holds has a single byte with every bit set, so it
+ * is always read.
+ */
+public class PathFilters {
+    static final byte[] SIGNATURE = "CPBF".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+
+    static final int GRAPH_CHECKSUM_OFFSET = 8;
+    static final int COUNT_OFFSET = GRAPH_CHECKSUM_OFFSET + CommitGraph.CHECKSUM_LENGTH;
+    static final int SETTINGS_OFFSET = COUNT_OFFSET + 4;
+    static final int OFFSETS_OFFSET = SETTINGS_OFFSET + 3 * 4;
+    static final int CHECKSUM_LENGTH = 20;
+
+    // Seeds of the two hashes each path's bits are worked out from
+    static final int SEED1 = 0x293ae76f, SEED2 = 0x7e646e2c;
+
+    static final byte[] TOO_LARGE = { (byte) 0xff };
+
+    // Loaded filters, so every part of the program shares one mapping of each file
+    private static final Map<Path, PathFilters> loaded = new ConcurrentHashMap<Path, PathFilters>();
+
+    protected Path filtersPath;
+
+    private MappedByteBuffer filters;
+    private int commitCount, dataOffset;
+    private Settings settings;
+    private Object fileKey;
+    private long size, modifiedTime;
+
+    /**
+     * Opens a changed path filters file.
+     *
+     * @param filtersPath
+     * @throws IOException If the file is not valid
+     */
+    public PathFilters(Path filtersPath) throws IOException {
+        this.filtersPath = filtersPath;
+
+        BasicFileAttributes attributes = Files.readAttributes(filtersPath, BasicFileAttributes.class);
+        fileKey = attributes.fileKey();
+        size = attributes.size();
+        modifiedTime = attributes.lastModifiedTime().toMillis();
+
+        try (FileChannel channel = FileChannel.open(filtersPath, StandardOpenOption.READ)) {
+            filters = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (filters.capacity() < OFFSETS_OFFSET + CHECKSUM_LENGTH) {
+            throw new IOException("Invalid changed path filters " + filtersPath);
+        }
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (filters.get(i) != SIGNATURE[i]) {
+                throw new IOException("Invalid changed path filters " + filtersPath);
+            }
+        }
+        if (filters.getInt(SIGNATURE.length) != VERSION) {
+            throw new IOException("Unsupported changed path filters version in " + filtersPath);
+        }
+
+        commitCount = filters.getInt(COUNT_OFFSET);
+        settings = new Settings(filters.getInt(SETTINGS_OFFSET), filters.getInt(SETTINGS_OFFSET + 4),
+                filters.getInt(SETTINGS_OFFSET + 8));
+        dataOffset = OFFSETS_OFFSET + commitCount * 4;
+        if (commitCount < 0 || filters.capacity() < (long) dataOffset + CHECKSUM_LENGTH) {
+            throw new IOException("Truncated changed path filters " + filtersPath);
+        }
+
+        int dataLength = (commitCount == 0) ? 0 : filters.getInt(dataOffset - 4);
+        if (filters.capacity() != (long) dataOffset + dataLength + CHECKSUM_LENGTH) {
+            throw new IOException("Truncated changed path filters " + filtersPath);
+        }
+        if (!CommitGraph.hasValidChecksum(filters)) {
+            throw new IOException("Corrupt changed path filters " + filtersPath);
+        }
+    }
+
+    /**
+     * Returns the shared filters for a file, opened again if the file has been
+     * rewritten since it was last opened.
+     *
+     * @param filtersPath
+     * @return The filters, or null if there is no file.
+     * @throws IOException
+     */
+    public static PathFilters forPath(Path filtersPath) throws IOException {
+        Path key = filtersPath.toAbsolutePath().normalize();
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            loaded.remove(key);
+            return null;
+        }
+
+        PathFilters filters = loaded.get(key);
+        if (filters == null || !Objects.equals(filters.fileKey, attributes.fileKey())
+                || filters.size != attributes.size()
+                || filters.modifiedTime != attributes.lastModifiedTime().toMillis()) {
+            filters = new PathFilters(key);
+            loaded.put(key, filters);
+        }
+        return filters;
+    }
+
+    /**
+     * Drops the shared filters for a file. Anyone still holding them can keep
+     * using them.
+     *
+     * @param filtersPath
+     */
+    public static void forget(Path filtersPath) {
+        loaded.remove(filtersPath.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Writes a filters file for a commit-graph.
+     *
+     * @param filtersPath
+     * @param graph
+     * @param settings
+     * @param commitFilters One filter per commit, in the order of the graph's
+     *                      records
+     * @throws Exception
+     */
+    public static void write(Path filtersPath, CommitGraph graph, Settings settings, List<byte[]> commitFilters)
+            throws Exception {
+        if (commitFilters.size() != graph.getCommitCount()) {
+            throw new Exception("Expected " + graph.getCommitCount() + " filters but got " + commitFilters.size());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.write(SIGNATURE);
+        output.writeInt(VERSION);
+        output.write(graph.getChecksum());
+        output.writeInt(commitFilters.size());
+        output.writeInt(settings.hashCount);
+        output.writeInt(settings.bitsPerPath);
+        output.writeInt(settings.maxPaths);
+
+        int end = 0;
+        for (byte[] filter : commitFilters) {
+            end += filter.length;
+            output.writeInt(end);
+        }
+        for (byte[] filter : commitFilters) {
+            output.write(filter);
+        }
+        output.write(MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray()));
+
+        try (LockFile lock = LockFile.acquire(filtersPath)) {
+            lock.commit(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * Builds the filter for one commit.
+     *
+     * @param paths    Paths the commit changed
+     * @param settings
+     * @return
+     */
+    public static byte[] build(Collection<String> paths, Settings settings) {
+        if (paths.size() > settings.maxPaths) {
+            return TOO_LARGE.clone();
+        }
+        if (paths.isEmpty()) {
+            return new byte[0];
+        }
+
+        // Rounded up to whole bytes, and at least one byte
+        long bits = Math.max(8, (long) paths.size() * settings.bitsPerPath);
+        byte[] filter = new byte[(int) ((bits + 7) / 8)];
+        for (String path : paths) {
+            for (long bit : findBits(path, settings.hashCount, filter.length * 8L)) {
+                filter[(int) (bit / 8)] |= 1 << (bit % 8);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Returns false if the commit at a position in the graph is known not to
+     * have changed a path.
+     *
+     * @param position Position of the commit's record in the graph
+     * @param path
+     * @return
+     */
+    public boolean mightContain(int position, String path) {
+        if (position < 0 || position >= commitCount) {
+            throw new IndexOutOfBoundsException("No commit at position " + position);
+        }
+
+        int start = (position == 0) ? 0 : filters.getInt(OFFSETS_OFFSET + (position - 1) * 4);
+        int end = filters.getInt(OFFSETS_OFFSET + position * 4);
+        if (start == end) {
+            return false;
+        }
+
+        for (long bit : findBits(path, settings.hashCount, (end - start) * 8L)) {
+            if ((filters.get(dataOffset + start + (int) (bit / 8)) & (1 << (bit % 8))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the filters were written for this version of a graph.
+     * Graphs are rewritten when commits are added, which moves their records.
+     *
+     * @param graph
+     * @return
+     */
+    public boolean isFor(CommitGraph graph) {
+        byte[] checksum = new byte[CommitGraph.CHECKSUM_LENGTH];
+        filters.get(GRAPH_CHECKSUM_OFFSET, checksum);
+        return Arrays.equals(checksum, graph.getChecksum());
+    }
+
+    // Filter of the commit at a position, so it can be copied into a new file
+    public byte[] getFilter(int position) {
+        int start = (position == 0) ? 0 : filters.getInt(OFFSETS_OFFSET + (position - 1) * 4);
+        byte[] filter = new byte[filters.getInt(OFFSETS_OFFSET + position * 4) - start];
+        filters.get(dataOffset + start, filter);
+        return filter;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    public int getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Lists the paths which differ between two commit trees. Folders holding a
+     * changed path count as changed too, so a folder's history can be searched
+     * as well as a file's. Folders with the same tree hash are not opened.
+     *
+     * @param objectsPath
+     * @param oldTree     Tree of the parent, or an empty string for none
+     * @param newTree
+     * @return
+     * @throws Exception
+     */
+    public static Set<String> changedPaths(Path objectsPath, String oldTree, String newTree) throws Exception {
+        TreeMap<String, String> oldFiles = new TreeMap<String, String>(), oldFolders = new TreeMap<String, String>();
+        TreeMap<String, String> newFiles = new TreeMap<String, String>(), newFolders = new TreeMap<String, String>();
+        Commit.readSnapshot(objectsPath, oldTree, oldFiles, oldFolders);
+        Commit.readSnapshot(objectsPath, newTree, newFiles, newFolders);
+
+        HashSet<String> changed = new HashSet<String>();
+        compare(objectsPath, "", oldFiles, oldFolders, newFiles, newFolders, changed);
+        return changed;
+    }
+
+    private static void compare(Path objectsPath, String prefix, Map<String, String> oldFiles,
+            Map<String, String> oldFolders, Map<String, String> newFiles, Map<String, String> newFolders,
+            Set<String> changed) throws Exception {
+        HashSet<String> names = new HashSet<String>(oldFiles.keySet());
+        names.addAll(newFiles.keySet());
+        for (String name : names) {
+            if (!Objects.equals(oldFiles.get(name), newFiles.get(name))) {
+                addWithFolders(prefix + name, changed);
+            }
+        }
+
+        names = new HashSet<String>(oldFolders.keySet());
+        names.addAll(newFolders.keySet());
+        names.remove("");
+        for (String name : names) {
+            String oldHash = oldFolders.get(name), newHash = newFolders.get(name);
+            if (Objects.equals(oldHash, newHash)) {
+                continue;
+            }
+
+            addWithFolders(prefix + name, changed);
+            Tree oldTree = (oldHash == null) ? new Tree() : Tree.readTree(objectsPath, oldHash);
+            Tree newTree = (newHash == null) ? new Tree() : Tree.readTree(objectsPath, newHash);
+            compare(objectsPath, prefix + name + "/", oldTree.getFileMap(), oldTree.getTreeMap(),
+                    newTree.getFileMap(), newTree.getTreeMap(), changed);
+        }
+    }
+
+    private static void addWithFolders(String path, Set<String> changed) {
+        changed.add(path);
+        for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+            changed.add(path.substring(0, slash));
+        }
+    }
+
+    // Bits set for a path, found by double hashing: bit i is h1 + i * h2
+    private static long[] findBits(String path, int hashCount, long bitCount) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        int first = murmur3(SEED1, bytes), second = murmur3(SEED2, bytes);
+
+        long[] bits = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            bits[i] = Integer.toUnsignedLong(first + i * second) % bitCount;
+        }
+        return bits;
+    }
+
+    // 32 bit MurmurHash3. The tail bytes are mixed in by falling through the
+    // switch cases, as in the reference implementation
+    @SuppressWarnings("fallthrough")
+    static int murmur3(int seed, byte[] data) {
+        final int c1 = 0xcc9e2d51, c2 = 0x1b873593;
+        int hash = seed;
+        int i = 0;
+
+        for (; i + 4 <= data.length; i += 4) {
+            int k = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16)
+                    | ((data[i + 3] & 0xff) << 24);
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            hash ^= k;
+            hash = Integer.rotateLeft(hash, 13);
+            hash = hash * 5 + 0xe6546b64;
+        }
+
+        int k = 0;
+        switch (data.length & 3) {
+            case 3:
+                k ^= (data[i + 2] & 0xff) << 16;
+            case 2:
+                k ^= (data[i + 1] & 0xff) << 8;
+            case 1:
+                k ^= data[i] & 0xff;
+                k *= c1;
+                k = Integer.rotateLeft(k, 15);
+                k *= c2;
+                hash ^= k;
+        }
+
+        hash ^= data.length;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * How filters are built. More bits per path means fewer false positives
+     * and larger filters.
+     */
+    public static class Settings {
+        final int hashCount, bitsPerPath, maxPaths;
+
+        public Settings(int hashCount, int bitsPerPath, int maxPaths) {
+            this.hashCount = hashCount;
+            this.bitsPerPath = bitsPerPath;
+            this.maxPaths = maxPaths;
+        }
+
+        /**
+         * Works out the smallest filters which give a false positive rate.
+         *
+         * @param falsePositiveRate Chance a filter says a commit might have
+         *                          changed a path it did not, between 0 and 1
+         * @param maxPaths          Most changed paths a filter holds, beyond
+         *                          which the commit is always read
+         * @return
+         * @throws Exception
+         */
+        public static Settings forRate(double falsePositiveRate, int maxPaths) throws Exception {
+            if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                throw new Exception("False positive rate must be between 0 and 1");
+            }
+            if (maxPaths < 0) {
+                throw new Exception("Most changed paths cannot be negative");
+            }
+
+            double ln2 = Math.log(2);
+            int bitsPerPath = (int) Math.ceil(-Math.log(falsePositiveRate) / (ln2 * ln2));
+            int hashCount = Math.max(1, (int) Math.round(bitsPerPath * ln2));
+            return new Settings(hashCount, bitsPerPath, maxPaths);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Settings)) {
+                return false;
+            }
+            Settings settings = (Settings) other;
+            return hashCount == settings.hashCount && bitsPerPath == settings.bitsPerPath
+                    && maxPaths == settings.maxPaths;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hashCount, bitsPerPath, maxPaths);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the files and bytes handled by a long running operation, such as
+ * staging many files, and works out its throughput. Counters can be updated
+ * from several threads at once.
+ */
+public class ProgressStats {
+    private final long totalFiles;
+    private final long startTime = System.nanoTime();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong skippedFiles = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long endTime = -1;
+
+    /**
+     * Starts counting
+     *
+     * @param totalFiles Number of files the operation will handle
+     */
+    public ProgressStats(long totalFiles) {
+        this.totalFiles = totalFiles;
+    }
+
+    /**
+     * Records a file which has been handled.
+     *
+     * @param size    Bytes read or written for the file
+     * @param skipped True if the file was left alone because it had not changed
+     */
+    public void fileDone(long size, boolean skipped) {
+        bytes.addAndGet(size);
+        if (skipped) {
+            skippedFiles.incrementAndGet();
+        }
+        files.incrementAndGet();
+    }
+
+    /**
+     * Stops the clock, so the throughput no longer changes.
+     */
+    public void finish() {
+        endTime = System.nanoTime();
+    }
+
+    public long getTotalFiles() {
+        return totalFiles;
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getSkippedFiles() {
+        return skippedFiles.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public boolean isFinished() {
+        return endTime != -1;
+    }
+
+    public long getElapsedMillis() {
+        long end = isFinished() ? endTime : System.nanoTime();
+        return TimeUnit.NANOSECONDS.toMillis(end - startTime);
+    }
+
+    public double getFilesPerSecond() {
+        return perSecond(getFiles());
+    }
+
+    public double getMegabytesPerSecond() {
+        return perSecond(getBytes()) / (1024 * 1024);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d files (%d unchanged), %.1f MB in %d ms, %.0f files/s, %.1f MB/s", getFiles(),
+                totalFiles, getSkippedFiles(), getBytes() / (1024.0 * 1024), getElapsedMillis(),
+                getFilesPerSecond(), getMegabytesPerSecond());
+    }
+
+    private double perSecond(long count) {
+        long end = isFinished() ? endTime : System.nanoTime();
+        // Avoids dividing by zero for operations which finish instantly
+        double seconds = Math.max(end - startTime, 1) / 1e9;
+        return count / seconds;
+    }
+}
@@ -0,0 +1,184 @@
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The paths a sparse checkout writes to the project. Each pattern is either a
+ * path, which takes in that file or everything inside that folder, or a glob
+ * such as "src/**.java" matched against whole paths.
+ *
+ * Patterns are kept in the sparse-checkout file, one per line. Folders which
+ * no pattern can reach are never opened by checkout or status, and paths
+ * outside the patterns are left as they are in HEAD.
+ */
+public class SparsePatterns {
+    private final List<String> patterns;
+
+    private final ArrayList<String> prefixes = new ArrayList<String>();
+    private final ArrayList<PathMatcher> globs = new ArrayList<PathMatcher>();
+
+    // Folders holding everything a glob can match, or an empty string if a glob
+    // can match anywhere
+    private final ArrayList<String> globFolders = new ArrayList<String>();
+
+    /**
+     * @param patterns Paths and globs, relative to the project directory
+     * @throws Exception If a pattern is empty
+     */
+    public SparsePatterns(Collection<String> patterns) throws Exception {
+        this(patterns, true);
+    }
+
+    private SparsePatterns(Collection<String> patterns, boolean allowGlobs) throws Exception {
+        this.patterns = List.copyOf(patterns);
+
+        for (String pattern : this.patterns) {
+            String trimmed = pattern.replaceAll("^/+|/+$", "");
+            if (trimmed.equals("")) {
+                throw new Exception("Sparse checkout patterns cannot be empty");
+            }
+
+            if (!allowGlobs || !isGlob(trimmed)) {
+                prefixes.add(trimmed);
+                continue;
+            }
+
+            globs.add(FileSystems.getDefault().getPathMatcher("glob:" + trimmed));
+            String folder = "";
+            for (String name : trimmed.split("/")) {
+                if (isGlob(name)) {
+                    break;
+                }
+                folder = folder.equals("") ? name : folder + "/" + name;
+            }
+            globFolders.add(folder);
+        }
+    }
+
+    /**
+     * Returns patterns which take in each of the given paths and everything
+     * inside them, reading every character literally.
+     *
+     * @param paths
+     * @return
+     * @throws Exception If a path is empty
+     */
+    public static SparsePatterns ofPaths(Collection<String> paths) throws Exception {
+        return new SparsePatterns(paths, false);
+    }
+
+    /**
+     * Reads the patterns from a sparse-checkout file.
+     *
+     * @param patternsPath
+     * @return The patterns, or null if there is no file, so everything is
+     *         checked out.
+     * @throws Exception
+     */
+    public static SparsePatterns read(Path patternsPath) throws Exception {
+        if (!Files.exists(patternsPath)) {
+            return null;
+        }
+
+        ArrayList<String> patterns = new ArrayList<String>();
+        for (String line : Files.readAllLines(patternsPath)) {
+            if (!line.isBlank()) {
+                patterns.add(line.strip());
+            }
+        }
+        return new SparsePatterns(patterns);
+    }
+
+    /**
+     * Writes the patterns to a sparse-checkout file.
+     *
+     * @param patternsPath
+     * @throws Exception
+     */
+    public void write(Path patternsPath) throws Exception {
+        try (LockFile lock = LockFile.acquire(patternsPath)) {
+            lock.commit(String.join("\n", patterns) + "\n");
+        }
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Returns true if a file is checked out.
+     *
+     * @param path
+     * @return
+     */
+    public boolean includes(String path) {
+        for (String prefix : prefixes) {
+            if (isInside(path, prefix)) {
+                return true;
+            }
+        }
+        if (!globs.isEmpty()) {
+            Path file = Paths.get(path);
+            for (PathMatcher glob : globs) {
+                if (glob.matches(file)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a folder could hold files which are checked out, so it
+     * needs to be opened.
+     *
+     * @param folder
+     * @return
+     */
+    public boolean mightInclude(String folder) {
+        for (String prefix : prefixes) {
+            if (isInside(folder, prefix) || isInside(prefix, folder)) {
+                return true;
+            }
+        }
+        for (String globFolder : globFolders) {
+            if (globFolder.equals("") || isInside(folder, globFolder) || isInside(globFolder, folder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if everything inside a folder is checked out.
+     *
+     * @param folder
+     * @return
+     */
+    public boolean includesAll(String folder) {
+        for (String prefix : prefixes) {
+            if (isInside(folder, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInside(String path, String folder) {
+        return path.equals(folder) || path.startsWith(folder + "/");
+    }
+
+    private static boolean isGlob(String pattern) {
+        for (char character : "*?[{".toCharArray()) {
+            if (pattern.indexOf(character) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
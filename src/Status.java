@@ -0,0 +1,66 @@
+/**
+ * One difference found by Git.status: a path which is staged to change in
+ * the next commit, or which differs in the project from what is staged.
+ */
+public class Status {
+    public enum Change {
+        ADDED, MODIFIED, DELETED, UNTRACKED
+    }
+
+    private final String path;
+    private final Change change;
+    private final boolean staged;
+
+    public Status(String path, Change change, boolean staged) {
+        this.path = path;
+        this.change = change;
+        this.staged = staged;
+    }
+
+    public static Status staged(String path, Change change) {
+        return new Status(path, change, true);
+    }
+
+    public static Status unstaged(String path, Change change) {
+        return new Status(path, change, false);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Change getChange() {
+        return change;
+    }
+
+    // True if the difference is between HEAD and the index, false if it is
+    // between the index and the project
+    public boolean isStaged() {
+        return staged;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Status)) {
+            return false;
+        }
+        Status status = (Status) other;
+        return path.equals(status.path) && change == status.change && staged == status.staged;
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode() * 31 + change.hashCode();
+    }
+
+    // Same two columns as git status --short, such as "M  file" for a staged
+    // change and " M file" for an unstaged one
+    @Override
+    public String toString() {
+        if (change == Change.UNTRACKED) {
+            return "?? " + path;
+        }
+        char code = change.name().charAt(0);
+        return (staged ? code + " " : " " + code) + " " + path;
+    }
+}
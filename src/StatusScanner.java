@@ -0,0 +1,408 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Compares HEAD, the index and the project for Git.status.
+ *
+ * Folders added with addDirectory are stored as trees, so whenever a folder
+ * has a known tree hash it is compared as a whole first: a staged folder whose
+ * hash matches HEAD is never opened, and a folder in the project which hashes
+ * to the same tree is not walked any further. Tree objects are only read for
+ * folders which differ. A folder is hashed bottom-up with every file and
+ * folder inside it, so walking into one which differs reuses those hashes and
+ * each file is read at most once. Files whose metadata in the index shows they
+ * have not changed are not read at all, so a clean folder costs one stat per
+ * file.
+ *
+ * In a sparse checkout, paths outside its patterns are treated as unchanged:
+ * folders no pattern reaches are neither walked nor read from HEAD.
+ */
+class StatusScanner {
+    private Git git;
+    private Path root;
+
+    // Snapshot of the index taken when the scan starts
+    private TreeMap<String, Index.Entry> entries = new TreeMap<String, Index.Entry>();
+
+    private Layer head, stagedFolders;
+
+    // Paths of the sparse checkout, or null if everything is checked out
+    private SparsePatterns sparse;
+
+    // Folders found to match their tree, whose files are known to exist
+    private HashSet<String> cleanFolders = new HashSet<String>();
+
+    // Hashes of the files and folders inside folders which have been hashed
+    private Map<String, String> hashed = new ConcurrentHashMap<String, String>();
+
+    // Number of files whose contents have been read
+    private AtomicInteger filesRead = new AtomicInteger();
+
+    StatusScanner(Git git) throws Exception {
+        this.git = git;
+        this.root = git.projectDirectory.toAbsolutePath();
+
+        for (Index.Entry entry : git.index.getEntries()) {
+            entries.put(entry.getPath(), entry);
+        }
+        sparse = git.getSparsePatterns();
+
+        head = new Layer(sparse);
+        String headCommit = git.getHead();
+        if (!headCommit.equals("")) {
+            // Newer commit trees come first along the chain, so their versions win
+            String treeHash = git.getCommitTree(headCommit);
+            while (!treeHash.equals("")) {
+                Tree tree = Tree.readTree(git.objectsPath, treeHash);
+                head.addTree(tree, "");
+                treeHash = tree.getPreviousTreeHash();
+            }
+        }
+
+        stagedFolders = new Layer(sparse);
+        for (Index.Entry entry : entries.values()) {
+            if (entry.isStaged() && entry.getType().equals("tree")) {
+                stagedFolders.folders.put(entry.getPath(), entry.getHash());
+            }
+        }
+    }
+
+    /**
+     * Streams every difference, staged changes first, then changes in the
+     * project as folders are walked, then files which have gone missing. Each
+     * part is only scanned once the stream reaches it.
+     *
+     * @return
+     */
+    Stream<Status> scan() {
+        List<Supplier<Stream<Status>>> parts = List.of(this::stagedChanges, () -> walk(root),
+                this::missingFiles);
+        return parts.stream().flatMap(Supplier::get);
+    }
+
+    // Differences between HEAD and the index
+    private Stream<Status> stagedChanges() {
+        return entries.values().stream().filter(Index.Entry::isStaged).flatMap(entry -> unchecked(() -> {
+            String path = entry.getPath();
+            switch (entry.getType()) {
+                case Index.Entry.DELETED:
+                    return Stream.of(Status.staged(path, Status.Change.DELETED));
+                case Index.Entry.EDITED:
+                    return Stream.of(Status.staged(path, Status.Change.MODIFIED));
+                case "tree":
+                    return compareTrees(path, head.folderHash(path), entry.getHash());
+                default:
+                    String headHash = head.fileHash(path);
+                    if (headHash == null) {
+                        return Stream.of(Status.staged(path, Status.Change.ADDED));
+                    }
+                    return headHash.equals(entry.getHash()) ? Stream.empty()
+                            : Stream.of(Status.staged(path, Status.Change.MODIFIED));
+            }
+        }));
+    }
+
+    // Compares two versions of a staged folder, skipping subtrees which match
+    private Stream<Status> compareTrees(String directory, String oldHash, String newHash) throws Exception {
+        if (newHash.equals(oldHash)) {
+            return Stream.empty();
+        }
+
+        Tree oldTree = (oldHash == null) ? new Tree() : Tree.readTree(git.objectsPath, oldHash);
+        Tree newTree = Tree.readTree(git.objectsPath, newHash);
+        ArrayList<Stream<Status>> changes = new ArrayList<Stream<Status>>();
+
+        for (Map.Entry<String, String> file : new TreeMap<String, String>(newTree.getFileMap()).entrySet()) {
+            String oldFile = oldTree.getFileHash(file.getKey());
+            if (!file.getValue().equals(oldFile)) {
+                Status.Change change = (oldFile == null) ? Status.Change.ADDED : Status.Change.MODIFIED;
+                changes.add(Stream.of(Status.staged(directory + "/" + file.getKey(), change)));
+            }
+        }
+        for (String name : new TreeMap<String, String>(oldTree.getFileMap()).keySet()) {
+            if (!newTree.containsFile(name)) {
+                changes.add(Stream.of(Status.staged(directory + "/" + name, Status.Change.DELETED)));
+            }
+        }
+
+        HashSet<String> folders = new HashSet<String>(newTree.getTreeMap().keySet());
+        folders.addAll(oldTree.getTreeMap().keySet());
+        folders.remove("");
+        for (String name : new TreeSet<String>(folders)) {
+            String oldFolder = oldTree.getTreeHash(name), newFolder = newTree.getTreeHash(name);
+            // Subfolders are only read once the stream reaches them
+            changes.add(Stream.of(directory + "/" + name).flatMap(folder -> unchecked(() -> (newFolder == null)
+                    ? deleteTree(folder, oldFolder)
+                    : compareTrees(folder, oldFolder, newFolder))));
+        }
+
+        return changes.stream().flatMap(stream -> stream);
+    }
+
+    // Every file in a folder which was removed from the index
+    private Stream<Status> deleteTree(String directory, String hash) throws Exception {
+        Layer deleted = new Layer(null);
+        deleted.folders.put(directory, hash);
+        deleted.expandAll();
+        return deleted.files.keySet().stream().map(path -> Status.staged(path, Status.Change.DELETED));
+    }
+
+    // Differences between the index and the project, one folder at a time
+    private Stream<Status> walk(Path directory) {
+        ArrayList<Path> children = new ArrayList<Path>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.sorted().forEach(children::add);
+        } catch (IOException e) {
+            // Folders removed during the scan are reported as missing files instead
+            return Stream.empty();
+        }
+
+        return children.stream().flatMap(child -> unchecked(() -> {
+            Path relative = root.relativize(child);
+            if (Git.isIgnored(relative)) {
+                return Stream.empty();
+            }
+
+            String path = toIndexPath(relative);
+            boolean isFolder = Files.isDirectory(child);
+            if (sparse != null && !(isFolder ? sparse.mightInclude(path) : sparse.includes(path))) {
+                return Stream.empty();
+            }
+
+            if (isFolder) {
+                String expected = expectedFolderHash(path);
+                if (expected != null && expected.equals(folderHash(path))) {
+                    cleanFolders.add(path);
+                    return Stream.empty();
+                }
+                return walk(child);
+            }
+
+            Status.Change change = compareFile(path, child);
+            return (change == null) ? Stream.empty() : Stream.of(Status.unstaged(path, change));
+        }));
+    }
+
+    // Hash of a folder in the project, found with the folder above it if that
+    // was hashed
+    private String folderHash(String path) throws Exception {
+        String hash = hashed.get(path);
+        return (hash != null) ? hash : Tree.hashDirectory(root.toString(), path, hashed, this::knownHash);
+    }
+
+    // Hash of a file whose metadata in the index shows it has not changed, or
+    // null if the file has to be read
+    private String knownHash(String path) {
+        Index.Entry entry = entries.get(path);
+        if (entry != null && unchecked(() -> entry.isUnchanged(FileStat.read(root.resolve(path))))) {
+            return entry.getHash();
+        }
+        filesRead.incrementAndGet();
+        return null;
+    }
+
+    // Number of files read so far
+    int getFilesRead() {
+        return filesRead.get();
+    }
+
+    // Hash a folder will have in the next commit if its files are not changed,
+    // or null if it is not stored as a tree or its files are staged separately
+    private String expectedFolderHash(String path) throws Exception {
+        Index.Entry entry = entries.get(path);
+        if (entry != null) {
+            return entry.getType().equals("tree") ? entry.getHash() : null;
+        }
+        for (Index.Entry inside : entries.subMap(path + "/", path + "0").values()) {
+            if (inside.isStaged()) {
+                return null;
+            }
+        }
+        String stagedHash = stagedFolders.folderHash(path);
+        return (stagedHash != null) ? stagedHash : head.folderHash(path);
+    }
+
+    private Status.Change compareFile(String path, Path file) throws Exception {
+        Index.Entry entry = entries.get(path);
+        String expected;
+
+        if (entry != null) {
+            if (entry.getType().equals(Index.Entry.DELETED)) {
+                // Staged for removal but still in the project
+                return Status.Change.UNTRACKED;
+            }
+            if (entry.getType().equals(Index.Entry.EDITED) || entry.isUnchanged(FileStat.read(file))) {
+                // Edited files are hashed when they are committed
+                return null;
+            }
+            expected = entry.getHash();
+        } else {
+            expected = stagedFolders.fileHash(path);
+            if (expected == null) {
+                expected = head.fileHash(path);
+            }
+            if (expected == null) {
+                return Status.Change.UNTRACKED;
+            }
+        }
+
+        String hash = hashed.get(path);
+        if (hash == null) {
+            filesRead.incrementAndGet();
+            hash = Utils.hashObject("blob", file);
+        }
+        return expected.equals(hash) ? null : Status.Change.MODIFIED;
+    }
+
+    // Files in the index or HEAD which are no longer in the project
+    private Stream<Status> missingFiles() {
+        return unchecked(() -> {
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            for (Layer layer : List.of(stagedFolders, head)) {
+                layer.expandAll();
+                for (Map.Entry<String, String> file : layer.files.entrySet()) {
+                    expected.putIfAbsent(file.getKey(), file.getValue());
+                }
+            }
+            for (Index.Entry entry : entries.values()) {
+                if (!entry.getType().equals("tree")) {
+                    expected.put(entry.getPath(), entry.getType());
+                }
+            }
+
+            return expected.entrySet().stream().filter(file -> {
+                if (file.getValue().equals(Index.Entry.DELETED) || isInCleanFolder(file.getKey())
+                        || (sparse != null && !sparse.includes(file.getKey()))) {
+                    return false;
+                }
+                return !Files.exists(root.resolve(file.getKey()));
+            }).map(file -> Status.unstaged(file.getKey(), Status.Change.DELETED));
+        });
+    }
+
+    private boolean isInCleanFolder(String path) {
+        for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+            if (cleanFolders.contains(path.substring(0, slash))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toIndexPath(Path relative) {
+        StringBuilder builder = new StringBuilder();
+        for (Path part : relative) {
+            if (builder.length() > 0) {
+                builder.append("/");
+            }
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+
+    // The files and folders of one version of the project. Folders are only
+    // opened when a path inside them is looked up
+    private class Layer {
+        private HashMap<String, String> files = new HashMap<String, String>();
+        private TreeMap<String, String> folders = new TreeMap<String, String>();
+        private HashSet<String> expanded = new HashSet<String>();
+
+        // Folders outside these patterns are never opened by expandAll
+        private SparsePatterns sparse;
+
+        Layer(SparsePatterns sparse) {
+            this.sparse = sparse;
+        }
+
+        void addTree(Tree tree, String prefix) {
+            for (Map.Entry<String, String> file : tree.getFileMap().entrySet()) {
+                files.putIfAbsent(prefix + file.getKey(), file.getValue());
+            }
+            for (Map.Entry<String, String> folder : tree.getTreeMap().entrySet()) {
+                if (!folder.getKey().equals("")) {
+                    folders.putIfAbsent(prefix + folder.getKey(), folder.getValue());
+                }
+            }
+        }
+
+        String fileHash(String path) throws Exception {
+            expandParents(path);
+            return files.get(path);
+        }
+
+        String folderHash(String path) throws Exception {
+            expandParents(path);
+            return folders.get(path);
+        }
+
+        void expandAll() throws Exception {
+            ArrayDeque<String> pending = new ArrayDeque<String>(folders.keySet());
+            while (!pending.isEmpty()) {
+                String folder = pending.pop();
+                if (cleanFolders.contains(folder) || (sparse != null && !sparse.mightInclude(folder))
+                        || !expanded.add(folder)) {
+                    continue;
+                }
+
+                Tree tree = Tree.readTree(git.objectsPath, folders.get(folder));
+                addTree(tree, folder + "/");
+                for (String name : tree.getTreeMap().keySet()) {
+                    if (!name.equals("")) {
+                        pending.push(folder + "/" + name);
+                    }
+                }
+            }
+        }
+
+        // Opens each folder above a path, outermost first
+        private void expandParents(String path) throws Exception {
+            for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+                String folder = path.substring(0, slash);
+                String hash = folders.get(folder);
+                if (hash != null && expanded.add(folder)) {
+                    addTree(Tree.readTree(git.objectsPath, hash), folder + "/");
+                }
+            }
+        }
+    }
+
+    private interface Scan<T> {
+        T call() throws Exception;
+    }
+
+    // Streams cannot throw checked exceptions, so failures are carried out as
+    // unchecked ones
+    private static <T> T unchecked(Scan<T> scan) {
+        try {
+            return scan.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new StatusException(e);
+        }
+    }
+
+    /**
+     * Thrown from the status stream when a file or object cannot be read.
+     */
+    public static class StatusException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StatusException(Exception cause) {
+            super(cause);
+        }
+    }
+}
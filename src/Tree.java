@@ -1,21 +1,48 @@
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
 
 public class Tree {
+    // Rough bytes a parsed entry takes beyond its characters: a map node, its
+    // slot in the table and two strings, counted when trees are cached
+    private static final int ENTRY_OVERHEAD = 128;
+
     protected Path projectDirectory, objectsPath;
+    protected ObjectStore store;
 
     private HashMap<String, String> treeMap;
     private HashMap<String, String> blobMap;
 
+    // Trees which are shared through the object cache can no longer be changed
+    private boolean frozen;
+
     public Tree(String projectDirectory) {
+        this(projectDirectory, ObjectStores.forDirectory(Paths.get(projectDirectory).resolve("objects/")));
+    }
+
+    /**
+     * Creates a tree which writes itself, and any directory added to it, to the
+     * given store.
+     * 
+     * @param projectDirectory
+     * @param store
+     */
+    public Tree(String projectDirectory, ObjectStore store) {
         treeMap = new HashMap<String, String>();
         blobMap = new HashMap<String, String>();
 
         this.projectDirectory = Paths.get(projectDirectory);
         objectsPath = this.projectDirectory.resolve("objects/");
+        this.store = store;
     }
 
     public Tree() {
@@ -23,6 +50,10 @@ public class Tree {
     }
 
     public void add(String input) throws Exception {
+        if (frozen) {
+            throw new Exception("Cannot modify a cached tree");
+        }
+
         String[] splits = input.split(" : ");
 
         if (splits[0].equals("tree")) {
@@ -49,7 +80,11 @@ public class Tree {
         throw new Exception("Invalid add format");
     }
 
-    public boolean remove(String key) {
+    public boolean remove(String key) throws Exception {
+        if (frozen) {
+            throw new Exception("Cannot modify a cached tree");
+        }
+
         if (blobMap.containsKey(key)) {
             blobMap.remove(key);
             return true;
@@ -60,40 +95,185 @@ public class Tree {
         return false;
     }
 
+    /**
+     * Adds the contents of a directory to the tree and writes it to objects.
+     * Files and subfolders are hashed and written in parallel, and each tree is
+     * written once all of its children are done.
+     * 
+     * @param path Path to the directory, relative to the project directory
+     * @return Hash of the tree.
+     * @throws Exception
+     */
     public String addDirectory(String path) throws Exception {
-        addDirectoryHelper(projectDirectory.resolve(path).toString());
-        return writeToObjects();
+        return addDirectory(path, null, null);
     }
 
-    private void addDirectoryHelper(String path) throws Exception {
-        File parent = new File(path);
+    /**
+     * Adds the contents of a directory to the tree and writes it to objects,
+     * recording the hash of every file and folder inside it.
+     * 
+     * @param path   Path to the directory, relative to the project directory
+     * @param hashes Filled with hashes keyed by path relative to the project
+     *               directory. It must be safe to use from several threads
+     * @return Hash of the tree.
+     * @throws Exception
+     */
+    String addDirectory(String path, Map<String, String> hashes) throws Exception {
+        return addDirectory(path, hashes, null);
+    }
 
-        for (File child : parent.listFiles()) {
-            if (child.list() == null) {
-                // If the folder contains a file, add the file to the tree
-                Blob blob = new Blob(child.getAbsolutePath(), projectDirectory.toString());
-                blob.writeToObjects();
+    // Snapshots a directory, recording the hash of everything inside it if
+    // hashes is not null. Files known returns a hash for are not read
+    private String addDirectory(String path, Map<String, String> hashes, Function<String, String> known)
+            throws Exception {
+        File directory = projectDirectory.resolve(path).toFile();
 
-                add("blob : " + blob.getHash() + " : " + child.getName());
-            } else {
-                // If the folder contains a subfolder, create a tree from the subfolder and add
-                // the subtree to the original tree. Note that the subTree inherits the parent
-                // tree's project directory
-                Tree subTree = new Tree(projectDirectory.toString());
+        try {
+            return ForkJoinPool.commonPool().invoke(new SnapshotTask(this, directory, path, hashes, known));
+        } catch (RuntimeException e) {
+            throw SnapshotException.unwrap(e);
+        }
+    }
+
+    /**
+     * Works out the hash addDirectory would give a directory without writing
+     * any objects.
+     * 
+     * @param path Path to the directory, relative to the project directory
+     * @return Hash of the tree.
+     * @throws Exception
+     */
+    public static String hashDirectory(String projectDirectory, String path) throws Exception {
+        return new Tree(projectDirectory, new HashingObjectStore()).addDirectory(path);
+    }
+
+    /**
+     * Works out the hash addDirectory would give a directory, along with the
+     * hash of every file and folder inside it. Each file is read once, and
+     * each folder's hash is built from the hashes of its children.
+     * 
+     * @param path   Path to the directory, relative to the project directory
+     * @param hashes Filled with hashes keyed by path relative to the project
+     *               directory, with "/" between names. It must be safe to use
+     *               from several threads
+     * @return Hash of the tree.
+     * @throws Exception
+     */
+    public static String hashDirectory(String projectDirectory, String path, Map<String, String> hashes)
+            throws Exception {
+        return hashDirectory(projectDirectory, path, hashes, null);
+    }
+
+    /**
+     * Works out the hash addDirectory would give a directory, taking the hash
+     * of each file from known where it can, such as from index metadata which
+     * shows the file has not changed. Only the other files are read.
+     * 
+     * @param path   Path to the directory, relative to the project directory
+     * @param hashes Filled with hashes keyed by path, as above
+     * @param known  Returns the hash of a file given its path, or null if it must
+     *               be read. Called from several threads
+     * @return Hash of the tree.
+     * @throws Exception
+     */
+    public static String hashDirectory(String projectDirectory, String path, Map<String, String> hashes,
+            Function<String, String> known) throws Exception {
+        return new Tree(projectDirectory, new HashingObjectStore()).addDirectory(path, hashes, known);
+    }
+
+    // Snapshots a file as a blob, or a folder as a tree. Children are added to
+    // their tree in the order they are listed, so hashes match a sequential run
+    private class SnapshotTask extends RecursiveTask<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final Tree tree;
+        private final File file;
+        private final String path;
+        private final Map<String, String> hashes;
+        private final Function<String, String> known;
+
+        SnapshotTask(Tree tree, File file, String path, Map<String, String> hashes, Function<String, String> known) {
+            this.tree = tree;
+            this.file = file;
+            this.path = path;
+            this.hashes = hashes;
+            this.known = known;
+        }
+
+        @Override
+        protected String compute() {
+            try {
+                if (tree == null) {
+                    // Blobs are the leaves of the snapshot
+                    String hash = (known == null) ? null : known.apply(path);
+                    return record((hash != null) ? hash : store.put("blob", file.toPath()));
+                }
+
+                File[] children = file.listFiles();
+                ArrayList<SnapshotTask> tasks = new ArrayList<SnapshotTask>(children.length);
+
+                for (File child : children) {
+                    // Note that subtrees inherit the parent tree's project directory and store
+                    Tree subTree = (child.list() == null) ? null : new Tree(projectDirectory.toString(), store);
+                    String childPath = path.equals("") ? child.getName() : path + "/" + child.getName();
+                    tasks.add(new SnapshotTask(subTree, child, childPath, hashes, known));
+                }
+
+                invokeAll(tasks);
+
+                for (SnapshotTask task : tasks) {
+                    String type = (task.tree == null) ? "blob" : "tree";
+                    tree.add(type + " : " + task.join() + " : " + task.file.getName());
+                }
+
+                return record(tree.writeToObjects());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SnapshotException(e);
+            }
+        }
+
+        private String record(String hash) {
+            if (hashes != null) {
+                hashes.put(path, hash);
+            }
+            return hash;
+        }
+    }
+
+    // Carries a checked exception out of a snapshot task
+    private static class SnapshotException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SnapshotException(Throwable cause) {
+            super(cause);
+        }
 
-                add("tree : " + subTree.addDirectory(child.getAbsolutePath()) + " : " + child.getName());
+        // Fork/join may wrap the exception again when it crosses threads, so the
+        // original is found by walking the causes
+        static Exception unwrap(RuntimeException e) {
+            Throwable cause = e;
+            while (cause != null) {
+                if (cause instanceof SnapshotException && !(cause.getCause() instanceof SnapshotException)) {
+                    return (Exception) cause.getCause();
+                }
+                cause = cause.getCause();
             }
+            return e;
         }
     }
 
+    // Entries are written sorted by name, so the same contents always give the
+    // same hash however the tree was built
     public String writeToObjects() throws Exception {
         StringBuilder builder = new StringBuilder();
 
-        for (Map.Entry<String, String> entry : blobMap.entrySet()) {
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(blobMap).entrySet()) {
             builder.append("blob : " + entry.getValue() + " : " + entry.getKey() + "\n");
         }
 
-        for (Map.Entry<String, String> entry : treeMap.entrySet()) {
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(treeMap).entrySet()) {
             if (entry.getKey() == "") {
                 builder.append("tree : " + entry.getValue() + "\n");
             } else {
@@ -105,11 +285,10 @@ public class Tree {
             builder.deleteCharAt(builder.length() - 1);
         }
 
-        String zippedTreeHash = Utils.hashAndWriteFile(objectsPath.toString(), builder.toString(),
-                Consts.COMPRESS_FILES);
+        String treeHash = store.put("tree", builder.toString().getBytes(StandardCharsets.UTF_8));
 
         // Returns the hash of the tree so it can be accessed after writing
-        return zippedTreeHash;
+        return treeHash;
     }
 
     // Parses a tree file and returns a Tree object
@@ -118,12 +297,50 @@ public class Tree {
         String[] lines = contents.split("\n");
 
         for (String line : lines) {
-            result.add(line);
+            // Empty trees have no lines at all
+            if (!line.equals("")) {
+                result.add(line);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Reads and parses a tree object from the store for an objects folder.
+     * Parsed trees are kept in the shared object cache, so the returned tree is
+     * frozen and cannot be modified.
+     * 
+     * @param objectsPath Path to objects folder
+     * @param hash        Hash of the tree
+     * @return
+     * @throws Exception
+     */
+    public static Tree readTree(Path objectsPath, String hash) throws Exception {
+        ObjectCache cache = ObjectCache.getShared();
+
+        // A tree's contents never change for the same hash, so any copy will do
+        Tree cached = cache.get(hash, Tree.class);
+        if (cached != null) {
+            return cached;
+        }
+
+        byte[] contents = ObjectStores.forDirectory(objectsPath).get(hash);
+        Tree tree = parseTreeFile(new String(contents, StandardCharsets.UTF_8));
+        tree.freeze();
+
+        cache.put(hash, tree, contents.length + (tree.blobMap.size() + tree.treeMap.size()) * ENTRY_OVERHEAD);
+        return tree;
+    }
+
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
     public boolean containsFile(String filename) {
         return blobMap.containsKey(filename);
     }
@@ -136,12 +353,13 @@ public class Tree {
         return treeMap.get(tree);
     }
 
-    public HashMap<String, String> getFileMap() {
-        return blobMap;
+    // Read only, since parsed trees are shared through the object cache
+    public Map<String, String> getFileMap() {
+        return Collections.unmodifiableMap(blobMap);
     }
 
-    public HashMap<String, String> getTreeMap() {
-        return treeMap;
+    public Map<String, String> getTreeMap() {
+        return Collections.unmodifiableMap(treeMap);
     }
 
     public String getPreviousTreeHash() {
@@ -0,0 +1,194 @@
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Compares two commit trees for Git.diff.
+ *
+ * Both trees are walked together, one folder at a time. A folder with the
+ * same tree hash on both sides holds the same files, so it is never opened,
+ * and a folder which differs is only read once the stream reaches it. The
+ * work done grows with the number of folders which changed, not with the
+ * size of the project.
+ *
+ * Commit trees can hold files and folders under their full paths, so paths
+ * on one side which fall inside a folder on the other side are moved into
+ * that folder before the two are compared.
+ *
+ * A diff can be limited to the paths of a sparse checkout, in which case
+ * folders no pattern reaches are never opened.
+ */
+class TreeDiff {
+    private Path objectsPath;
+    private ObjectStore store;
+    private SparsePatterns sparse;
+
+    TreeDiff(Path objectsPath, ObjectStore store) {
+        this(objectsPath, store, null);
+    }
+
+    /**
+     * @param objectsPath
+     * @param store
+     * @param sparse      Paths to compare, or null for every path
+     */
+    TreeDiff(Path objectsPath, ObjectStore store, SparsePatterns sparse) {
+        this.objectsPath = objectsPath;
+        this.store = store;
+        this.sparse = sparse;
+    }
+
+    /**
+     * Streams the files which differ between two commit trees, in path order.
+     *
+     * @param oldTree Tree before, or an empty string for none
+     * @param newTree Tree after, or an empty string for none
+     * @return
+     * @throws Exception
+     */
+    Stream<DiffEntry> diff(String oldTree, String newTree) throws Exception {
+        if (oldTree.equals(newTree)) {
+            return Stream.empty();
+        }
+
+        Level oldLevel = new Level(), newLevel = new Level();
+        Commit.readSnapshot(objectsPath, oldTree, oldLevel.files, oldLevel.folders);
+        Commit.readSnapshot(objectsPath, newTree, newLevel.files, newLevel.folders);
+        return compare("", oldLevel, newLevel);
+    }
+
+    // Compares the contents of one folder on each side
+    private Stream<DiffEntry> compare(String prefix, Level oldLevel, Level newLevel) {
+        // Folders inside other folders are compared when their parent is opened
+        TreeSet<String> folders = new TreeSet<String>();
+        TreeSet<String> allFolders = new TreeSet<String>(oldLevel.folders.keySet());
+        allFolders.addAll(newLevel.folders.keySet());
+        allFolders.remove("");
+        for (String folder : allFolders) {
+            if (findHolder(folders, folder) == null && (sparse == null || sparse.mightInclude(prefix + folder))) {
+                folders.add(folder);
+            }
+        }
+
+        Level oldRest = new Level(), newRest = new Level();
+        Map<String, Level> oldMoved = moveIntoFolders(oldLevel, folders, oldRest);
+        Map<String, Level> newMoved = moveIntoFolders(newLevel, folders, newRest);
+
+        TreeSet<String> names = new TreeSet<String>(oldRest.files.keySet());
+        names.addAll(newRest.files.keySet());
+        if (sparse != null) {
+            names.removeIf(name -> !sparse.includes(prefix + name));
+        }
+        names.addAll(folders);
+
+        return names.stream().flatMap(name -> {
+            String oldFile = oldRest.files.get(name), newFile = newRest.files.get(name);
+            Stream<DiffEntry> files = Objects.equals(oldFile, newFile) ? Stream.empty()
+                    : Stream.of(new DiffEntry(prefix + name, oldFile, newFile, store));
+            if (!folders.contains(name)) {
+                return files;
+            }
+
+            String oldHash = oldRest.folders.get(name), newHash = newRest.folders.get(name);
+            Level oldInside = oldMoved.get(name), newInside = newMoved.get(name);
+            if (Objects.equals(oldHash, newHash) && oldInside == null && newInside == null) {
+                return files;
+            }
+
+            // Folders are only opened once the stream reaches them
+            Stream<DiffEntry> folder = Stream.of(name).flatMap(folderName -> unchecked(() -> compare(
+                    prefix + folderName + "/", open(oldHash, oldInside), open(newHash, newInside))));
+            return Stream.concat(files, folder);
+        });
+    }
+
+    // Splits a level into paths directly inside it, which are put in rest, and
+    // paths inside one of the folders, which are returned by folder
+    private static Map<String, Level> moveIntoFolders(Level level, TreeSet<String> folders, Level rest) {
+        HashMap<String, Level> moved = new HashMap<String, Level>();
+
+        for (Map.Entry<String, String> file : level.files.entrySet()) {
+            String holder = findHolder(folders, file.getKey());
+            if (holder == null) {
+                rest.files.put(file.getKey(), file.getValue());
+            } else {
+                moved.computeIfAbsent(holder, name -> new Level()).files
+                        .put(file.getKey().substring(holder.length() + 1), file.getValue());
+            }
+        }
+        for (Map.Entry<String, String> folder : level.folders.entrySet()) {
+            String holder = findHolder(folders, folder.getKey());
+            if (holder == null) {
+                rest.folders.put(folder.getKey(), folder.getValue());
+            } else {
+                moved.computeIfAbsent(holder, name -> new Level()).folders
+                        .put(folder.getKey().substring(holder.length() + 1), folder.getValue());
+            }
+        }
+
+        return moved;
+    }
+
+    // Outermost of the folders which a path is inside, or null
+    private static String findHolder(TreeSet<String> folders, String path) {
+        for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+            if (folders.contains(path.substring(0, slash))) {
+                return path.substring(0, slash);
+            }
+        }
+        return null;
+    }
+
+    // A folder's tree along with any paths moved into it. Moved folders are
+    // nested deeper than the tree's own, so they replace them
+    private Level open(String hash, Level moved) throws Exception {
+        Level level = new Level();
+        if (hash != null) {
+            Tree tree = Tree.readTree(objectsPath, hash);
+            level.files.putAll(tree.getFileMap());
+            level.folders.putAll(tree.getTreeMap());
+            level.folders.remove("");
+        }
+        if (moved != null) {
+            level.files.putAll(moved.files);
+            level.folders.putAll(moved.folders);
+        }
+        return level;
+    }
+
+    private static class Level {
+        private TreeMap<String, String> files = new TreeMap<String, String>();
+        private TreeMap<String, String> folders = new TreeMap<String, String>();
+    }
+
+    private interface Step<T> {
+        T call() throws Exception;
+    }
+
+    // Streams cannot throw checked exceptions, so failures are carried out as
+    // unchecked ones
+    private static <T> T unchecked(Step<T> step) {
+        try {
+            return step.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DiffException(e);
+        }
+    }
+
+    /**
+     * Thrown from the diff stream when a tree cannot be read.
+     */
+    public static class DiffException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DiffException(Exception cause) {
+            super(cause);
+        }
+    }
+}
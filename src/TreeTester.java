@@ -1,6 +1,10 @@
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.DisplayName;
@@ -9,6 +13,8 @@ import org.junit.jupiter.api.Test;
 public class TreeTester {
     @BeforeAll
     static void setupBeforeClass() throws Exception {
+        // Queued object writes must land before their folder is deleted
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Git git = new Git();
         git.init();
@@ -16,6 +22,7 @@ public class TreeTester {
 
     @AfterAll
     static void tearDownAfterClass() throws Exception {
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
     }
 
@@ -85,23 +92,44 @@ public class TreeTester {
         tree.add("blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file3.txt");
 
         tree.writeToObjects();
+        ObjectStores.forDirectory("objects").sync();
 
         // Confirming the tree file has been saved correctly
-        assertTrue(Utils.exists("objects/6a15ea192692596193c9e87bfb08d1b1425557a9"));
+        assertTrue(Utils.exists("objects/46/1526ca6dfe187231cc44ad838daa5489f3fc28"));
 
-        // Confirming the tree file's contents are correct (Order of blobs and trees is
-        // random due to hashmap)
-        assertEquals(Utils.unzipFile("objects/6a15ea192692596193c9e87bfb08d1b1425557a9"),
+        // Confirming the tree file's contents are correct (blobs then trees, each
+        // sorted by name)
+        assertEquals(Utils.unzipFile("objects/461526ca6dfe187231cc44ad838daa5489f3fc28"),
                 "blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file1.txt\n" + //
-                        "blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file3.txt\n" + //
                         "blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file2.txt\n" + //
-                        "tree : 039c501ac8dfcac91c6f05601cee876e1cc07e17 : tree2.txt\n" + //
-                        "tree : a1f239cbcd40f722555acfc7d23be06dee9d815e : tree.txt");
+                        "blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file3.txt\n" + //
+                        "tree : a1f239cbcd40f722555acfc7d23be06dee9d815e : tree.txt\n" + //
+                        "tree : 039c501ac8dfcac91c6f05601cee876e1cc07e17 : tree2.txt");
+    }
+
+    @Test
+    @DisplayName("Verify the same entries give the same tree hash however they were added")
+    void testTreeHashIgnoresOrder() throws Exception {
+        Tree small = new Tree();
+        Tree grown = new Tree();
+        for (int i = 0; i < 20; i++) {
+            small.add("blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file" + i + ".txt");
+        }
+        // Growing then shrinking the maps leaves them in a different iteration order
+        for (int i = 99; i >= 0; i--) {
+            grown.add("blob : a64e2a4adcc4ae20e6e35babd2a181619cb8e224 : file" + i + ".txt");
+        }
+        for (int i = 20; i < 100; i++) {
+            assertTrue(grown.remove("file" + i + ".txt"));
+        }
+
+        assertEquals(small.writeToObjects(), grown.writeToObjects());
     }
 
     @Test
     @DisplayName("Verify adding a directory works in a simple case")
     void testAddDirectorySimple() throws Exception {
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Utils.deleteDirectory("dir");
 
@@ -111,20 +139,22 @@ public class TreeTester {
 
         Tree tree = new Tree();
         tree.addDirectory("dir");
+        ObjectStores.forDirectory("objects").sync();
 
         // Confirming the tree file has been saved to the correct place
-        assertTrue(Utils.exists("objects/06226da7a066932629c0ef261765a1ba4ef674ad"));
+        assertTrue(Utils.exists("objects/37/fed0dedbb8e69b6ed872d3a0152b7c29d72472"));
 
         // Confirming the tree file has the correct contents
-        assertEquals("blob : 4a0a81eb2fc662e554e9bc711c44e3caa424fca8 : file1.txt\n" + //
-                "blob : 02ee912b44bc11cc17890b7e6f889471ca89a671 : file3.txt\n" + //
-                "blob : cf38160f02777e57fa8436d860f94caa4c7587d3 : file2.txt",
-                Utils.unzipFile("objects/06226da7a066932629c0ef261765a1ba4ef674ad"));
+        assertEquals("blob : 08219db9b0969fa29cf16fd04df4a63964da0b69 : file1.txt\n" + //
+                "blob : 30d67d4672d5c05833b7192cc77a79eaafb5c7ad : file2.txt\n" + //
+                "blob : 873fb8d667d05436d728c52b1d7a09528e6eb59b : file3.txt",
+                Utils.unzipFile("objects/37fed0dedbb8e69b6ed872d3a0152b7c29d72472"));
     }
 
     @Test
     @DisplayName("Verify adding a directory works with nested folders")
     void testAddDirectoryNested() throws Exception {
+        ObjectStores.forDirectory("objects").sync();
         Utils.deleteDirectory("objects");
         Utils.deleteDirectory("dir");
 
@@ -137,16 +167,64 @@ public class TreeTester {
 
         Tree tree = new Tree();
         tree.addDirectory("dir");
+        ObjectStores.forDirectory("objects").sync();
 
         // Confirming the tree file has been saved to the correct place
-        assertTrue(Utils.exists("objects/b9b17e90c93e4ed5933633d2859e9938459c30af"));
+        assertTrue(Utils.exists("objects/bb/b904bc41e480016fe33ed8d5e8b5636d307d27"));
 
         // Confirming the tree file has the correct contents
-        assertEquals("blob : 4a0a81eb2fc662e554e9bc711c44e3caa424fca8 : file1.txt\n" + //
-                "blob : 02ee912b44bc11cc17890b7e6f889471ca89a671 : file3.txt\n" + //
-                "blob : cf38160f02777e57fa8436d860f94caa4c7587d3 : file2.txt\n" + //
-                "tree : 93f7e1782458d7015a24f8d8944d70198fd7414e : subdir2\n" + //
-                "tree : 70246bde7d6bb9bdadc1a69206354b0e54afc709 : subdir1",
-                Utils.unzipFile("objects/b9b17e90c93e4ed5933633d2859e9938459c30af"));
+        assertEquals("blob : 08219db9b0969fa29cf16fd04df4a63964da0b69 : file1.txt\n" + //
+                "blob : 30d67d4672d5c05833b7192cc77a79eaafb5c7ad : file2.txt\n" + //
+                "blob : 873fb8d667d05436d728c52b1d7a09528e6eb59b : file3.txt\n" + //
+                "tree : 4b825dc642cb6eb9a060e54bf8d69288fbee4904 : subdir1\n" + //
+                "tree : 69bee52b10b718fd8fcdbf46c31b294c324add69 : subdir2",
+                Utils.unzipFile("objects/bbb904bc41e480016fe33ed8d5e8b5636d307d27"));
+    }
+
+    @Test
+    @DisplayName("Verify adding a large directory in parallel gives the same hashes as a sequential walk")
+    void testAddDirectoryParallel() throws Exception {
+        ObjectStores.forDirectory("objects").sync();
+        Utils.deleteDirectory("objects");
+        Utils.deleteDirectory("dir");
+
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                Utils.writeFile("dir/folder" + i + "/sub" + (j % 3) + "/file" + j + ".txt", "file" + i + "," + j);
+            }
+        }
+
+        Tree tree = new Tree();
+        String hash = tree.addDirectory("dir");
+
+        assertEquals(sequentialTreeHash(new File("dir")), hash);
+        assertTrue(Utils.objectExists("objects", hash));
+        assertTrue(Utils.objectExists("objects", Utils.hashObject("blob", "file19,19")));
+    }
+
+    // Hashes a directory one file at a time, the way trees used to be built
+    private String sequentialTreeHash(File directory) throws Exception {
+        StringBuilder contents = new StringBuilder();
+        Tree tree = new Tree();
+
+        for (File child : directory.listFiles()) {
+            if (child.list() == null) {
+                tree.add("blob : " + Utils.hashObject("blob", child.toPath()) + " : " + child.getName());
+            } else {
+                tree.add("tree : " + sequentialTreeHash(child) + " : " + child.getName());
+            }
+        }
+
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(tree.getFileMap()).entrySet()) {
+            contents.append("blob : " + entry.getValue() + " : " + entry.getKey() + "\n");
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(tree.getTreeMap()).entrySet()) {
+            contents.append("tree : " + entry.getValue() + " : " + entry.getKey() + "\n");
+        }
+        if (contents.length() > 0) {
+            contents.deleteCharAt(contents.length() - 1);
+        }
+
+        return Utils.hashObject("tree", contents.toString());
     }
 }
@@ -1,19 +1,30 @@
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class Utils {
+    // Size of the buffer used when streaming files in and out of the objects folder
+    static final int BUFFER_SIZE = 8192;
+
     /**
      * Computes the SHA1 Hash of a string.
      * 
@@ -22,8 +33,28 @@ public class Utils {
      * @throws NoSuchAlgorithmException
      */
     public static String hashString(String input) throws NoSuchAlgorithmException {
+        return hashBytes(input.getBytes());
+    }
+
+    /**
+     * Computes the SHA1 Hash of a byte array.
+     * 
+     * @param input
+     * @return Hashed string.
+     * @throws NoSuchAlgorithmException
+     */
+    public static String hashBytes(byte[] input) throws NoSuchAlgorithmException {
         MessageDigest crypt = MessageDigest.getInstance("SHA-1");
-        byte[] messageDigest = crypt.digest(input.getBytes());
+        return toHex(crypt.digest(input));
+    }
+
+    /**
+     * Converts a SHA1 digest into a 40 character hex string.
+     * 
+     * @param messageDigest
+     * @return Hex string.
+     */
+    public static String toHex(byte[] messageDigest) {
         BigInteger no = new BigInteger(1, messageDigest);
 
         // Convert message digest into hex value
@@ -38,6 +69,44 @@ public class Utils {
         return hashString;
     }
 
+    /**
+     * Converts a 40 character hex string back into a SHA1 digest.
+     * 
+     * @param hash
+     * @return Digest bytes.
+     */
+    public static byte[] fromHex(String hash) {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("Invalid hash " + hash);
+        }
+
+        byte[] bytes = new byte[hash.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hash.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns true if a string is a 40 character lowercase hex hash.
+     * 
+     * @param name
+     * @return
+     */
+    public static boolean isHash(String name) {
+        if (name.length() != 40) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Writes some content to a file.
      * 
@@ -139,7 +208,7 @@ public class Utils {
         return result;
     }
 
-    private static boolean contains(String key, String[] list) {
+    static boolean contains(String key, String[] list) {
         for (String item : list) {
             if (key.equals(item)) {
                 return true;
@@ -191,112 +260,265 @@ public class Utils {
     }
 
     /**
-     * Returns the hashed zip of a string
+     * Computes the ID of an object. The hash is taken over a header of the
+     * object's type and length followed by its raw contents, so it does not
+     * depend on how (or whether) the object is compressed.
      * 
-     * @param input
-     * @return
-     * @throws Exception
+     * @param type    Object type (blob, tree or commit)
+     * @param content Raw object contents
+     * @return Object ID.
+     * @throws NoSuchAlgorithmException
      */
-    public static String getHashedZip(String input) throws Exception {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzip = new GZIPOutputStream(outputStream)) {
-            gzip.write(input.getBytes("UTF-8"));
-        }
+    public static String hashObject(String type, byte[] content) throws NoSuchAlgorithmException {
+        MessageDigest crypt = MessageDigest.getInstance("SHA-1");
+        crypt.update(objectHeader(type, content.length));
+        return toHex(crypt.digest(content));
+    }
 
-        return Utils.hashString(outputStream.toString());
+    /**
+     * Computes the ID of an object from a string.
+     * 
+     * @param type    Object type (blob, tree or commit)
+     * @param content Raw object contents
+     * @return Object ID.
+     * @throws NoSuchAlgorithmException
+     */
+    public static String hashObject(String type, String content) throws NoSuchAlgorithmException {
+        return hashObject(type, content.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * Saves contents to file with name equal to the hashed contents
+     * Computes the ID a file would have as an object by streaming it with a fixed
+     * size buffer.
      * 
-     * @param path
-     * @param content
-     * @param compress Whether or not to zip the file
-     * @return Hash of file contents.
+     * @param type   Object type
+     * @param source File to hash
+     * @return Object ID.
      * @throws Exception
      */
-    public static String hashAndWriteFile(String path, String content, boolean compress) throws Exception {
-        if (compress) {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try (GZIPOutputStream gzip = new GZIPOutputStream(outputStream)) {
-                gzip.write(content.getBytes("UTF-8"));
+    public static String hashObject(String type, Path source) throws Exception {
+        MessageDigest crypt = MessageDigest.getInstance("SHA-1");
+        crypt.update(objectHeader(type, Files.size(source)));
+
+        try (InputStream input = Files.newInputStream(source)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = input.read(buffer)) > 0) {
+                crypt.update(buffer, 0, len);
             }
-            byte[] zippedByteArray = outputStream.toByteArray();
+        }
 
-            String hash = Utils.hashString(outputStream.toString());
+        return toHex(crypt.digest());
+    }
 
-            Path pathObject = Paths.get(path).resolve(hash);
+    private static byte[] objectHeader(String type, long length) {
+        return (type + " " + length + "\0").getBytes(StandardCharsets.UTF_8);
+    }
 
-            if (pathObject.getParent() != null) {
-                Files.createDirectories(pathObject.getParent());
-            }
+    /**
+     * Returns true if an object exists in the store for an objects folder.
+     * 
+     * @param path Path to objects folder
+     * @param hash
+     * @return
+     * @throws Exception
+     */
+    public static boolean objectExists(String path, String hash) throws Exception {
+        return ObjectStores.forDirectory(path).has(hash);
+    }
 
-            // Only writes if the file doesn't exist
-            if (!Files.exists(pathObject)) {
-                FileOutputStream fileOutput = new FileOutputStream(pathObject.toString());
-                fileOutput.write(zippedByteArray, 0, zippedByteArray.length);
-                fileOutput.close();
-            }
+    /**
+     * Returns the path a loose object is written to. Objects are sharded into
+     * folders named by the first characters of their hash, two characters for
+     * each of the Consts.OBJECT_FANOUT_DEPTH levels (objects/ab/cdef...).
+     * 
+     * @param path Path to objects folder
+     * @param hash
+     * @return
+     */
+    public static Path objectPath(String path, String hash) {
+        return objectPath(Paths.get(path), hash, Consts.OBJECT_FANOUT_DEPTH);
+    }
 
-            return hash;
-        } else {
-            String hash = hashString(content);
-            writeFile(path + hash, content);
-            return hash;
+    /**
+     * Returns the path of a loose object with a given number of fanout levels.
+     * 
+     * @param objectsDirectory Path to objects folder
+     * @param hash
+     * @param depth            Number of fanout levels
+     * @return
+     */
+    public static Path objectPath(Path objectsDirectory, String hash, int depth) {
+        Path result = objectsDirectory;
+        for (int i = 0; i < depth; i++) {
+            result = result.resolve(hash.substring(i * 2, i * 2 + 2));
         }
+        return result.resolve(hash.substring(depth * 2));
     }
 
     /**
-     * Saves contents
+     * Finds a loose object in either the sharded layout or the old flat layout.
      * 
-     * @param path
-     * @param content
-     * @param compress Whether or not to zip the file
-     * @return Hash of file contents.
-     * @throws Exception
+     * @param objectsDirectory Path to objects folder
+     * @param hash
+     * @return Path to the object, or null if there is no loose copy.
      */
-    public static void zipFile(String path, String content) throws Exception {
-        // Only writes if the file doesn't exist
-        if (!exists(path)) {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try (GZIPOutputStream gzip = new GZIPOutputStream(outputStream)) {
-                gzip.write(content.getBytes("UTF-8"));
-            }
-            byte[] zippedByteArray = outputStream.toByteArray();
+    public static Path findLooseObject(Path objectsDirectory, String hash) {
+        if (!isHash(hash)) {
+            return null;
+        }
+
+        Path sharded = objectPath(objectsDirectory, hash, Consts.OBJECT_FANOUT_DEPTH);
+        if (Files.exists(sharded)) {
+            return sharded;
+        }
 
-            Path pathObject = Paths.get(path);
+        Path flat = objectsDirectory.resolve(hash);
+        return Files.exists(flat) ? flat : null;
+    }
 
-            if (pathObject.getParent() != null) {
-                Files.createDirectories(pathObject.getParent());
+    /**
+     * Lists every loose object in an objects folder, whether it is sharded or
+     * in the old flat layout.
+     * 
+     * @param objectsDirectory Path to objects folder
+     * @return Map from hash to the path of the object.
+     * @throws IOException
+     */
+    public static Map<String, Path> listLooseObjects(Path objectsDirectory) throws IOException {
+        HashMap<String, Path> objects = new HashMap<String, Path>();
+        if (!Files.isDirectory(objectsDirectory)) {
+            return objects;
+        }
+
+        try (Stream<Path> paths = Files.walk(objectsDirectory, Consts.OBJECT_FANOUT_DEPTH + 1)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                // An object's hash is its path within the objects folder without separators
+                String hash = objectsDirectory.relativize(path).toString().replace(File.separator, "");
+                if (isHash(hash) && Files.isRegularFile(path)) {
+                    objects.putIfAbsent(hash, path);
+                }
             }
+        }
+
+        return objects;
+    }
+
+    /**
+     * Moves loose objects from the flat layout into the sharded layout. The
+     * objects are moved in parallel, and objects which are already in place are
+     * left alone, so this is safe to run more than once.
+     * 
+     * @param path Path to objects folder
+     * @return Number of objects moved.
+     * @throws IOException
+     */
+    public static int shardObjects(String path) throws IOException {
+        Path objectsDirectory = Paths.get(path);
+        AtomicInteger moved = new AtomicInteger();
+
+        try {
+            listLooseObjects(objectsDirectory).entrySet().parallelStream().forEach(entry -> {
+                Path target = objectPath(objectsDirectory, entry.getKey(), Consts.OBJECT_FANOUT_DEPTH);
+                if (target.equals(entry.getValue())) {
+                    return;
+                }
+
+                try {
+                    Files.createDirectories(target.getParent());
+                    if (Files.exists(target)) {
+                        // Objects are named by their contents, so the copy in place is the same
+                        Files.delete(entry.getValue());
+                    } else {
+                        Files.move(entry.getValue(), target, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    moved.incrementAndGet();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return moved.get();
+    }
 
-            FileOutputStream fileOutput = new FileOutputStream(path);
-            fileOutput.write(zippedByteArray, 0, zippedByteArray.length);
-            fileOutput.close();
+    /**
+     * Copies an input stream to an output stream using a fixed size buffer.
+     * 
+     * @param input
+     * @param output
+     * @return Number of bytes copied.
+     * @throws IOException
+     */
+    public static long copyStream(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int len;
+        while ((len = input.read(buffer)) > 0) {
+            output.write(buffer, 0, len);
+            total += len;
         }
+        return total;
     }
 
     /**
-     * Unzips a file to a string.
+     * Unzips a file to a string. Paths to objects are read from the store for
+     * the objects folder they are in, wherever it keeps them.
      * 
      * @param path
      * @return Unzipped file as a string.
      * @throws Exception
      */
     public static String unzipFile(String path) throws Exception {
-        try (GZIPInputStream gis = new GZIPInputStream(
-                new FileInputStream(new File(path)));
+        try (InputStream input = openObject(path);
                 ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            copyStream(input, outputStream);
+            return outputStream.toString();
+        }
+    }
 
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = gis.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, len);
-            }
+    /**
+     * Unzips a file directly to another file without loading it into memory.
+     * Binary contents are copied unchanged.
+     * 
+     * @param path        Path to zipped file
+     * @param destination Path to write unzipped contents to
+     * @throws Exception
+     */
+    public static void unzipToFile(String path, String destination) throws Exception {
+        Path destinationPath = Paths.get(destination);
 
-            return outputStream.toString();
-        } catch (Exception exception) {
-            throw exception;
+        if (destinationPath.getParent() != null) {
+            Files.createDirectories(destinationPath.getParent());
+        }
+
+        try (InputStream input = openObject(path);
+                OutputStream output = new BufferedOutputStream(Files.newOutputStream(destinationPath),
+                        BUFFER_SIZE)) {
+            copyStream(input, output);
         }
     }
+
+    /**
+     * Opens an object for reading from the store for its objects folder, however
+     * that store keeps it.
+     * 
+     * @param path Path to the object in the flat layout (objects/hash)
+     * @return Stream of the unzipped object.
+     * @throws Exception
+     */
+    public static InputStream openObject(String path) throws Exception {
+        Path pathObject = Paths.get(path);
+        Path objectsDirectory = (pathObject.getParent() != null) ? pathObject.getParent() : Paths.get("");
+        String hash = pathObject.getFileName().toString();
+
+        if (!isHash(hash)) {
+            // Not an object, so just unzip the file at the path
+            return new GZIPInputStream(new FileInputStream(new File(path)), BUFFER_SIZE);
+        }
+
+        return ObjectStores.forDirectory(objectsDirectory).open(hash);
+    }
 }